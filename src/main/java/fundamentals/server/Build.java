@@ -0,0 +1,492 @@
+package fundamentals.server;
+
+import fundamentals.server.logs.BuildLog;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.UUID;
+
+/**
+ * Everything the server stores about a single build. A build is immutable, a change to a build (for example when it
+ * starts running or finishes) creates a new {@code Build} with {@code toBuilder()}, which is then stored with
+ * {@code BuildStorage.update()}.
+ * <p>
+ * The build ID is a UUID that is kept as two longs, timestamps are milliseconds since the epoch and statuses are
+ * enums. JSON is only used at the edges: {@code toJSON()} creates the JSON object that is sent to clients and
+ * stored on disk, and {@code fromJSON()} reads it back.
+ *
+ * @param idHigh          the most significant bits of the build ID.
+ * @param idLow           the least significant bits of the build ID.
+ * @param owner           the owner of the repository.
+ * @param repository      the repository.
+ * @param branch          the branch that was pushed to.
+ * @param commit          the commit that is built.
+ * @param startedAt       when the build was created, in milliseconds since the epoch.
+ * @param endedAt         when the build ended, in milliseconds since the epoch, 0 if it has not ended yet.
+ * @param state           where the build is in its life cycle.
+ * @param compileStatus   the result of the compile step.
+ * @param testStatus      the result of the test step.
+ * @param queueWaitMillis how long the build waited for a build worker, -1 if it has not started.
+ * @param compileResult   the exit code and run time of the compile step, null if the step has not run.
+ * @param testResult      the exit code and run time of the test step, null if the step has not run.
+ * @param supersededBy    the ID of the build that superseded this build, or null.
+ * @param cancelledBy     the ID of the build that cancelled this build, or null.
+ * @param logs            where the log of the finished build is stored, null while the build runs.
+ * @param resultKey       the tree of the commit and the build configuration, builds with the same key have the same
+ *                        result, or null if it is not known.
+ * @param reusedFrom      the ID of the build whose result was reused instead of running this build, or null.
+ */
+public record Build(long idHigh, long idLow, String owner, String repository, String branch, String commit,
+                    long startedAt, long endedAt, State state, Status compileStatus, Status testStatus,
+                    long queueWaitMillis, StepResult compileResult, StepResult testResult,
+                    String supersededBy, String cancelledBy, BuildLog.Pointer logs, String resultKey,
+                    String reusedFrom) {
+
+    /**
+     * The format of the timestamps that are shown to the user.
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Where a build is in its life cycle.
+     */
+    public enum State {
+        QUEUED("queued"),
+        RUNNING("running"),
+        FINISHED("finished"),
+        SUPERSEDED("superseded"),
+        CANCELLED("cancelled"),
+        REJECTED("rejected");
+
+        final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * @param name the name of the state, for example "queued".
+         * @return the state, FINISHED if the name is unknown.
+         */
+        public static State fromString(String name) {
+            for (State state : values()) {
+                if (state.name.equals(name))
+                    return state;
+            }
+            return FINISHED;
+        }
+    }
+
+    /**
+     * The result of a step of the build, these are the same as the commit statuses on Github (and "cancelled").
+     */
+    public enum Status {
+        PENDING("pending"),
+        SUCCESS("success"),
+        FAILURE("failure"),
+        ERROR("error"),
+        CANCELLED("cancelled");
+
+        final String name;
+
+        Status(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * @param name the name of the status, for example "success".
+         * @return the status, PENDING if the name is unknown.
+         */
+        public static Status fromString(String name) {
+            for (Status status : values()) {
+                if (status.name.equals(name))
+                    return status;
+            }
+            return PENDING;
+        }
+    }
+
+    /**
+     * How a step of the build (compile or test) went.
+     *
+     * @param exitCode   the exit code of the process.
+     * @param wallMillis the time from start to end of the process.
+     * @param cpuMillis  the CPU time used by the process and its children.
+     */
+    public record StepResult(int exitCode, long wallMillis, long cpuMillis) {
+    }
+
+    /**
+     * Creates a changed copy of a build, only the fields that are set on the builder differ from the original build.
+     * For example {@code build.toBuilder().state(State.FINISHED).endedAt(now).build()}. The ID, the repository, the
+     * commit and the start of a build never change.
+     */
+    public static final class Builder {
+        private final long idHigh;
+        private final long idLow;
+        private final String owner;
+        private final String repository;
+        private final String branch;
+        private final String commit;
+        private final long startedAt;
+        private long endedAt;
+        private State state;
+        private Status compileStatus;
+        private Status testStatus;
+        private long queueWaitMillis;
+        private StepResult compileResult;
+        private StepResult testResult;
+        private String supersededBy;
+        private String cancelledBy;
+        private BuildLog.Pointer logs;
+        private String resultKey;
+        private String reusedFrom;
+
+        private Builder(Build build) {
+            idHigh = build.idHigh;
+            idLow = build.idLow;
+            owner = build.owner;
+            repository = build.repository;
+            branch = build.branch;
+            commit = build.commit;
+            startedAt = build.startedAt;
+            endedAt = build.endedAt;
+            state = build.state;
+            compileStatus = build.compileStatus;
+            testStatus = build.testStatus;
+            queueWaitMillis = build.queueWaitMillis;
+            compileResult = build.compileResult;
+            testResult = build.testResult;
+            supersededBy = build.supersededBy;
+            cancelledBy = build.cancelledBy;
+            logs = build.logs;
+            resultKey = build.resultKey;
+            reusedFrom = build.reusedFrom;
+        }
+
+        /**
+         * @return this builder, with the given endedAt.
+         */
+        public Builder endedAt(long endedAt) {
+            this.endedAt = endedAt;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given state.
+         */
+        public Builder state(State state) {
+            this.state = state;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given compileStatus.
+         */
+        public Builder compileStatus(Status compileStatus) {
+            this.compileStatus = compileStatus;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given testStatus.
+         */
+        public Builder testStatus(Status testStatus) {
+            this.testStatus = testStatus;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given queueWaitMillis.
+         */
+        public Builder queueWaitMillis(long queueWaitMillis) {
+            this.queueWaitMillis = queueWaitMillis;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given compileResult.
+         */
+        public Builder compileResult(StepResult compileResult) {
+            this.compileResult = compileResult;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given testResult.
+         */
+        public Builder testResult(StepResult testResult) {
+            this.testResult = testResult;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given supersededBy.
+         */
+        public Builder supersededBy(String supersededBy) {
+            this.supersededBy = supersededBy;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given cancelledBy.
+         */
+        public Builder cancelledBy(String cancelledBy) {
+            this.cancelledBy = cancelledBy;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given logs.
+         */
+        public Builder logs(BuildLog.Pointer logs) {
+            this.logs = logs;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given resultKey.
+         */
+        public Builder resultKey(String resultKey) {
+            this.resultKey = resultKey;
+            return this;
+        }
+
+        /**
+         * @return this builder, with the given reusedFrom.
+         */
+        public Builder reusedFrom(String reusedFrom) {
+            this.reusedFrom = reusedFrom;
+            return this;
+        }
+
+        /**
+         * @return the build with the fields of this builder.
+         */
+        public Build build() {
+            return new Build(idHigh, idLow, owner, repository, branch, commit, startedAt, endedAt, state,
+                    compileStatus, testStatus, queueWaitMillis, compileResult, testResult, supersededBy, cancelledBy,
+                    logs, resultKey, reusedFrom);
+        }
+    }
+
+    /**
+     * @return a builder that starts from the fields of this build.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Creates a new build that is waiting in the queue.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @param branch     the branch that was pushed to.
+     * @param commit     the commit that should be built.
+     * @return the build with a new random build ID.
+     */
+    public static Build create(String owner, String repository, String branch, String commit) {
+        UUID id = UUID.randomUUID();
+        return new Build(id.getMostSignificantBits(), id.getLeastSignificantBits(), intern(owner), intern(repository),
+                intern(branch), commit, System.currentTimeMillis(), 0, State.QUEUED, Status.PENDING, Status.PENDING,
+                -1, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * @return the build ID as a UUID.
+     */
+    public UUID getID() {
+        return new UUID(idHigh, idLow);
+    }
+
+    /**
+     * @return the build ID in the text form that is used in URLs, for example "9ff81d98-ee33-444c-991c-8005fd6f7b62".
+     */
+    public String getBuildID() {
+        return getID().toString();
+    }
+
+    /**
+     * @return true if the build has ended, no matter how.
+     */
+    public boolean hasEnded() {
+        return endedAt != 0;
+    }
+
+    /**
+     * Returns the result of the build as a whole, the same as the commit status on Github: pending until the build
+     * ends, error if it did not compile, failure if a test failed and success if both steps succeeded. Builds that
+     * were superseded or cancelled are cancelled.
+     *
+     * @return the status of the build.
+     */
+    public Status getStatus() {
+        if (state == State.SUPERSEDED || state == State.CANCELLED)
+            return Status.CANCELLED;
+        if (compileStatus == Status.ERROR)
+            return Status.ERROR;
+        if (testStatus == Status.FAILURE)
+            return Status.FAILURE;
+        if (compileStatus == Status.SUCCESS && testStatus == Status.SUCCESS)
+            return Status.SUCCESS;
+        return hasEnded() ? Status.ERROR : Status.PENDING;
+    }
+
+    /**
+     * Returns a copy of the build that has finished with the result of another build, without running. The copy
+     * points at the build that actually ran, and shares its log.
+     *
+     * @param result  a finished build with the same result key.
+     * @param endedAt when the build ended, in milliseconds since the epoch.
+     * @return the finished copy of the build.
+     */
+    public Build withResultOf(Build result, long endedAt) {
+        String ranBuild = result.reusedFrom != null ? result.reusedFrom : result.getBuildID();
+        return toBuilder()
+                .endedAt(endedAt)
+                .state(State.FINISHED)
+                .compileStatus(result.compileStatus)
+                .testStatus(result.testStatus)
+                .queueWaitMillis(0)
+                .compileResult(result.compileResult)
+                .testResult(result.testResult)
+                .logs(result.logs)
+                .resultKey(result.resultKey)
+                .reusedFrom(ranBuild)
+                .build();
+    }
+
+    /**
+     * Creates the JSON object that represents the build, both in responses and in the builds file. Timestamps are
+     * included both in a readable form ("build_started") and in milliseconds since the epoch ("build_started_ms").
+     *
+     * @return the build as JSON.
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("build_id", getBuildID());
+        json.put("owner", owner);
+        json.put("repository", repository);
+        json.put("branch", branch);
+        json.put("commit", commit);
+        json.put("build_started", formatTime(startedAt));
+        json.put("build_started_ms", startedAt);
+        json.put("build_ended", hasEnded() ? formatTime(endedAt) : "not yet");
+        if (hasEnded())
+            json.put("build_ended_ms", endedAt);
+        json.put("state", state.toString());
+        json.put("compile_status", compileStatus.toString());
+        json.put("test_status", testStatus.toString());
+        json.put("status", getStatus().toString());
+        if (queueWaitMillis >= 0)
+            json.put("queue_wait_ms", queueWaitMillis);
+        putStepResult(json, "compile", compileResult);
+        putStepResult(json, "test", testResult);
+        if (supersededBy != null)
+            json.put("superseded_by", supersededBy);
+        if (cancelledBy != null)
+            json.put("cancelled_by", cancelledBy);
+        if (logs != null)
+            json.put("logs", logs.toJSON());
+        if (resultKey != null)
+            json.put("result_key", resultKey);
+        if (reusedFrom != null)
+            json.put("reused_from", reusedFrom);
+        return json;
+    }
+
+    /**
+     * Reads a build from the JSON object created by {@code toJSON()}. Builds stored by older versions of the server,
+     * with timestamps as text only, can be read as well.
+     *
+     * @param json the build as JSON.
+     * @return the build.
+     * @throws IllegalArgumentException if the build ID is not a UUID.
+     */
+    public static Build fromJSON(JSONObject json) {
+        UUID id = UUID.fromString(json.getString("build_id"));
+        JSONObject logs = json.optJSONObject("logs");
+        return new Build(id.getMostSignificantBits(), id.getLeastSignificantBits(),
+                intern(json.optString("owner")), intern(json.optString("repository")), intern(json.optString("branch")),
+                json.optString("commit"),
+                readTime(json, "build_started"), readTime(json, "build_ended"),
+                State.fromString(json.optString("state", "finished")),
+                Status.fromString(json.optString("compile_status")), Status.fromString(json.optString("test_status")),
+                json.optLong("queue_wait_ms", -1),
+                readStepResult(json, "compile"), readStepResult(json, "test"),
+                json.optString("superseded_by", null), json.optString("cancelled_by", null),
+                logs == null ? null : BuildLog.Pointer.fromJSON(logs),
+                json.optString("result_key", null), json.optString("reused_from", null));
+    }
+
+    // The owner, repository and branch are the same for many builds, keep only one copy of each.
+    private static String intern(String text) {
+        return text == null ? null : text.intern();
+    }
+
+    private static String formatTime(long epochMillis) {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()));
+    }
+
+    // Reads "<key>_ms" if it is there, otherwise the text in "<key>" ("yyyy-MM-dd HH:mm:ss" or an ISO-8601 instant).
+    private static long readTime(JSONObject json, String key) {
+        if (json.has(key + "_ms"))
+            return json.getLong(key + "_ms");
+
+        try {
+            return parseTime(json.optString(key));
+        } catch (IllegalArgumentException e) {
+            // For example "not yet".
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a time in the format that is shown to the user ("yyyy-MM-dd HH:mm:ss", in the time zone of the server)
+     * or as an ISO-8601 instant (for example "2022-02-09T06:22:16Z").
+     *
+     * @param text the time as text.
+     * @return the time in milliseconds since the epoch.
+     * @throws IllegalArgumentException if the text is not a time in one of the formats.
+     */
+    public static long parseTime(String text) {
+        try {
+            return LocalDateTime.parse(text, DATE_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+        }
+        try {
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a time: " + text, e);
+        }
+    }
+
+    private static void putStepResult(JSONObject json, String step, StepResult result) {
+        if (result == null)
+            return;
+        json.put(step + "_exit_code", result.exitCode());
+        json.put(step + "_wall_ms", result.wallMillis());
+        json.put(step + "_cpu_ms", result.cpuMillis());
+    }
+
+    private static StepResult readStepResult(JSONObject json, String step) {
+        if (!json.has(step + "_exit_code"))
+            return null;
+        return new StepResult(json.getInt(step + "_exit_code"), json.optLong(step + "_wall_ms"), json.optLong(step + "_cpu_ms"));
+    }
+}
@@ -0,0 +1,24 @@
+package fundamentals.server;
+
+import java.util.List;
+
+/**
+ * The builds that have changed after a sequence number, see {@code BuildStorage.getChangesSince()}. Each build is
+ * only included once, as it is after its latest change, and the builds are in the order of their latest change.
+ *
+ * @param changes  the changed builds.
+ * @param sequence the sequence number to ask for the next changes with.
+ * @param more     true if there are more changes than could be included, ask again right away with
+ *                 {@code sequence} to get them.
+ */
+public record BuildChanges(List<Change> changes, long sequence, boolean more) {
+
+    /**
+     * A build as it is after a change.
+     *
+     * @param sequence the sequence number of the change.
+     * @param build    the build.
+     */
+    public record Change(long sequence, Build build) {
+    }
+}
@@ -0,0 +1,433 @@
+package fundamentals.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * An immutable version of all builds in a {@code BuildStorage}, in the order they were created. Changing a build or
+ * adding one creates a new version, the old version stays the same for everyone that still reads it. This lets the
+ * storage publish a new version through a volatile field, readers never take a lock and never see a build that is
+ * only half added.
+ * <p>
+ * The builds are kept in chunks of {@code CHUNK_SIZE} builds. A new version only copies the chunk that changed and
+ * the array of chunks, not every build. Versions also share the chunk that builds are added to, and the map from
+ * build ID to position: a version only reads the first {@code size()} builds, so a build that is added after it is
+ * never seen through it. Only one thread may create new versions at a time.
+ * <p>
+ * Builds can also be found by repository, branch, commit, status, result key and start time without looking at every
+ * build. The positions of the builds with a given repository, branch, commit, status or result key are kept in a
+ * {@code PositionList} for each of them, which is shared by all versions like the map from build ID to position. A
+ * build is added to a list when it gets that key and is never removed, so a query checks each build it finds in a
+ * list. The few builds that are still pending are kept in each version instead, otherwise the list of pending
+ * builds would hold every build. Builds are created in order, so the highest start time of the builds up to each
+ * position only grows, and the first build that started after a given time is found with a binary search.
+ * <p>
+ * Every change (adding a build or replacing it) gets the next sequence number and is written to a change log that
+ * is shared by all versions like the builds, so the builds that have changed after a sequence number are found
+ * without looking at the others. Sequence numbers start at the time the index was created in microseconds, so they
+ * keep growing when the server restarts (unless it made more than a thousand changes per millisecond), and a client
+ * that still has a sequence number from before the restart gets every build.
+ */
+final class BuildIndex {
+
+    /**
+     * The number of builds in each chunk.
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    private final Build[][] chunks;
+    private final int size;
+
+    /**
+     * The highest start time of the builds up to each position, in chunks like the builds. Only ever added to.
+     */
+    private final long[][] maxStartedAt;
+
+    /**
+     * The positions of the builds that are pending in this version, in order.
+     */
+    private final int[] pending;
+
+    /**
+     * The positions of the builds with each key (see {@code keysOf()}). Lists are only ever added, and are shared by
+     * all later versions.
+     */
+    private final Map<String, PositionList> lists;
+
+    /**
+     * The sequence number of the first change is one higher than this.
+     */
+    private final long firstSequence;
+
+    /**
+     * The position of the build that was changed by each change, in chunks like the builds. Only ever added to.
+     */
+    private final int[][] changes;
+    private final int changeCount;
+
+    /**
+     * The sequence number of the latest change of the build at each position, in chunks like the builds.
+     */
+    private final long[][] sequences;
+
+    /**
+     * Maps each build ID to its position. Entries are only ever added, and are shared by all later versions.
+     */
+    private final Map<UUID, Integer> positions;
+
+    /**
+     * Creates an index without any builds.
+     */
+    BuildIndex() {
+        this(new Build[0][], 0, new long[0][], new int[0], System.currentTimeMillis() * 1000, new int[0][], 0,
+                new long[0][], new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+
+    private BuildIndex(Build[][] chunks, int size, long[][] maxStartedAt, int[] pending, long firstSequence,
+                       int[][] changes, int changeCount, long[][] sequences,
+                       Map<UUID, Integer> positions, Map<String, PositionList> lists) {
+        this.chunks = chunks;
+        this.size = size;
+        this.maxStartedAt = maxStartedAt;
+        this.pending = pending;
+        this.firstSequence = firstSequence;
+        this.changes = changes;
+        this.changeCount = changeCount;
+        this.sequences = sequences;
+        this.positions = positions;
+        this.lists = lists;
+    }
+
+    /**
+     * Returns the sequence number of the latest change in this version.
+     *
+     * @return the sequence number.
+     */
+    long sequence() {
+        return firstSequence + changeCount;
+    }
+
+    /**
+     * Returns the sequence number of the latest change of a build.
+     *
+     * @param position the position of the build.
+     * @return the sequence number.
+     */
+    long sequenceOf(int position) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException(position);
+        return sequences[position / CHUNK_SIZE][position % CHUNK_SIZE];
+    }
+
+    /**
+     * Returns the number of builds in this version.
+     *
+     * @return number of builds.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the build at a position.
+     *
+     * @param position the position of the build, the first build that was created is at 0.
+     * @return the build.
+     */
+    Build get(int position) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException(position);
+        return chunks[position / CHUNK_SIZE][position % CHUNK_SIZE];
+    }
+
+    /**
+     * Returns the position of a build.
+     *
+     * @param buildID the build ID.
+     * @return the position of the build, or -1 if this version does not contain a build with that ID.
+     */
+    int positionOf(UUID buildID) {
+        Integer position = positions.get(buildID);
+        return position == null || position >= size ? -1 : position;
+    }
+
+    /**
+     * Returns a build given the build ID.
+     *
+     * @param buildID the build ID.
+     * @return the build, or null if this version does not contain a build with that ID.
+     */
+    Build get(UUID buildID) {
+        int position = positionOf(buildID);
+        return position < 0 ? null : get(position);
+    }
+
+    /**
+     * Creates a new version with a build added at the end.
+     *
+     * @param build the new build.
+     * @return the new version.
+     */
+    BuildIndex plus(Build build) {
+        Build[][] newChunks = chunks;
+        long[][] newMaxStartedAt = maxStartedAt;
+        long[][] newSequences = sequences;
+        if (size % CHUNK_SIZE == 0) {
+            newChunks = Arrays.copyOf(chunks, chunks.length + 1);
+            newChunks[chunks.length] = new Build[CHUNK_SIZE];
+            newMaxStartedAt = Arrays.copyOf(maxStartedAt, maxStartedAt.length + 1);
+            newMaxStartedAt[maxStartedAt.length] = new long[CHUNK_SIZE];
+            newSequences = Arrays.copyOf(sequences, sequences.length + 1);
+            newSequences[sequences.length] = new long[CHUNK_SIZE];
+        }
+
+        // The slot is past the end of every existing version, none of them can read it.
+        newChunks[size / CHUNK_SIZE][size % CHUNK_SIZE] = build;
+        long maxBefore = size == 0 ? Long.MIN_VALUE : getMaxStartedAt(size - 1);
+        newMaxStartedAt[size / CHUNK_SIZE][size % CHUNK_SIZE] = Math.max(maxBefore, build.startedAt());
+        positions.put(build.getID(), size);
+        for (String key : keysOf(build))
+            lists.computeIfAbsent(key, k -> new PositionList()).add(size);
+
+        int[] newPending = pending;
+        if (build.getStatus() == Build.Status.PENDING) {
+            newPending = Arrays.copyOf(pending, pending.length + 1);
+            newPending[pending.length] = size;
+        }
+        newSequences[size / CHUNK_SIZE][size % CHUNK_SIZE] = sequence() + 1;
+        return new BuildIndex(newChunks, size + 1, newMaxStartedAt, newPending, firstSequence,
+                addChange(size), changeCount + 1, newSequences, positions, lists);
+    }
+
+    /**
+     * Creates a new version where the build at a position is replaced.
+     *
+     * @param position the position of the build.
+     * @param build    the build that replaces it.
+     * @return the new version.
+     */
+    BuildIndex with(int position, Build build) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException(position);
+
+        Build[][] newChunks = chunks.clone();
+        Build[] chunk = newChunks[position / CHUNK_SIZE].clone();
+        Build old = chunk[position % CHUNK_SIZE];
+        chunk[position % CHUNK_SIZE] = build;
+        newChunks[position / CHUNK_SIZE] = chunk;
+
+        long[][] newSequences = sequences.clone();
+        long[] sequenceChunk = newSequences[position / CHUNK_SIZE].clone();
+        sequenceChunk[position % CHUNK_SIZE] = sequence() + 1;
+        newSequences[position / CHUNK_SIZE] = sequenceChunk;
+
+        // The build is added to the lists of its new keys before the version where it has them is published.
+        List<String> oldKeys = keysOf(old);
+        for (String key : keysOf(build)) {
+            if (!oldKeys.contains(key))
+                lists.computeIfAbsent(key, k -> new PositionList()).add(position);
+        }
+
+        int[] newPending = pending;
+        boolean wasPending = old.getStatus() == Build.Status.PENDING;
+        boolean isPending = build.getStatus() == Build.Status.PENDING;
+        if (wasPending && !isPending) {
+            newPending = Arrays.stream(pending).filter(p -> p != position).toArray();
+        } else if (!wasPending && isPending) {
+            newPending = Arrays.copyOf(pending, pending.length + 1);
+            newPending[pending.length] = position;
+            Arrays.sort(newPending);
+        }
+        return new BuildIndex(newChunks, size, maxStartedAt, newPending, firstSequence,
+                addChange(position), changeCount + 1, newSequences, positions, lists);
+    }
+
+    // Writes the next change to the change log, past the end that existing versions read.
+    private int[][] addChange(int position) {
+        int[][] newChanges = changes;
+        if (changeCount % CHUNK_SIZE == 0) {
+            newChanges = Arrays.copyOf(changes, changes.length + 1);
+            newChanges[changes.length] = new int[CHUNK_SIZE];
+        }
+        newChanges[changeCount / CHUNK_SIZE][changeCount % CHUNK_SIZE] = position;
+        return newChanges;
+    }
+
+    /**
+     * Returns the builds that have changed after a sequence number, in the order of their latest change.
+     *
+     * @param since the sequence number of the latest change the caller knows about, 0 for every build.
+     * @param limit the maximum number of builds to return.
+     * @return the changed builds.
+     */
+    BuildChanges changesSince(long since, int limit) {
+        // The change with sequence number since + 1 is at this index of the change log.
+        int first = (int) Math.max(0, Math.min(changeCount, since - firstSequence));
+
+        // Go through the changes newest first to find the latest change of each build. A poll usually finds a few
+        // changes, so the set grows with them instead of with the index.
+        Set<Integer> seen = new HashSet<>();
+        List<Integer> latest = new ArrayList<>();
+        for (int i = changeCount - 1; i >= first; i--) {
+            int position = changes[i / CHUNK_SIZE][i % CHUNK_SIZE];
+            if (seen.add(position))
+                latest.add(position);
+        }
+
+        // The oldest changes are returned first, so a client that asks again gets the rest.
+        List<BuildChanges.Change> result = new ArrayList<>(Math.min(limit, latest.size()));
+        for (int i = latest.size() - 1; i >= 0 && result.size() < limit; i--) {
+            int position = latest.get(i);
+            result.add(new BuildChanges.Change(sequenceOf(position), get(position)));
+        }
+
+        boolean more = result.size() < latest.size();
+        long next = more ? result.get(result.size() - 1).sequence() : sequence();
+        return new BuildChanges(result, next, more);
+    }
+
+    /**
+     * Returns the builds that match a query, newest first.
+     *
+     * @param query what to look for.
+     * @return at most {@code query.limit()} builds.
+     */
+    List<Build> query(BuildQuery query) {
+        List<Build> result = new ArrayList<>();
+        int first = query.since() > 0 ? firstPositionSince(query.since()) : 0;
+        IntPredicate visit = position -> {
+            if (position < first)
+                return false;
+            Build build = get(position);
+            if (query.matches(build))
+                result.add(build);
+            return result.size() < query.limit();
+        };
+
+        if (query.status() == Build.Status.PENDING) {
+            for (int i = pending.length - 1; i >= 0 && visit.test(pending[i]); i--) ;
+            return result;
+        }
+
+        // Go through the shortest list that the builds must be in, the other criteria are checked on each build.
+        PositionList shortest = null;
+        for (String key : keysOf(query)) {
+            PositionList list = lists.get(key);
+            if (list == null)
+                return result;
+            if (shortest == null || list.length() < shortest.length())
+                shortest = list;
+        }
+
+        if (shortest != null) {
+            shortest.forEachDescending(size, visit);
+        } else {
+            for (int position = size - 1; position >= 0 && visit.test(position); position--) ;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the newest build with a result key that also matches a condition.
+     *
+     * @param resultKey the result key, see {@code Build.resultKey()}.
+     * @param condition checked on each build with the result key.
+     * @return the build, or null if no build matches.
+     */
+    Build findByResultKey(String resultKey, Predicate<Build> condition) {
+        PositionList list = lists.get("result:" + resultKey);
+        if (list == null)
+            return null;
+
+        Build[] found = new Build[1];
+        list.forEachDescending(size, position -> {
+            Build build = get(position);
+            if (resultKey.equals(build.resultKey()) && condition.test(build))
+                found[0] = build;
+            return found[0] == null;
+        });
+        return found[0];
+    }
+
+    // The first position where a build that started at or after the given time can be.
+    private int firstPositionSince(long since) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getMaxStartedAt(middle) < since)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private long getMaxStartedAt(int position) {
+        return maxStartedAt[position / CHUNK_SIZE][position % CHUNK_SIZE];
+    }
+
+    // The keys of the lists a build is in. Pending builds are kept in each version instead of in a list.
+    private static List<String> keysOf(Build build) {
+        List<String> keys = new ArrayList<>(6);
+        keys.add("repository:" + build.repository());
+        keys.add("branch:" + build.branch());
+        keys.add("repository-branch:" + build.owner() + "\n" + build.repository() + "\n" + build.branch());
+        keys.add("commit:" + build.commit());
+        if (build.getStatus() != Build.Status.PENDING)
+            keys.add("status:" + build.getStatus());
+        if (build.resultKey() != null)
+            keys.add("result:" + build.resultKey());
+        return keys;
+    }
+
+    // The keys of the lists that every build that matches the query is in.
+    private static List<String> keysOf(BuildQuery query) {
+        List<String> keys = new ArrayList<>();
+        if (query.owner() != null && query.repository() != null && query.branch() != null) {
+            keys.add("repository-branch:" + query.owner() + "\n" + query.repository() + "\n" + query.branch());
+        } else {
+            // Without the owner, the shorter of the two lists is used.
+            if (query.repository() != null)
+                keys.add("repository:" + query.repository());
+            if (query.branch() != null)
+                keys.add("branch:" + query.branch());
+        }
+        if (query.commit() != null)
+            keys.add("commit:" + query.commit());
+        if (query.status() != null)
+            keys.add("status:" + query.status());
+        return keys;
+    }
+
+    /**
+     * Returns the builds of this version as a list that cannot be changed. Nothing is copied.
+     *
+     * @return the builds in the order they were created.
+     */
+    List<Build> asList() {
+        return new Builds();
+    }
+
+    private final class Builds extends AbstractList<Build> implements RandomAccess {
+        @Override
+        public Build get(int position) {
+            return BuildIndex.this.get(position);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package fundamentals.server;
+
+import fundamentals.server.gitTooling.CommitStatusQueue;
+import fundamentals.server.gitTooling.GithubCommitAPI.CommitStatus;
+import fundamentals.server.gitTooling.RepoManager;
+import fundamentals.server.helpers.Bash;
+import fundamentals.server.helpers.BuildOutputCache;
+import fundamentals.server.helpers.MavenBuild;
+import fundamentals.server.helpers.MavenDaemonPool;
+import fundamentals.server.helpers.MavenRepositoryCache;
+import fundamentals.server.logs.BuildLog;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single build that has been accepted by the {@code WebhookHandler}. The job is placed in the {@code BuildQueue}
+ * and is run by one of the build workers: it clones the repository, compiles it, runs the tests, stores the result
+ * in the {@code BuildStorage} and updates the commit status on Github.
+ */
+public class BuildJob implements Runnable {
+
+    private final String payload;
+    private final String buildID;
+    private final String owner;
+    private final String repository;
+    private final String branch;
+    private final String commitHash;
+    private final BuildStorage storage;
+    private final Environment environment;
+    private final CommitStatusQueue statuses;
+    private final MavenDaemonPool daemons;
+    private final MavenRepositoryCache repositoryCache;
+    private final BuildOutputCache outputs;
+
+    /**
+     * The time (in milliseconds) when the job was created, used to calculate how long the job waited in the queue.
+     */
+    private final long queuedAt = System.currentTimeMillis();
+
+    private final AtomicReference<Build.State> state = new AtomicReference<>(Build.State.QUEUED);
+
+    /**
+     * The shell that runs the current step of the build, killed if the job is cancelled.
+     */
+    private volatile Bash currentShell;
+
+    /**
+     * The job that cancelled this job, only set if the job has been cancelled.
+     */
+    private volatile BuildJob cancelledBy;
+
+    /**
+     * Creates a new build job for a push event.
+     *
+     * @param payload     the payload provided by the Github webhook.
+     * @param buildID     the ID of the build in the build storage.
+     * @param owner       the owner of the repository.
+     * @param repository  the repository.
+     * @param branch      the branch that was pushed to.
+     * @param commitHash  the commit that should be built.
+     * @param storage     the build storage where the result of the build is stored.
+     * @param environment the environment variables.
+     * @param statuses    the queue that delivers the commit statuses of the build to Github.
+     * @param daemons     the warm Maven daemons, used if the repository is configured to use them, may be null.
+     * @param repositoryCache the local Maven repository shared by the builds, may be null to use the default one.
+     * @param outputs     the outputs of the last successful build of each branch, may be null to always build from
+     *                    scratch.
+     */
+    public BuildJob(String payload, String buildID, String owner, String repository, String branch, String commitHash,
+                    BuildStorage storage, Environment environment, CommitStatusQueue statuses,
+                    MavenDaemonPool daemons, MavenRepositoryCache repositoryCache, BuildOutputCache outputs) {
+        this.payload = payload;
+        this.buildID = buildID;
+        this.owner = owner;
+        this.repository = repository;
+        this.branch = branch;
+        this.commitHash = commitHash;
+        this.storage = storage;
+        this.environment = environment;
+        this.statuses = statuses;
+        this.daemons = daemons;
+        this.repositoryCache = repositoryCache;
+        this.outputs = outputs;
+    }
+
+    /**
+     * @return the ID of the build in the build storage.
+     */
+    public String getBuildID() {
+        return buildID;
+    }
+
+    /**
+     * @return the owner of the repository.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the repository.
+     */
+    public String getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return the branch that was pushed to.
+     */
+    public String getBranch() {
+        return branch;
+    }
+
+    /**
+     * @return the commit that should be built.
+     */
+    public String getCommitHash() {
+        return commitHash;
+    }
+
+    /**
+     * Returns a key that is the same for all builds of the same branch in the same repository.
+     *
+     * @return the key "owner/repository/branch".
+     */
+    public String getBranchKey() {
+        return owner + "/" + repository + "/" + branch;
+    }
+
+    /**
+     * @return the current state of the job. A job can only be superseded while it is still waiting in the queue, and
+     * only cancelled while it is running, it is never rejected.
+     */
+    public Build.State getState() {
+        return state.get();
+    }
+
+    /**
+     * Marks the job as superseded by a newer push to the same branch, unless a build worker has already started it.
+     * The build is marked as superseded in the build storage and the commit status on Github is updated.
+     *
+     * @param newerJob the job that replaces this job.
+     * @return true if the job was superseded, false if the job has already started.
+     */
+    public boolean supersede(BuildJob newerJob) {
+        if (!state.compareAndSet(Build.State.QUEUED, Build.State.SUPERSEDED))
+            return false;
+
+        onSuperseded(newerJob);
+        return true;
+    }
+
+    /**
+     * Called once the job has been superseded. Stores the new state of the build and updates the commit status.
+     *
+     * @param newerJob the job that replaces this job.
+     */
+    protected void onSuperseded(BuildJob newerJob) {
+        System.out.println("Build " + buildID + " was superseded by build " + newerJob.getBuildID());
+
+        storage.update(buildID, build -> build
+                .toBuilder()
+                .state(Build.State.SUPERSEDED)
+                .supersededBy(newerJob.getBuildID())
+                .endedAt(System.currentTimeMillis())
+                .build());
+        storage.finishBuildLog(buildID);
+        storage.saveBuild(buildID);
+
+        setCommitStatus(CommitStatus.ERROR, "Skipped, superseded by " + newerJob.getCommitHash());
+    }
+
+    /**
+     * Cancels the job while it is running because a newer push arrived on the same branch. The process that is
+     * currently running for the build (including all processes it has started) is killed, the worker thread then
+     * cleans up the workspace and records the build as cancelled. A job that a build worker has picked up but not
+     * started yet is superseded instead, so that it never starts.
+     *
+     * @param newerJob the job that replaces this job.
+     * @return true if the job was cancelled or superseded, false if the job has already ended.
+     */
+    public boolean cancel(BuildJob newerJob) {
+        if (supersede(newerJob))
+            return true;
+
+        // Set before the state changes so that the worker thread always sees who cancelled the job.
+        cancelledBy = newerJob;
+        if (!state.compareAndSet(Build.State.RUNNING, Build.State.CANCELLED))
+            return false;
+
+        System.out.println("Cancelling build " + buildID + " in favour of build " + newerJob.getBuildID());
+
+        Bash shell = currentShell;
+        if (shell != null)
+            shell.cancel();
+        return true;
+    }
+
+    /**
+     * Runs the whole build: clone, compile, test and report the result.
+     * Nothing is done if the job was superseded before a build worker got to it.
+     */
+    @Override
+    public void run() {
+        if (!state.compareAndSet(Build.State.QUEUED, Build.State.RUNNING))
+            return;
+
+        storage.update(buildID, build -> build
+                .toBuilder()
+                .state(Build.State.RUNNING)
+                .queueWaitMillis(System.currentTimeMillis() - queuedAt)
+                .build());
+
+        try {
+            runBuild();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Build " + buildID + " failed unexpectedly");
+            e.printStackTrace();
+            if (state.get() == Build.State.CANCELLED) {
+                // Killing the build while it was cancelled can make it fail, that is still a cancelled build.
+                recordCancelled();
+            } else if (state.compareAndSet(Build.State.RUNNING, Build.State.FINISHED)) {
+                storage.update(buildID, build -> build
+                        .toBuilder()
+                        .compileStatus(Build.Status.ERROR)
+                        .testStatus(Build.Status.FAILURE)
+                        .endedAt(System.currentTimeMillis())
+                        .state(Build.State.FINISHED)
+                        .build());
+                storage.finishBuildLog(buildID);
+                storage.saveBuild(buildID);
+
+                // Replace the pending status, otherwise the commit would look like it is still being built.
+                setCommitStatus(CommitStatus.ERROR, "Build error");
+            } else if (state.get() == Build.State.CANCELLED) {
+                // Cancelled between the first check and the state change.
+                recordCancelled();
+            }
+            // Otherwise the result had already been recorded and reported, only a step after it failed (for example
+            // saving the outputs), which is logged above and does not change the result.
+        } finally {
+            // A cancelled job keeps its state so that the queue can tell it apart from a finished job.
+            state.compareAndSet(Build.State.RUNNING, Build.State.FINISHED);
+            currentShell = null;
+        }
+    }
+
+    /**
+     * @return true if the job has been cancelled by a newer push.
+     */
+    public boolean isCancelled() {
+        return state.get() == Build.State.CANCELLED;
+    }
+
+    /**
+     * Returns the URL Github will show the user associated with the Github status of a build.
+     *
+     * @param environment the environment variables, with the HOSTNAME of the server.
+     * @param buildID     the ID of the build.
+     * @return the URL of the page of the build.
+     */
+    public static String getTargetUrl(Environment environment, String buildID) {
+        return "http://" + environment.getValue("HOSTNAME") + "/ui/build/" + buildID;
+    }
+
+    // Places a commit status in the queue, the queue sends it to Github in the background and retries if needed.
+    private void setCommitStatus(CommitStatus status, String description) {
+        statuses.setCommitStatus(owner, repository, commitHash, status, description,
+                getTargetUrl(environment, buildID));
+    }
+
+    // Creates the shell for the next step of the build, the shell is remembered so that it can be killed by cancel().
+    private Bash newShell() {
+        Bash shell = new Bash();
+        currentShell = shell;
+        // The job may have been cancelled while the previous step was running, kill the new shell right away.
+        if (isCancelled())
+            shell.cancel();
+        return shell;
+    }
+
+    private void runBuild() throws IOException {
+        // The repository is cloned while Github receives the pending status.
+        setCommitStatus(CommitStatus.PENDING, "Compiling and running tests...");
+        CommitStatus status;
+        String description;
+
+        // Git runs in the shells of the build as well, so cancelling the build also stops a clone or fetch.
+        RepoManager manager = new RepoManager(payload, environment, this::newShell);
+        BuildLog log = storage.getLogs().getLiveLog(buildID);
+
+        try {
+            // Clone the repo and check out the pushed commit.
+            manager.cloneRepo();
+            manager.checkoutCommit();
+
+            // Compile and test with a single Maven run, the logs are written to the build log while Maven runs.
+            // Each line goes to the compile or test log depending on the stage Maven is in.
+            // Repositories that are configured for it are built on a warm Maven daemon instead of a new Maven.
+            Bash shell = newShell();
+            boolean useDaemon = daemons != null && daemons.isUsedBy(owner, repository);
+            MavenDaemonPool.Daemon daemon = useDaemon ? daemons.acquire() : null;
+            String pomKey = null;
+            AtomicBoolean offlineMiss = new AtomicBoolean(false);
+            MavenBuild maven;
+            boolean testsPassed;
+            // Whatever goes wrong from here on, the daemon goes back to the pool and the installed artifacts of this
+            // build are removed.
+            try {
+                List<String> command = new ArrayList<>(daemon != null ? daemon.command() : MavenBuild.defaultCommand());
+
+                // The dependencies come from the shared repository, offline if this pom.xml has been built before.
+                if (repositoryCache != null) {
+                    pomKey = repositoryCache.key(manager.getRepoDir(), command);
+                    command.addAll(repositoryCache.arguments(pomKey, buildID));
+                }
+
+                // Only the sources that changed since the last successful build of the branch are compiled again.
+                if (outputs != null)
+                    outputs.restore(owner, repository, branch, manager.getRepoDir(), pomKey);
+
+                maven = new MavenBuild(manager.getRepoDir(), shell, command);
+                shell.addOutputListener(line -> {
+                    log.append(maven.getStage() == MavenBuild.Stage.COMPILE ? "compile" : "test", line.text());
+                    if (MavenRepositoryCache.isOfflineMiss(line.text()))
+                        offlineMiss.set(true);
+                });
+                testsPassed = maven.run();
+            } finally {
+                if (daemon != null)
+                    daemons.release(daemon, isCancelled());
+                if (repositoryCache != null)
+                    repositoryCache.cleanUp(buildID);
+            }
+
+            // Everything this pom.xml needs has been downloaded once the build has succeeded.
+            if (repositoryCache != null) {
+                if (testsPassed)
+                    repositoryCache.setResolved(pomKey);
+                else if (offlineMiss.get())
+                    repositoryCache.forget(pomKey);
+            }
+            boolean didCompile = maven.didCompile();
+            storage.update(buildID, build -> build.toBuilder().compileResult(toCompileResult(maven, shell)).build());
+
+            if (didCompile) {
+                System.out.println("Did compile without error");
+                storage.update(buildID, build -> build
+                        .toBuilder()
+                        .compileStatus(Build.Status.SUCCESS)
+                        .testResult(toTestResult(maven, shell))
+                        .build());
+            }
+
+            // The job can no longer be cancelled once it has finished, so the result that is reported below is
+            // always the result the queue sees.
+            if (!state.compareAndSet(Build.State.RUNNING, Build.State.FINISHED)) {
+                recordCancelled();
+                return;
+            }
+
+            if (didCompile) {
+                if (testsPassed) {
+                    System.out.println("Testsuite executed without any failures");
+                    storage.update(buildID, build -> build.toBuilder().testStatus(Build.Status.SUCCESS).build());
+                    status = CommitStatus.SUCCESS;
+                    description = "Tests passed";
+                } else {
+                    System.out.println("Testsuite failed");
+                    storage.update(buildID, build -> build.toBuilder().testStatus(Build.Status.FAILURE).build());
+                    status = CommitStatus.FAILURE;
+                    description = "Tests failed";
+                }
+            } else {
+                System.err.println("Compilation failed");
+                // Maven stops before the tests when the project does not compile.
+                storage.update(buildID, build -> build
+                        .toBuilder()
+                        .compileStatus(Build.Status.ERROR)
+                        .testStatus(Build.Status.FAILURE)
+                        .build());
+                status = CommitStatus.ERROR;
+                description = "Compile error";
+            }
+
+            // The build has finished, store the build ended timestamp and save the build to disk.
+            storage.update(buildID, build -> build
+                    .toBuilder()
+                    .endedAt(System.currentTimeMillis())
+                    .state(Build.State.FINISHED)
+                    .build());
+            storage.finishBuildLog(buildID);
+            storage.saveBuild(buildID);
+
+            // Update the commit status for the commit on Github.
+            setCommitStatus(status, description);
+
+            // The next build of the branch starts from the outputs of this build.
+            if (outputs != null && testsPassed)
+                outputs.save(owner, repository, branch, manager.getRepoDir(), pomKey);
+        } finally {
+            // Remove the cloned repo from disk (no need to store this anymore because the build has completed).
+            manager.cleanUp();
+        }
+    }
+
+    // The exit code and how long the compile stage of the Maven run took, the exit code is 0 if the tests were reached.
+    private static Build.StepResult toCompileResult(MavenBuild maven, Bash shell) {
+        int exitCode = maven.didCompile() ? 0 : shell.getExitCode();
+        return new Build.StepResult(exitCode, maven.getCompileWallTime().toMillis(), maven.getCompileCpuTime().toMillis());
+    }
+
+    // The exit code of the Maven run and how long it worked after the compile stage.
+    private static Build.StepResult toTestResult(MavenBuild maven, Bash shell) {
+        Duration wallTime = shell.getWallTime().minus(maven.getCompileWallTime());
+        Duration cpuTime = shell.getCpuTime().minus(maven.getCompileCpuTime());
+        return new Build.StepResult(shell.getExitCode(), Math.max(0, wallTime.toMillis()), Math.max(0, cpuTime.toMillis()));
+    }
+
+    // Stores that the build was cancelled and tells Github that the commit will not be built.
+    private void recordCancelled() {
+        System.out.println("Build " + buildID + " was cancelled");
+        BuildJob newerJob = cancelledBy;
+
+        // Steps that never got to finish are marked as cancelled instead of being left as pending.
+        storage.update(buildID, build -> build
+                .toBuilder()
+                .compileStatus(build.compileStatus() == Build.Status.PENDING ? Build.Status.CANCELLED : build.compileStatus())
+                .testStatus(build.testStatus() == Build.Status.PENDING ? Build.Status.CANCELLED : build.testStatus())
+                .state(Build.State.CANCELLED)
+                .cancelledBy(newerJob != null ? newerJob.getBuildID() : null)
+                .endedAt(System.currentTimeMillis())
+                .build());
+        storage.finishBuildLog(buildID);
+        storage.saveBuild(buildID);
+
+        setCommitStatus(CommitStatus.ERROR,
+                newerJob != null ? "Cancelled, superseded by " + newerJob.getCommitHash() : "Cancelled");
+    }
+}
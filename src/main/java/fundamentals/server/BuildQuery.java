@@ -0,0 +1,53 @@
+package fundamentals.server;
+
+/**
+ * Describes which builds {@code BuildStorage.query()} should return. Every criterion that is null (or 0 for
+ * {@code since}) matches all builds. The builds are returned newest first, so the latest build of a branch is
+ * found with a limit of 1.
+ *
+ * @param owner      the owner of the repository, or null.
+ * @param repository the name of the repository (without the owner), or null.
+ * @param branch     the branch, or null.
+ * @param commit     the full commit SHA, or null.
+ * @param status     the status of the build as a whole (see {@code Build.getStatus()}), or null.
+ * @param since      only builds that started at or after this time, in milliseconds since the epoch, or 0.
+ * @param limit      the maximum number of builds to return.
+ */
+public record BuildQuery(String owner, String repository, String branch, String commit, Build.Status status,
+                         long since, int limit) {
+
+    /**
+     * @throws IllegalArgumentException if the limit is not positive.
+     */
+    public BuildQuery {
+        if (limit <= 0)
+            throw new IllegalArgumentException("The limit must be positive");
+    }
+
+    /**
+     * Creates a query for the latest build of a branch.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the name of the repository.
+     * @param branch     the branch.
+     * @return the query.
+     */
+    public static BuildQuery latest(String owner, String repository, String branch) {
+        return new BuildQuery(owner, repository, branch, null, null, 0, 1);
+    }
+
+    /**
+     * Returns true if the build matches every criterion of the query.
+     *
+     * @param build the build to check.
+     * @return true if the build matches.
+     */
+    public boolean matches(Build build) {
+        return (owner == null || owner.equals(build.owner()))
+                && (repository == null || repository.equals(build.repository()))
+                && (branch == null || branch.equals(build.branch()))
+                && (commit == null || commit.equals(build.commit()))
+                && (status == null || status == build.getStatus())
+                && build.startedAt() >= since;
+    }
+}
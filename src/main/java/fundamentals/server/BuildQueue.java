@@ -0,0 +1,174 @@
+package fundamentals.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded queue of build jobs that are run by a fixed number of build workers. The {@code WebhookHandler} only
+ * validates the push event and places a {@code BuildJob} in the queue, which means that the HTTP request can be
+ * answered immediately while the (slow) build is run in the background.
+ * <p>
+ * Only the newest push to a branch matters, so the queue keeps track of the job that is waiting for each
+ * (owner, repository, branch). When a new push arrives for a branch that already has a job waiting, the waiting job
+ * is superseded and removed from the queue instead of being built. If the queue is created with the
+ * "cancel running builds" policy, a job that is already running for the branch is cancelled as well.
+ */
+public class BuildQueue {
+
+    /**
+     * The number of builds that can run at the same time if nothing else is specified in the environment.
+     */
+    public static final int DEFAULT_WORKER_COUNT = 2;
+
+    /**
+     * The number of builds that can wait in the queue if nothing else is specified in the environment.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+    private final BlockingQueue<Runnable> pending;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Maps the branch key "owner/repository/branch" to the job that is waiting in the queue for that branch.
+     */
+    private final ConcurrentHashMap<String, BuildJob> waitingJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Maps the branch key "owner/repository/branch" to the job that a build worker is running for that branch.
+     */
+    private final ConcurrentHashMap<String, BuildJob> runningJobs = new ConcurrentHashMap<>();
+
+    /**
+     * If true, a running build is cancelled when a newer push arrives on the same branch.
+     */
+    private final boolean cancelRunningBuilds;
+
+    /**
+     * Creates a new build queue with its own pool of build workers. Running builds are never cancelled.
+     *
+     * @param workerCount   the number of builds that can run at the same time.
+     * @param queueCapacity the number of builds that can wait in the queue before new builds are rejected.
+     */
+    public BuildQueue(int workerCount, int queueCapacity) {
+        this(workerCount, queueCapacity, false);
+    }
+
+    /**
+     * Creates a new build queue with its own pool of build workers.
+     *
+     * @param workerCount         the number of builds that can run at the same time.
+     * @param queueCapacity       the number of builds that can wait in the queue before new builds are rejected.
+     * @param cancelRunningBuilds true if a running build should be cancelled when a newer push arrives on its branch.
+     */
+    public BuildQueue(int workerCount, int queueCapacity, boolean cancelRunningBuilds) {
+        this.cancelRunningBuilds = cancelRunningBuilds;
+        pending = new ArrayBlockingQueue<>(queueCapacity);
+        executor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, pending, new WorkerThreadFactory()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                // Once a worker has picked up the job it can no longer be superseded, only cancelled.
+                if (runnable instanceof BuildJob job) {
+                    waitingJobs.remove(job.getBranchKey(), job);
+                    if (job.getState() == Build.State.QUEUED)
+                        runningJobs.put(job.getBranchKey(), job);
+                }
+            }
+
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable) {
+                if (runnable instanceof BuildJob job)
+                    runningJobs.remove(job.getBranchKey(), job);
+            }
+        };
+    }
+
+    /**
+     * Creates a new build queue where the number of workers and the queue capacity are read from the environment
+     * keys "BUILD_WORKERS" and "BUILD_QUEUE_CAPACITY". Running builds are only cancelled by newer pushes if the
+     * key "CANCEL_RUNNING_BUILDS" is set to true.
+     *
+     * @param environment the environment variables.
+     * @return a new build queue.
+     */
+    public static BuildQueue fromEnvironment(Environment environment) {
+        int workerCount = environment.getIntValueOrElse("BUILD_WORKERS", DEFAULT_WORKER_COUNT);
+        int queueCapacity = environment.getIntValueOrElse("BUILD_QUEUE_CAPACITY", DEFAULT_QUEUE_CAPACITY);
+        boolean cancelRunningBuilds = environment.getBooleanValueOrElse("CANCEL_RUNNING_BUILDS", false);
+        return new BuildQueue(Math.max(1, workerCount), Math.max(1, queueCapacity), cancelRunningBuilds);
+    }
+
+    /**
+     * Places a build job in the queue. The job will be run as soon as a build worker is available.
+     * If another job for the same branch is still waiting in the queue, that job is superseded by the new job.
+     * If the queue cancels running builds, a job that is running for the same branch is cancelled.
+     *
+     * @param job the job to run.
+     * @return true if the job was accepted, false if the queue is full.
+     */
+    public synchronized boolean enqueue(BuildJob job) {
+        BuildJob waitingJob = waitingJobs.get(job.getBranchKey());
+        if (waitingJob != null && waitingJob.supersede(job))
+            executor.remove(waitingJob);
+
+        BuildJob runningJob = runningJobs.get(job.getBranchKey());
+        if (cancelRunningBuilds && runningJob != null)
+            runningJob.cancel(job);
+
+        try {
+            waitingJobs.put(job.getBranchKey(), job);
+            executor.execute(job);
+            return true;
+        } catch (RejectedExecutionException e) {
+            waitingJobs.remove(job.getBranchKey(), job);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of jobs that are waiting for a build worker.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the position of a build in the queue, where 1 means that the build is next in line.
+     *
+     * @param buildID the ID of the build.
+     * @return the position of the build, or -1 if the build is not waiting in the queue.
+     */
+    public int getQueuePosition(String buildID) {
+        int position = 1;
+        for (Runnable runnable : pending) {
+            if (runnable instanceof BuildJob job && job.getBuildID().equals(buildID))
+                return position;
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Stops accepting new jobs. Jobs that are already running or waiting in the queue will still be run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // Gives the build workers readable names, which makes thread dumps a lot easier to read.
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "build-worker-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package fundamentals.server;
+
+import fundamentals.server.helpers.FileHelper;
+import fundamentals.server.helpers.MavenBuild;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Decides when the result of an earlier build can be reused instead of building a commit again, for example when a
+ * commit that was built on a feature branch is fast-forwarded to main, pushed again, or when a revert brings back a
+ * tree that has been built before.
+ * <p>
+ * The result of a build only depends on the files of the commit and on how it is built, so the result key of a build
+ * is the hash of the git tree of the commit, together with a fingerprint of the build configuration: the Maven
+ * command and goals, the JDK and "BUILD_CONFIG_VERSION" from the environment, which can be changed to make every
+ * build run again. Only builds that succeeded are reused. A failure can be caused by a flaky test or a dependency
+ * that could not be downloaded, and is built again.
+ */
+public class BuildResults {
+
+    /**
+     * The version of the build configuration if nothing else is specified in the environment.
+     */
+    public static final String DEFAULT_CONFIG_VERSION = "1";
+
+    private final boolean enabled;
+    private final String configVersion;
+
+    /**
+     * Creates the result keys for a build configuration.
+     *
+     * @param enabled       false to never reuse a result, builds still get a result key.
+     * @param configVersion the version of the build configuration, change it to make every build run again.
+     */
+    public BuildResults(boolean enabled, String configVersion) {
+        this.enabled = enabled;
+        this.configVersion = configVersion;
+    }
+
+    /**
+     * Creates the result keys from the environment keys "REUSE_BUILD_RESULTS" (true by default) and
+     * "BUILD_CONFIG_VERSION".
+     *
+     * @param environment the environment variables.
+     * @return the result keys.
+     */
+    public static BuildResults fromEnvironment(Environment environment) {
+        String configVersion = environment.getValue("BUILD_CONFIG_VERSION");
+        return new BuildResults(environment.getBooleanValueOrElse("REUSE_BUILD_RESULTS", true),
+                configVersion == null || configVersion.isBlank() ? DEFAULT_CONFIG_VERSION : configVersion.strip());
+    }
+
+    /**
+     * @return true if the results of earlier builds should be reused.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the result key of a commit: its tree hash and the fingerprint of the build configuration.
+     *
+     * @param treeHash the hash of the git tree of the commit, "tree_id" in the push event.
+     * @param maven    the Maven executable the commit is built with, "mvn" or the Maven daemon client.
+     * @return the result key, or null if the tree hash is not known.
+     */
+    public String key(String treeHash, String maven) {
+        if (treeHash == null || treeHash.isBlank())
+            return null;
+        return treeHash + "-" + fingerprint(maven);
+    }
+
+    // A short hash of everything besides the files of the commit that decides the result of the build.
+    private String fingerprint(String maven) {
+        List<String> config = List.of(
+                configVersion,
+                maven,
+                String.join(" ", MavenBuild.GOALS),
+                System.getProperty("java.version"),
+                String.valueOf(System.getenv("JAVA_HOME")));
+        byte[] hash = FileHelper.sha256().digest(String.join("\n", config).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 8);
+    }
+
+    /**
+     * Returns true if the result of a build can be given to a later build with the same result key.
+     *
+     * @param build the build.
+     * @return true if the build has finished and succeeded.
+     */
+    public static boolean isReusable(Build build) {
+        return build.state() == Build.State.FINISHED && build.getStatus() == Build.Status.SUCCESS;
+    }
+}
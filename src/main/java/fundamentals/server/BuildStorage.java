@@ -1,19 +1,57 @@
 package fundamentals.server;
 
+import fundamentals.server.logs.BuildLog;
+import fundamentals.server.helpers.DurableFile;
+import fundamentals.server.logs.BuildLogStore;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 
 /**
  * Represents a persistent storage that will store all builds both in main-memory but also on disk in JSON format.
- * Everytime the server restarts the builds.json file will be loaded into main-memory. Use the {@code saveToDisk}
- * method when a new build is added to ensure that we keep an updated version of the builds on disk.
+ * Everytime the server restarts the builds.json file will be loaded into main-memory. Use the {@code saveBuild}
+ * method when a build has changed to ensure that we keep an updated version of the builds on disk.
+ * <p>
+ * The builds file is a snapshot of all builds. Changes made after the snapshot are appended to a journal next to it
+ * ("builds.json.journal"), one build per line, so saving a build only costs as much as writing that build. When the
+ * server starts the snapshot is loaded and the journal is replayed on top of it. Once the journal has grown to
+ * {@code COMPACT_AFTER} entries a new snapshot is written and the journal is emptied.
+ * <p>
+ * Everything is written so that a crash cannot destroy the build history: the journal is forced to disk after
+ * every write and a snapshot is written to a temporary file, forced to disk and then renamed over the builds file.
+ * Builds that are saved close together (for example by several build workers) are committed as a group, with a
+ * single write and a single fsync of the journal every flush interval.
+ * <p>
+ * In main-memory every build is a {@code Build}, JSON is only used on disk and in the HTTP responses. The builds
+ * file is written with one build per line, so at startup it is read one line at a time. Builds stored by older
+ * versions of the server can still have their compile and test logs inside the build, those logs are not kept in
+ * main-memory: only the position of the build in the builds file is remembered, and the logs are read from there
+ * when they are asked for.
+ * <p>
+ * Reading builds never blocks. Builds are immutable and every change publishes a new version of the
+ * {@code BuildIndex}, so a reader (like the dashboard) always sees a consistent set of builds while build workers
+ * and webhooks change them. Changes are serialized by the lock of this storage.
  */
 public class BuildStorage {
 
@@ -23,11 +61,40 @@ public class BuildStorage {
     public static final String DEFAULT_BUILD_STORAGE_FILE = "builds.json";
 
     /**
-     * The build ID is a universally unique identifier (UUID).
-     * If we don't want to do a linear search when the user asks for information about a build with a certain build ID,
-     * then we should keep a lookup table that maps each build ID to an array index.
+     * The directory (next to the builds file) where the logs of the builds are stored.
      */
-    private final HashMap<String, Integer> buildIDToArrayIndex = new HashMap<>();
+    public static final String LOGS_DIRECTORY = "logs";
+
+    /**
+     * The journal file is the builds file with this suffix.
+     */
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * The number of journal entries after which a new snapshot is written.
+     */
+    public static final int COMPACT_AFTER = 1000;
+
+    /**
+     * A new snapshot is written to the builds file with this suffix before it replaces the builds file.
+     */
+    public static final String TEMP_SUFFIX = DurableFile.TEMP_SUFFIX;
+
+    /**
+     * How long (in milliseconds) saved builds are collected before they are committed to disk as a group, if
+     * nothing else is specified in the environment.
+     */
+    public static final int DEFAULT_FLUSH_INTERVAL_MS = 100;
+
+    /**
+     * Where a build is stored in the builds file.
+     *
+     * @param offset the position of the first byte of the build.
+     * @param length the number of bytes of the build.
+     * @param stored the build as it is stored there, to tell if it has changed since.
+     */
+    private record RecordLocation(long offset, int length, Build stored) {
+    }
 
     /**
      * The path to the file where we should save all our builds.
@@ -35,49 +102,104 @@ public class BuildStorage {
     private final String filePath;
 
     /**
-     * All the builds are stored here.
+     * The path to the journal with the builds that have changed since the builds file was written.
      */
-    private JSONArray builds;
+    private final String journalPath;
+
+    /**
+     * The number of entries in the journal, guarded by {@code diskLock}.
+     */
+    private int journalEntries = 0;
+
+    /**
+     * Held while the journal or the builds file is written, so that fsyncs don't block readers of the storage.
+     */
+    private final Object diskLock = new Object();
+
+    /**
+     * How long saved builds are collected before they are committed, 0 commits every build on its own.
+     */
+    private final long flushIntervalMillis;
+
+    /**
+     * The builds that have been saved since the last group commit, and the commit that will write them.
+     */
+    private final Set<UUID> unsavedBuilds = new LinkedHashSet<>();
+    private CompletableFuture<Boolean> nextCommit = new CompletableFuture<>();
+
+    private ScheduledExecutorService flusher;
+    private boolean closed = false;
+
+    /**
+     * All the builds, in the order they were created, together with a lookup table from build ID to position and the
+     * indexes used by {@code query()}. Every change publishes a new immutable version here, so readers never lock.
+     * Changes are made while holding the lock of this storage.
+     */
+    private volatile BuildIndex builds = new BuildIndex();
+
+    /**
+     * The builds that still have their compile and test logs inside the builds file, and where they are stored.
+     */
+    private final ConcurrentHashMap<UUID, RecordLocation> inlineLogRecords = new ConcurrentHashMap<>();
+
+    /**
+     * The builds file that the locations in {@code inlineLogRecords} point into, guarded by {@code this}.
+     */
+    private FileChannel snapshotChannel;
+
+    /**
+     * The logs of the builds that have not finished yet.
+     */
+    private final BuildLogStore logs;
+
+    /**
+     * Called every time a build is added or changed.
+     */
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Creates an instance of the {@code BuildStorage} class and loads the builds file from disk into main-memory.
      * This method should only be called from unit-tests. If you are not working on unit tests then call the {@code loadBuildStorageFile()}
      * method instead that will use the default "builds.json" file.
+     * Every saved build is committed to disk on its own.
      *
      * @param filePath the path to the builds file.
      */
     public static BuildStorage loadBuildStorageFile(String filePath) {
-        BuildStorage storage = new BuildStorage(filePath);
-
-        // Read the builds from disk into main-memory.
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath, StandardCharsets.UTF_8))) {
-            StringBuilder jsonText = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                jsonText.append(line);
-            }
+        return loadBuildStorageFile(filePath, 0);
+    }
 
-            // Parse the JSON text to an actual JSONArray object.
-            storage.builds = new JSONArray(jsonText.toString());
+    /**
+     * Creates an instance of the {@code BuildStorage} class and loads the builds file from disk into main-memory.
+     *
+     * @param filePath            the path to the builds file.
+     * @param flushIntervalMillis how long saved builds are collected before they are committed to disk as a group,
+     *                            0 to commit every saved build on its own.
+     */
+    public static BuildStorage loadBuildStorageFile(String filePath, long flushIntervalMillis) {
+        BuildStorage storage = new BuildStorage(filePath, flushIntervalMillis);
 
-            // Create mappings from build ID to array index (this is only done for performance).
-            for (int i = 0; i < storage.builds.length(); i++) {
-                JSONObject build = storage.builds.getJSONObject(i);
-                String buildID = build.getString("build_id");
-                storage.buildIDToArrayIndex.put(buildID, i);
-            }
-        } catch (FileNotFoundException e) {
+        // Read the builds from disk into main-memory.
+        long loadStarted = System.nanoTime();
+        try {
+            if (!storage.loadSnapshot())
+                storage.loadLegacySnapshot();
+        } catch (FileNotFoundException | NoSuchFileException e) {
             // Builds file does not exist. Create a builds file with an empty array inside.
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath, StandardCharsets.UTF_8))) {
-                writer.write("[]");
-                storage.builds = new JSONArray();
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            synchronized (storage.diskLock) {
+                storage.writeSnapshot();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        storage.replayJournal();
+        storage.startFlusher();
+
+        long loadMillis = (System.nanoTime() - loadStarted) / 1_000_000;
+        System.out.println("Loaded " + storage.size() + " builds from " + filePath + " in " + loadMillis + " ms ("
+                + storage.inlineLogRecords.size() + " with logs left in the builds file)");
+
         return storage;
     }
 
@@ -85,97 +207,842 @@ public class BuildStorage {
      * Creates an instance of the {@code BuildStorage} class and loads the builds file "builds.json" from disk into main-memory.
      */
     public static BuildStorage loadBuildStorageFile() {
-        return loadBuildStorageFile(DEFAULT_BUILD_STORAGE_FILE);
+        return loadBuildStorageFile(DEFAULT_BUILD_STORAGE_FILE, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Loads the builds file "builds.json" with the flush interval (in milliseconds) given by PERSIST_FLUSH_INTERVAL_MS
+     * in the environment.
+     *
+     * @param environment the environment to read the settings from.
+     * @return the build storage.
+     */
+    public static BuildStorage fromEnvironment(Environment environment) {
+        int flushInterval = environment.getIntValueOrElse("PERSIST_FLUSH_INTERVAL_MS", DEFAULT_FLUSH_INTERVAL_MS);
+        return loadBuildStorageFile(DEFAULT_BUILD_STORAGE_FILE, Math.max(0, flushInterval));
     }
 
     /**
      * We want the programmer to use loadBuildStorageFile() to create an instance of this class and never the constructor.
      *
-     * @param filePath the path to the builds file.
+     * @param filePath            the path to the builds file.
+     * @param flushIntervalMillis how long saved builds are collected before they are committed to disk.
      */
-    private BuildStorage(String filePath) {
+    private BuildStorage(String filePath, long flushIntervalMillis) {
         this.filePath = filePath;
+        this.journalPath = filePath + JOURNAL_SUFFIX;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        // The logs are stored next to the builds file.
+        File parent = new File(filePath).getAbsoluteFile().getParentFile();
+        this.logs = new BuildLogStore(new File(parent, LOGS_DIRECTORY));
     }
 
     /**
-     * Will add a new build to the array stored in main-memory. However, this call will not update the file on disk.
-     * If you want to update the file on disk then you have to call {@code saveToDisk()} after you have
+     * Will add a new build to the builds stored in main-memory. However, this call will not update the file on disk.
+     * If you want to update the file on disk then you have to call {@code saveBuild()} after you have
      * added your build.
      *
      * @param owner      the owner of the repository.
      * @param branch     the branch.
      * @param repository the repository.
      * @param commitHash the commit hash.
-     * @return an object of type {@code JSONObject} that contains information about the current build.
-     */
-    public synchronized JSONObject addNewBuild(String owner, String repository, String branch, String commitHash) {
-        JSONObject build = new JSONObject();
-
-        // Generate a unique identifier for this build.
-        String buildID = UUID.randomUUID().toString();
-
-        // The information we will store about each build.
-        build.put("build_id", buildID);
-        build.put("owner", owner);
-        build.put("branch", branch);
-        build.put("repository", repository);
-        build.put("commit", commitHash);
-        build.put("build_started", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
-        build.put("build_ended", "not yet");
-        build.put("compile_status", "pending");
-        build.put("test_status", "pending");
-        build.put("compile_logs", new JSONArray());
-        build.put("test_logs", new JSONArray());
-
-        // Add the build to the array and also store the mapping from build ID -> array index.
-        builds.put(build);
-        buildIDToArrayIndex.put(buildID, buildIDToArrayIndex.size());
+     * @return the new build, waiting in the queue.
+     */
+    public Build addNewBuild(String owner, String repository, String branch, String commitHash) {
+        return addNewBuild(owner, repository, branch, commitHash, null);
+    }
+
+    /**
+     * Adds a new build with a result key, see {@code addNewBuild(String, String, String, String)}.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @param branch     the branch.
+     * @param commitHash the commit hash.
+     * @param resultKey  the tree of the commit and the build configuration, see {@code BuildResults}, or null.
+     * @return the new build, waiting in the queue.
+     */
+    public Build addNewBuild(String owner, String repository, String branch, String commitHash, String resultKey) {
+        Build build = Build.create(owner, repository, branch, commitHash).toBuilder().resultKey(resultKey).build();
+
+        synchronized (this) {
+            builds = builds.plus(build);
 
+            // The log can be followed from the moment the build is created, even if it has to wait in the queue.
+            logs.create(build.getBuildID());
+        }
+
+        notifyChangeListeners();
+        return build;
+    }
+
+    /**
+     * Adds a build that has already finished with the result of an earlier build with the same result key, instead
+     * of being built. The build shares the log of the earlier build. Like {@code addNewBuild()} this call will not
+     * update the file on disk.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @param branch     the branch.
+     * @param commitHash the commit hash.
+     * @param result     the earlier build, see {@code findReusableResult()}.
+     * @return the finished build.
+     */
+    public Build addReusedBuild(String owner, String repository, String branch, String commitHash, Build result) {
+        Build build = Build.create(owner, repository, branch, commitHash)
+                .withResultOf(result, System.currentTimeMillis());
+
+        synchronized (this) {
+            builds = builds.plus(build);
+        }
+
+        notifyChangeListeners();
         return build;
     }
 
+    /**
+     * Returns the newest build with a result key whose result can be reused, see {@code BuildResults.isReusable()}.
+     *
+     * @param resultKey the result key.
+     * @return the build, or null if no build with the result key can be reused.
+     */
+    public Build findReusableResult(String resultKey) {
+        if (resultKey == null)
+            return null;
+        return builds.findByResultKey(resultKey, BuildResults::isReusable);
+    }
+
     /**
      * Returns the number of builds stored in main-memory.
      *
      * @return number of builds.
      */
     public int size() {
-        return builds.length();
+        return builds.size();
     }
 
     /**
-     * Returns a JSON object that contains information about a build given the build ID.
+     * Returns a build given the build ID.
      *
      * @param buildID specify which build you want information about using the build ID.
-     * @return an object of type {@code JSONObject} that contains relevant information about the build.
+     * @return the build, or null if there is no build with that ID.
+     */
+    public Build getBuild(String buildID) {
+        UUID id = parseBuildID(buildID);
+        return id == null ? null : getBuild(id);
+    }
+
+    /**
+     * Returns a build given the build ID.
+     *
+     * @param buildID the build ID.
+     * @return the build, or null if there is no build with that ID.
+     */
+    public Build getBuild(UUID buildID) {
+        return builds.get(buildID);
+    }
+
+    /**
+     * Returns a build together with the sequence number of its latest change, which changes every time the build
+     * does.
+     *
+     * @param buildID the build ID.
+     * @return the build and its sequence number, or null if there is no build with that ID.
+     */
+    public BuildChanges.Change getChange(String buildID) {
+        UUID id = parseBuildID(buildID);
+        BuildIndex current = builds;
+        int position = id == null ? -1 : current.positionOf(id);
+        return position < 0 ? null : new BuildChanges.Change(current.sequenceOf(position), current.get(position));
+    }
+
+    /**
+     * Returns true if a build will never change again: it has ended and its log has been stored.
+     *
+     * @param build the build.
+     * @return true if the build is final.
+     */
+    public boolean isFinal(Build build) {
+        return build.hasEnded() && logs.getLiveLog(build.getBuildID()) == null;
+    }
+
+    /**
+     * Changes a build in main-memory. Like {@code addNewBuild()} this call will not update the file on disk, call
+     * {@code saveBuild()} afterwards.
+     *
+     * @param buildID the ID of the build to change.
+     * @param change  creates the changed build from the current build, for example
+     *                {@code b -> b.toBuilder().state(...).build()}.
+     * @return the changed build, or null if there is no build with that ID.
+     */
+    public Build update(String buildID, UnaryOperator<Build> change) {
+        UUID id = parseBuildID(buildID);
+        if (id == null)
+            return null;
+
+        Build build;
+        synchronized (this) {
+            int position = builds.positionOf(id);
+            if (position < 0)
+                return null;
+
+            build = change.apply(builds.get(position));
+            if (build.idHigh() != id.getMostSignificantBits() || build.idLow() != id.getLeastSignificantBits())
+                throw new IllegalArgumentException("The ID of a build cannot be changed");
+            builds = builds.with(position, build);
+        }
+
+        notifyChangeListeners();
+        return build;
+    }
+
+    /**
+     * Returns the sequence number of the latest change to the builds. Every change (a build that is added or
+     * updated) gets a higher sequence number than the changes before it.
+     *
+     * @return the sequence number.
+     */
+    public long getSequence() {
+        return builds.sequence();
+    }
+
+    /**
+     * Returns the builds that have changed after a sequence number, in the order of their latest change. Only the
+     * changes after the sequence number are looked at, so asking often for the latest changes costs very little.
+     *
+     * @param since the sequence number of the latest change the caller knows about, 0 for every build.
+     * @param limit the maximum number of builds to return, at least 1.
+     * @return the changed builds, and the sequence number to ask for the next changes with.
+     */
+    public BuildChanges getChangesSince(long since, int limit) {
+        return builds.changesSince(since, limit);
+    }
+
+    /**
+     * Registers a listener that is called every time a build is added or changed, from the thread that made the
+     * change and after the lock of the storage has been released.
+     *
+     * @param listener the listener.
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener that was registered with {@code addChangeListener()}.
+     *
+     * @param listener the listener.
+     */
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    private void notifyChangeListeners() {
+        for (Runnable listener : changeListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                // A broken listener must not stop the build that made the change.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static UUID parseBuildID(String buildID) {
+        try {
+            return UUID.fromString(buildID);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the log of a build. The log of a build that has not finished can still grow, the log of a finished
+     * build is opened from the pointer stored in the build. Builds that were stored before logs were moved out of
+     * the builds file still have their compile and test logs inside the builds file.
+     *
+     * @param buildID specify which build you want the log of using the build ID.
+     * @return the log of the build, or null if there is no build with that ID.
      */
-    public JSONObject getBuild(String buildID) {
-        // If we can't find a build with that ID then we will return null.
-        if (!buildIDToArrayIndex.containsKey(buildID))
+    public BuildLog getBuildLog(String buildID) {
+        BuildLog liveLog = logs.getLiveLog(buildID);
+        if (liveLog != null)
+            return liveLog;
+
+        Build build = getBuild(buildID);
+        if (build == null)
             return null;
 
-        int index = buildIDToArrayIndex.get(buildID);
+        // A build that reused the result of another build has the log of that build.
+        if (build.logs() != null)
+            return logs.open(build.reusedFrom() != null ? build.reusedFrom() : buildID, build.logs());
+
+        RecordLocation location = inlineLogRecords.get(build.getID());
+        if (location != null)
+            return readInlineLogs(buildID, location);
+
+        return BuildLog.of(List.of(), List.of());
+    }
 
-        return builds.getJSONObject(index);
+    // Reads the compile and test logs that older versions of the server stored inside the build.
+    private synchronized BuildLog readInlineLogs(String buildID, RecordLocation location) {
+        try {
+            JSONObject record = new JSONObject(new String(readRecord(location), StandardCharsets.UTF_8));
+            return BuildLog.of(toStringList(record.optJSONArray("compile_logs")), toStringList(record.optJSONArray("test_logs")));
+        } catch (IOException | JSONException e) {
+            System.err.println("Could not read the logs of build " + buildID + " from " + filePath);
+            e.printStackTrace();
+            return BuildLog.of(List.of(), List.of());
+        }
+    }
+
+    // Must be called while holding the lock of this storage, the snapshot channel is replaced by writeSnapshot().
+    private byte[] readRecord(RecordLocation location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length());
+        while (buffer.hasRemaining()) {
+            if (snapshotChannel.read(buffer, location.offset() + buffer.position()) < 0)
+                throw new EOFException("The builds file ends in the middle of a build");
+        }
+        return buffer.array();
     }
 
     /**
-     * Returns the whole JSON array that contains information about all builds.
+     * Closes the log of a build that has finished and stores a pointer to the log files, together with the number
+     * of lines, in the build. Call this before {@code saveBuild()} when a build has finished. Nothing happens if the
+     * log has already been closed.
      *
-     * @return an object of type {@code JSONArray} that contains information about all builds.
+     * @param buildID the ID of the build that has finished.
      */
-    public JSONArray getAllBuilds() {
-        return builds;
+    public void finishBuildLog(String buildID) {
+        BuildLog.Pointer pointer = logs.close(buildID);
+        if (pointer == null)
+            return;
+
+        update(buildID, build -> build.toBuilder().logs(pointer).build());
+        logs.remove(buildID);
     }
 
     /**
-     * Will write all builds that are stored in main-memory to a file on disk.
+     * Ends the builds that were still queued or running when the server stopped. Their build jobs only lived in
+     * memory, so they will never run: they are stored as finished with an error. Call this once at startup, before
+     * new builds are added.
+     *
+     * @return the builds that were ended, so that the commit status of each can be set to error.
      */
-    public synchronized void saveToDisk() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath, StandardCharsets.UTF_8))) {
-            writer.write(builds.toString());
+    public List<Build> failUnfinishedBuilds() {
+        List<Build> failed = new ArrayList<>();
+        for (Build build : getAllBuilds()) {
+            // Builds stored by older versions of the server have no state and no end time, they count as finished.
+            if (build.state() != Build.State.QUEUED && build.state() != Build.State.RUNNING)
+                continue;
+
+            String buildID = build.getBuildID();
+            failed.add(update(buildID, unfinished -> unfinished
+                    .toBuilder()
+                    .state(Build.State.FINISHED)
+                    .compileStatus(Build.Status.ERROR)
+                    .testStatus(Build.Status.FAILURE)
+                    .endedAt(System.currentTimeMillis())
+                    .build()));
+            finishBuildLog(buildID);
+            saveBuild(buildID);
+        }
+        return failed;
+    }
+
+    /**
+     * Returns the store that keeps the logs of the builds that have not finished yet.
+     *
+     * @return the log store.
+     */
+    public BuildLogStore getLogs() {
+        return logs;
+    }
+
+    private static List<String> toStringList(JSONArray array) {
+        List<String> strings = new ArrayList<>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++)
+                strings.add(array.getString(i));
+        }
+        return strings;
+    }
+
+    // Older versions of the server stored the logs in the build, as arrays of lines.
+    private static boolean hasInlineLogs(JSONObject record) {
+        JSONArray compileLogs = record.optJSONArray("compile_logs");
+        JSONArray testLogs = record.optJSONArray("test_logs");
+        return compileLogs != null && !compileLogs.isEmpty() || testLogs != null && !testLogs.isEmpty();
+    }
+
+    /**
+     * Returns all builds in the order they were created. The list is a snapshot that cannot be changed, builds that
+     * are added or changed afterwards are not seen through it.
+     *
+     * @return the list of builds.
+     */
+    public List<Build> getAllBuilds() {
+        return builds.asList();
+    }
+
+    /**
+     * Returns a page of builds, newest first. The next page starts after the last build of this page.
+     *
+     * @param after the ID of the last build of the previous page, or null for the first page.
+     * @param limit the maximum number of builds on the page.
+     * @return the builds on the page, or null if there is no build with the ID {@code after}.
+     */
+    public List<Build> getPage(String after, int limit) {
+        BuildIndex current = builds;
+        int end = current.size();
+        if (after != null) {
+            UUID id = parseBuildID(after);
+            end = id == null ? -1 : current.positionOf(id);
+            if (end < 0)
+                return null;
+        }
+
+        List<Build> page = new ArrayList<>(Math.min(limit, end));
+        for (int position = end - 1; position >= 0 && page.size() < limit; position--)
+            page.add(current.get(position));
+        return page;
+    }
+
+    /**
+     * Returns the builds that match a query, newest first. The builds are found through indexes on the repository,
+     * branch, commit, status and start time, so only builds that can match are looked at.
+     *
+     * @param query what to look for.
+     * @return at most {@code query.limit()} builds.
+     */
+    public List<Build> query(BuildQuery query) {
+        return builds.query(query);
+    }
+
+    /**
+     * Returns the build that was created last for a branch.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the name of the repository.
+     * @param branch     the branch.
+     * @return the latest build, or null if the branch has never been built.
+     */
+    public Build getLatestBuild(String owner, String repository, String branch) {
+        List<Build> latest = query(BuildQuery.latest(owner, repository, branch));
+        return latest.isEmpty() ? null : latest.get(0);
+    }
+
+    /**
+     * Saves a build that has been added or changed by appending it to the journal. A new snapshot is written once
+     * the journal has grown to {@code COMPACT_AFTER} entries.
+     * <p>
+     * If the storage has a flush interval the build is committed together with the other builds saved during the
+     * same interval. Either way the method returns once the build is on disk.
+     *
+     * @param buildID the ID of the build that should be saved.
+     * @return true if the build was written to disk, false if it could not be written.
+     */
+    public boolean saveBuild(String buildID) {
+        UUID id = parseBuildID(buildID);
+        if (id == null)
+            return false;
+
+        CompletableFuture<Boolean> commit = null;
+        synchronized (this) {
+            // Once the storage is closed there is no group commit to wait for.
+            if (flushIntervalMillis > 0 && !closed) {
+                unsavedBuilds.add(id);
+                commit = nextCommit;
+            }
+        }
+        if (commit != null)
+            return commit.join();
+
+        synchronized (diskLock) {
+            return commit(List.of(id));
+        }
+    }
+
+    /**
+     * Commits the builds that have been saved since the last group commit. This is done by a background thread every
+     * flush interval, but can be called to write them right away.
+     */
+    public void flush() {
+        List<UUID> buildIDs;
+        CompletableFuture<Boolean> commit;
+        synchronized (this) {
+            if (unsavedBuilds.isEmpty())
+                return;
+            buildIDs = new ArrayList<>(unsavedBuilds);
+            unsavedBuilds.clear();
+            commit = nextCommit;
+            nextCommit = new CompletableFuture<>();
+        }
+
+        boolean committed;
+        synchronized (diskLock) {
+            committed = commit(buildIDs);
+        }
+        commit.complete(committed);
+    }
+
+    /**
+     * Commits the builds that have not been written yet and stops the background thread. Call this when the server
+     * shuts down.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (flusher != null)
+            flusher.shutdown();
+        flush();
+
+        synchronized (this) {
+            try {
+                if (snapshotChannel != null)
+                    snapshotChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Will write all builds that are stored in main-memory to the builds file on disk and empty the journal.
+     * Use {@code saveBuild()} when only one build has changed.
+     *
+     * @return true if the builds file was written.
+     */
+    public boolean saveToDisk() {
+        flush();
+        synchronized (diskLock) {
+            return writeSnapshot();
+        }
+    }
+
+    private void startFlusher() {
+        if (flushIntervalMillis <= 0)
+            return;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "build-storage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // An exception would stop the flusher for good.
+                e.printStackTrace();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Appends the builds to the journal with one write and one fsync. Must be called while holding diskLock.
+    private boolean commit(List<UUID> buildIDs) {
+        // The JSON text of a build never contains a newline, so each line of the journal is one build.
+        StringBuilder lines = new StringBuilder();
+        int entries = 0;
+        for (UUID buildID : buildIDs) {
+            Build build = getBuild(buildID);
+            if (build == null)
+                continue;
+            lines.append(build.toJSON()).append('\n');
+            entries++;
+        }
+        if (entries == 0)
+            return true;
+
+        try (FileChannel journal = FileChannel.open(Path.of(journalPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(journal, lines.toString().getBytes(StandardCharsets.UTF_8));
+            journal.force(false);
+        } catch (IOException ex) {
+            // Fall back to writing everything, the builds must not be lost.
+            System.err.println("Could not append " + entries + " builds to the journal " + journalPath);
+            ex.printStackTrace();
+            return writeSnapshot();
+        }
+
+        journalEntries += entries;
+        if (journalEntries >= COMPACT_AFTER)
+            writeSnapshot();
+        return true;
+    }
+
+    // Replaces the builds file with a snapshot of all builds and empties the journal. Must be called while holding
+    // diskLock. The old builds file stays in place until the new one is completely on disk.
+    private boolean writeSnapshot() {
+        List<Build> snapshot = getAllBuilds();
+        List<byte[]> records = new ArrayList<>(snapshot.size());
+        try {
+            synchronized (this) {
+                for (Build build : snapshot)
+                    records.add(toRecord(build));
+            }
+        } catch (IOException | JSONException ex) {
+            System.err.println("Could not read the builds file " + filePath + ", the builds are kept in the journal");
+            ex.printStackTrace();
+            return false;
+        }
+
+        List<RecordLocation> locations;
+        try {
+            locations = writeSnapshotFile(records);
         } catch (IOException ex) {
+            // Keep the journal, the builds file does not contain its builds.
+            System.err.println("Could not write the builds file " + filePath + ", the builds are kept in the journal");
             ex.printStackTrace();
+            return false;
+        }
+
+        // Logs inside builds must now be read from the new builds file.
+        synchronized (this) {
+            try {
+                FileChannel newChannel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ);
+                if (snapshotChannel != null)
+                    snapshotChannel.close();
+                snapshotChannel = newChannel;
+                for (int i = 0; i < snapshot.size(); i++) {
+                    Build build = snapshot.get(i);
+                    RecordLocation location = locations.get(i);
+                    if (inlineLogRecords.containsKey(build.getID()))
+                        inlineLogRecords.put(build.getID(), new RecordLocation(location.offset(), location.length(), build));
+                }
+            } catch (IOException ex) {
+                // The old builds file can still be read through the old channel, even though it has been replaced.
+                ex.printStackTrace();
+            }
+        }
+
+        // The journal only holds builds that are now in the builds file as well. Replaying it again after a crash
+        // right here does no harm, because every entry replaces the whole build.
+        File journal = new File(journalPath);
+        if (journal.exists() && !journal.delete())
+            System.err.println("Could not delete the journal " + journalPath);
+        journalEntries = 0;
+        return true;
+    }
+
+    // The JSON text of a build in the builds file. Must be called while holding the lock of this storage.
+    private byte[] toRecord(Build build) throws IOException {
+        RecordLocation location = inlineLogRecords.get(build.getID());
+        if (location == null)
+            return build.toJSON().toString().getBytes(StandardCharsets.UTF_8);
+
+        // A build with its logs inside is copied from the old builds file as it is, unless it has changed since.
+        byte[] stored = readRecord(location);
+        if (location.stored() == build)
+            return stored;
+
+        JSONObject record = new JSONObject(new String(stored, StandardCharsets.UTF_8));
+        JSONObject json = build.toJSON();
+        json.put("compile_logs", record.optJSONArray("compile_logs"));
+        json.put("test_logs", record.optJSONArray("test_logs"));
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Writes the builds file through a temporary file. The snapshot is still a JSON array, but with one build per
+    // line so that it can be loaded line by line. Returns where each record was written.
+    private List<RecordLocation> writeSnapshotFile(List<byte[]> records) throws IOException {
+        List<RecordLocation> locations = new ArrayList<>(records.size());
+        DurableFile.replace(Path.of(filePath), out -> {
+            out.write("[\n".getBytes(StandardCharsets.UTF_8));
+            long offset = 2;
+            for (int i = 0; i < records.size(); i++) {
+                byte[] record = records.get(i);
+                byte[] separator = (i < records.size() - 1 ? ",\n" : "\n").getBytes(StandardCharsets.UTF_8);
+                out.write(record);
+                out.write(separator);
+                locations.add(new RecordLocation(offset, record.length, null));
+                offset += record.length + separator.length;
+            }
+            out.write("]\n".getBytes(StandardCharsets.UTF_8));
+        });
+        return locations;
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    // Loads a builds file with one build per line. Returns false if the builds file is written in another format.
+    private boolean loadSnapshot() throws IOException {
+        builds = new BuildIndex();
+        inlineLogRecords.clear();
+
+        try (LineReader reader = new LineReader(new FileInputStream(filePath))) {
+            byte[] line = reader.readLine();
+            if (line == null || !new String(line, StandardCharsets.UTF_8).strip().equals("["))
+                return false;
+
+            long offset = reader.getPosition();
+            for (; (line = reader.readLine()) != null; offset = reader.getPosition()) {
+                int length = line.length;
+                if (length > 0 && line[length - 1] == ',')
+                    length--;
+                String text = new String(line, 0, length, StandardCharsets.UTF_8);
+                if (text.isBlank() || text.equals("]"))
+                    continue;
+                if (!text.startsWith("{"))
+                    return false;
+
+                JSONObject record;
+                try {
+                    record = new JSONObject(text);
+                } catch (JSONException e) {
+                    // A build spread over several lines, for example a builds file written by an older version.
+                    return false;
+                }
+
+                Build build;
+                try {
+                    build = Build.fromJSON(record);
+                } catch (IllegalArgumentException | JSONException e) {
+                    System.err.println("Skipping a build with an invalid build ID in " + filePath);
+                    continue;
+                }
+                putLoadedBuild(build);
+                if (hasInlineLogs(record))
+                    inlineLogRecords.put(build.getID(), new RecordLocation(offset, length, build));
+            }
+        }
+
+        snapshotChannel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ);
+        return true;
+    }
+
+    // Adds a build read from disk, replacing the build with the same ID if there is one.
+    private void putLoadedBuild(Build build) {
+        int position = builds.positionOf(build.getID());
+        builds = position < 0 ? builds.plus(build) : builds.with(position, build);
+    }
+
+    // Loads a builds file in any JSON layout (like the single line written by older versions), writes it again with
+    // one build per line and loads that instead, so that the next startup is fast.
+    private void loadLegacySnapshot() throws IOException {
+        JSONArray records;
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath, StandardCharsets.UTF_8))) {
+            // The tokener parses straight from the reader, the file is never held as one big string.
+            records = new JSONArray(new JSONTokener(reader));
+        }
+
+        // An empty builds file is left as it is.
+        if (records.isEmpty()) {
+            builds = new BuildIndex();
+            inlineLogRecords.clear();
+            return;
+        }
+
+        List<byte[]> lines = new ArrayList<>(records.length());
+        for (int i = 0; i < records.length(); i++)
+            lines.add(records.getJSONObject(i).toString().getBytes(StandardCharsets.UTF_8));
+
+        synchronized (diskLock) {
+            writeSnapshotFile(lines);
+        }
+        loadSnapshot();
+    }
+
+    // Applies the builds in the journal to the builds loaded from the builds file, later entries win.
+    private void replayJournal() {
+        boolean incomplete = false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalPath, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+
+                Build build;
+                try {
+                    build = Build.fromJSON(new JSONObject(line));
+                } catch (JSONException | IllegalArgumentException e) {
+                    // Only the last line can be incomplete, it was being written when the server stopped.
+                    System.err.println("Skipping an incomplete line in the journal " + journalPath);
+                    incomplete = true;
+                    continue;
+                }
+
+                putLoadedBuild(build);
+                journalEntries++;
+            }
+        } catch (FileNotFoundException e) {
+            // No builds have changed since the builds file was written.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // New entries would be appended to the incomplete line, start over with a new snapshot instead.
+        if (incomplete) {
+            synchronized (diskLock) {
+                writeSnapshot();
+            }
+        }
+    }
+
+    /**
+     * Reads a file one line at a time as bytes, and keeps track of the position in the file so that the position of
+     * every line is known.
+     */
+    private static class LineReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int bufferLength = 0;
+        private int bufferPosition = 0;
+        private long position = 0;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the position in the file of the line that will be returned by the next call to {@code readLine}.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return the next line without the newline, or null at the end of the file.
+         */
+        byte[] readLine() throws IOException {
+            ByteArrayOutputStream line = null;
+            while (true) {
+                if (bufferPosition == bufferLength) {
+                    bufferLength = in.read(buffer);
+                    bufferPosition = 0;
+                    if (bufferLength <= 0) {
+                        bufferLength = 0;
+                        return line == null ? null : line.toByteArray();
+                    }
+                }
+
+                int start = bufferPosition;
+                while (bufferPosition < bufferLength && buffer[bufferPosition] != '\n')
+                    bufferPosition++;
+
+                if (line == null)
+                    line = new ByteArrayOutputStream(bufferPosition - start);
+                line.write(buffer, start, bufferPosition - start);
+                position += bufferPosition - start;
+
+                if (bufferPosition < bufferLength) {
+                    // Skip the newline.
+                    bufferPosition++;
+                    position++;
+                    return line.toByteArray();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
     }
 }
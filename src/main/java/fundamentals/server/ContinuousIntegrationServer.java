@@ -1,6 +1,11 @@
 package fundamentals.server;
 
+import fundamentals.server.gitTooling.CommitStatusQueue;
+import fundamentals.server.gitTooling.GithubCommitAPI.CommitStatus;
 import fundamentals.server.handlers.*;
+import fundamentals.server.helpers.BuildOutputCache;
+import fundamentals.server.helpers.MavenDaemonPool;
+import fundamentals.server.helpers.MavenRepositoryCache;
 import org.eclipse.jetty.security.ConstraintMapping;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
 import org.eclipse.jetty.security.authentication.BasicAuthenticator;
@@ -8,6 +13,7 @@ import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.util.security.Constraint;
 
 import java.util.Collections;
@@ -22,6 +28,11 @@ public class ContinuousIntegrationServer {
      */
     final static int DEFAULT_PORT_NUMBER = 8014;
 
+    /**
+     * Responses smaller than this (in bytes) are not compressed, the gzip header would eat most of the savings
+     */
+    final static int GZIP_MIN_SIZE = 1024;
+
     /**
      * Environment variables
      */
@@ -30,7 +41,38 @@ public class ContinuousIntegrationServer {
     /**
      * Storage for the build files
      */
-    final static BuildStorage storage = BuildStorage.loadBuildStorageFile();
+    final static BuildStorage storage = BuildStorage.fromEnvironment(environment);
+
+    /**
+     * Queue of builds waiting for a build worker
+     */
+    final static BuildQueue queue = BuildQueue.fromEnvironment(environment);
+
+    /**
+     * Queue of commit statuses waiting to be sent to Github
+     */
+    final static CommitStatusQueue statuses = CommitStatusQueue.fromEnvironment(environment);
+
+    /**
+     * Local Maven repository shared by all builds
+     */
+    final static MavenRepositoryCache repositoryCache = MavenRepositoryCache.fromEnvironment(environment);
+
+    /**
+     * Outputs of the last successful build of each branch
+     */
+    final static BuildOutputCache outputs = BuildOutputCache.fromEnvironment(environment);
+
+    /**
+     * Decides when the result of an earlier build is reused instead of building again
+     */
+    final static BuildResults results = BuildResults.fromEnvironment(environment);
+
+    /**
+     * Warm Maven daemons for the repositories that are configured to use them
+     */
+    final static MavenDaemonPool daemons = MavenDaemonPool.fromEnvironment(environment,
+            repositoryCache.sharedArguments());
 
     /**
      * Get the port number from stdin or return a default value
@@ -94,18 +136,42 @@ public class ContinuousIntegrationServer {
     }
 
     /**
-     * Initiates and returns a collection of enpoints which have yet to be registered with any server
+     * Initiates and returns a collection of enpoints which have yet to be registered with any server. Large responses
+     * (like the JSON of /build/all) are compressed with gzip for clients that accept it, except for event streams,
+     * which must reach the client as soon as they are written, and the UI pages, which are compressed in advance.
      *
-     * @return A collection of handlers with paths preregistered
+     * @return A handler with the paths preregistered
      */
-    static ContextHandlerCollection getEndpointsHandler() {
+    static Handler getEndpointsHandler() {
         var endpoints = new ContextHandlerCollection();
-        endpoints.addHandler(getContextHandler("/webhook", new WebhookHandler(environment, storage)));
+        endpoints.addHandler(getContextHandler("/webhook", new WebhookHandler(environment, storage, queue, statuses,
+                daemons, repositoryCache, results, outputs)));
         endpoints.addHandler(getSecureHandler("/build/all", new BuildAllHandler(storage)));
-        endpoints.addHandler(getSecureHandler("/build", new BuildHandler(storage)));
-        endpoints.addHandler(getSecureHandler("/ui/build/all", new UIBuildAllHandler()));
-        endpoints.addHandler(getSecureHandler("/ui/build", new UIBuildHandler()));
-        return endpoints;
+        endpoints.addHandler(getSecureHandler("/build", new BuildHandler(storage, queue,
+                environment.getBooleanValueOrElse("PUBLIC_CACHING", false))));
+        endpoints.addHandler(getSecureHandler("/ui/build/all",
+                new StaticAssetHandler(StaticAssetHandler.UI_BUILD_ALL_FILE, "text/html;charset=utf-8")));
+        endpoints.addHandler(getSecureHandler("/ui/build",
+                new StaticAssetHandler(StaticAssetHandler.UI_BUILD_FILE, "text/html;charset=utf-8")));
+
+        var gzip = new GzipHandler();
+        gzip.setMinGzipSize(GZIP_MIN_SIZE);
+        gzip.setIncludedMethods("GET");
+        gzip.addExcludedMimeTypes("text/event-stream");
+        gzip.setHandler(endpoints);
+        return gzip;
+    }
+
+    /**
+     * Ends the builds that were accepted before the last restart but never finished, and sets the commit status of
+     * each to error. The build queue only lives in memory, so these builds would otherwise stay pending forever.
+     */
+    static void failUnfinishedBuilds() {
+        for (Build build : storage.failUnfinishedBuilds()) {
+            System.err.println("Build " + build.getBuildID() + " was interrupted by a restart of the server");
+            statuses.setCommitStatus(build.owner(), build.repository(), build.commit(), CommitStatus.ERROR,
+                    "Build interrupted by a server restart", BuildJob.getTargetUrl(environment, build.getBuildID()));
+        }
     }
 
     /**
@@ -123,6 +189,10 @@ public class ContinuousIntegrationServer {
         var loginService = SecurityManager.getInstance().getAdminLoginService();
         server.addBean(loginService);
 
+        // Builds that are waiting for the next group commit are written before the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(storage::close));
+
+        failUnfinishedBuilds();
         server.start();
         System.out.println("Server has successfully started on port " + portNumber);
         try {
@@ -97,6 +97,41 @@ public class Environment {
         return keyValuePairs.get(key);
     }
 
+    /**
+     * Will return the associated value for a given key parsed as an integer. If the key is not defined or the value
+     * is not a valid integer the default value is returned instead.
+     *
+     * @param key    the key.
+     * @param orElse the value to use if the key is missing or unparsable.
+     * @return the associated value as an integer, or the orElse value.
+     */
+    public int getIntValueOrElse(String key, int orElse) {
+        String value = keyValuePairs.get(key);
+        if (value == null)
+            return orElse;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Error: The value of " + key + " is not an integer, using " + orElse);
+            return orElse;
+        }
+    }
+
+    /**
+     * Will return the associated value for a given key parsed as a boolean ("true" or "false"). If the key is not
+     * defined the default value is returned instead.
+     *
+     * @param key    the key.
+     * @param orElse the value to use if the key is missing.
+     * @return the associated value as a boolean, or the orElse value.
+     */
+    public boolean getBooleanValueOrElse(String key, boolean orElse) {
+        String value = keyValuePairs.get(key);
+        if (value == null)
+            return orElse;
+        return Boolean.parseBoolean(value);
+    }
+
     /**
      * Will return true if the given key is defined in the environment.
      *
@@ -0,0 +1,81 @@
+package fundamentals.server;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A sorted list of build positions (see {@code BuildIndex}) that can be read by any number of threads while one
+ * thread adds to it. Positions are never removed, so the list holds every build that has ever had the key it
+ * belongs to, and readers check each build themselves.
+ * <p>
+ * The positions are published as an array and a length that never change once they can be seen. Adding the next
+ * position writes past the end of the array that readers see, adding a position in the middle (a build that
+ * finishes before an older build) copies the array.
+ */
+final class PositionList {
+
+    private record Positions(int[] array, int length) {
+    }
+
+    private volatile Positions positions = new Positions(new int[4], 0);
+
+    /**
+     * Returns the number of positions in the list.
+     *
+     * @return number of positions.
+     */
+    int length() {
+        return positions.length();
+    }
+
+    /**
+     * Adds a position to the list, unless it is already there. Only one thread may add at a time.
+     *
+     * @param position the position of a build.
+     */
+    void add(int position) {
+        Positions current = positions;
+        int[] array = current.array();
+        int length = current.length();
+
+        if (length == 0 || array[length - 1] < position) {
+            if (length == array.length)
+                array = Arrays.copyOf(array, length * 2);
+            array[length] = position;
+            positions = new Positions(array, length + 1);
+            return;
+        }
+
+        int index = Arrays.binarySearch(array, 0, length, position);
+        if (index >= 0)
+            return;
+
+        // Readers may still be reading the current array, so the positions after the new one are moved in a copy.
+        int insertAt = -index - 1;
+        int[] copy = new int[length == array.length ? length * 2 : array.length];
+        System.arraycopy(array, 0, copy, 0, insertAt);
+        copy[insertAt] = position;
+        System.arraycopy(array, insertAt, copy, insertAt + 1, length - insertAt);
+        positions = new Positions(copy, length + 1);
+    }
+
+    /**
+     * Goes through the positions that are lower than {@code below}, the highest (newest) first.
+     *
+     * @param below  only positions lower than this are visited, for example the size of a version of the builds.
+     * @param action called with each position, returns false to stop.
+     */
+    void forEachDescending(int below, IntPredicate action) {
+        Positions current = positions;
+        int[] array = current.array();
+        int index = current.length() - 1;
+
+        // Positions that were added for newer versions of the builds are at the end.
+        while (index >= 0 && array[index] >= below)
+            index--;
+        for (; index >= 0; index--) {
+            if (!action.test(array[index]))
+                return;
+        }
+    }
+}
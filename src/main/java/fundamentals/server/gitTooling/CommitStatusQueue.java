@@ -0,0 +1,533 @@
+package fundamentals.server.gitTooling;
+
+import fundamentals.server.Environment;
+import fundamentals.server.helpers.DurableFile;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue of commit statuses that are waiting to be sent to Github. The builds place their commit statuses here
+ * instead of sending them, and a single sender thread delivers them in the background:
+ * <ul>
+ *     <li>The queue is stored in a file and loaded again when the server restarts, so a commit never stays
+ *     "pending" on Github because the server was restarted or Github could not be reached.</li>
+ *     <li>A commit status that could not be sent is retried with an exponential backoff (with jitter, so that
+ *     failed statuses don't all retry at the same moment).</li>
+ *     <li>Github's rate limit ("X-RateLimit-Remaining") is read from every response. The statuses are spread out
+ *     when the limit runs low, and none are sent until the limit resets when it is (almost) used up.</li>
+ *     <li>Only the newest status of a commit is worth sending. A status that is still waiting (like "pending") is
+ *     replaced when the build of the commit finishes, and the statuses of a commit are sent one at a time, in order.</li>
+ * </ul>
+ */
+public class CommitStatusQueue {
+
+    /**
+     * The default location of the queue file.
+     */
+    public static final String DEFAULT_QUEUE_FILE = "commit_statuses.json";
+
+    /**
+     * The queue is written to the queue file with this suffix before it replaces the queue file.
+     */
+    public static final String TEMP_SUFFIX = DurableFile.TEMP_SUFFIX;
+
+    /**
+     * How long (in milliseconds) to wait before the first retry of a commit status. Every retry waits twice as long.
+     */
+    public static final long INITIAL_BACKOFF_MS = 1000;
+
+    /**
+     * The longest time (in milliseconds) to wait before a retry.
+     */
+    public static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    /**
+     * The number of times a commit status is sent before it is given up, about an hour with the backoff above.
+     */
+    public static final int MAX_ATTEMPTS = 15;
+
+    /**
+     * The number of requests that are left for the rest of the server (like cloning) when the rate limit is close,
+     * no commit statuses are sent until the rate limit resets.
+     */
+    public static final int RATE_LIMIT_RESERVE = 50;
+
+    /**
+     * Below this number of remaining requests, the commit statuses are spread evenly over the time until the rate
+     * limit resets.
+     */
+    public static final int RATE_LIMIT_THROTTLE_BELOW = 500;
+
+    /**
+     * How long (in milliseconds) to wait when Github says that the rate limit is exceeded but not when it resets.
+     */
+    public static final long RATE_LIMITED_WAIT_MS = 60 * 1000;
+
+    /**
+     * The number of commit statuses (for different commits) that can be sent at the same time.
+     */
+    public static final int MAX_IN_FLIGHT = 4;
+
+    /**
+     * A commit status that is waiting to be sent.
+     *
+     * @param id          the order in which the statuses were placed in the queue.
+     * @param owner       the owner of the repository.
+     * @param repository  the repository.
+     * @param commitHash  the commit.
+     * @param status      the new commit status.
+     * @param description the description of the commit status.
+     * @param targetUrl   the URL shown together with the commit status.
+     * @param attempts    the number of times sending the status has failed.
+     * @param notBefore   the time (in milliseconds since the epoch) when the status may be sent, 0 for right away.
+     */
+    public record StatusUpdate(long id, String owner, String repository, String commitHash,
+                               GithubCommitAPI.CommitStatus status, String description, String targetUrl,
+                               int attempts, long notBefore) {
+
+        /**
+         * @return the key "owner/repository/commit" that the statuses of the same commit share.
+         */
+        public String commitKey() {
+            return owner + "/" + repository + "/" + commitHash;
+        }
+
+        /**
+         * Returns this status after another failed attempt.
+         *
+         * @param retryAt the time (in milliseconds since the epoch) of the next attempt.
+         * @return the new status update.
+         */
+        StatusUpdate failed(long retryAt) {
+            return new StatusUpdate(id, owner, repository, commitHash, status, description, targetUrl, attempts + 1, retryAt);
+        }
+
+        /**
+         * Returns this status to be sent again later, without counting an attempt.
+         *
+         * @param retryAt the time (in milliseconds since the epoch) of the next attempt.
+         * @return the new status update.
+         */
+        StatusUpdate postponed(long retryAt) {
+            return new StatusUpdate(id, owner, repository, commitHash, status, description, targetUrl, attempts, retryAt);
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("owner", owner);
+            json.put("repository", repository);
+            json.put("commit", commitHash);
+            json.put("state", status.toString());
+            json.put("description", description);
+            json.put("target_url", targetUrl);
+            json.put("attempts", attempts);
+            json.put("not_before", notBefore);
+            return json;
+        }
+
+        static StatusUpdate fromJSON(JSONObject json) {
+            return new StatusUpdate(json.getLong("id"), json.getString("owner"), json.getString("repository"),
+                    json.getString("commit"), GithubCommitAPI.CommitStatus.valueOf(json.getString("state").toUpperCase()),
+                    json.getString("description"), json.getString("target_url"), json.getInt("attempts"),
+                    json.getLong("not_before"));
+        }
+    }
+
+    /**
+     * What Github answered to a commit status.
+     *
+     * @param statusCode the HTTP status code.
+     * @param headers    the HTTP headers, which include the rate limit.
+     */
+    public record Response(int statusCode, HttpHeaders headers) {
+    }
+
+    /**
+     * Sends a commit status to Github.
+     */
+    @FunctionalInterface
+    public interface Sender {
+        /**
+         * Sends a commit status without waiting for the response.
+         *
+         * @param update the commit status.
+         * @return a future with the response, which completes exceptionally if Github could not be reached.
+         */
+        CompletableFuture<Response> send(StatusUpdate update);
+    }
+
+    private final String filePath;
+    private final Sender sender;
+    private final long initialBackoffMillis;
+
+    /**
+     * The newest status of each commit that is waiting to be sent, by commit key. Guarded by {@code this}.
+     */
+    private final LinkedHashMap<String, StatusUpdate> waiting = new LinkedHashMap<>();
+
+    /**
+     * The statuses that have been sent but not answered yet, by commit key. Guarded by {@code this}.
+     */
+    private final Map<String, StatusUpdate> inFlight = new HashMap<>();
+
+    private long nextID = 1;
+
+    /**
+     * Counts the changes to the queue, so that a writer can tell whether the file already holds them. Guarded by
+     * {@code this}.
+     */
+    private long changes = 0;
+
+    /**
+     * Serializes the writes to the queue file. It is never taken while holding {@code this}, so the sender thread
+     * and the builds don't wait for the disk to update the queue.
+     */
+    private final Object fileLock = new Object();
+
+    /**
+     * The number of changes that the queue file holds. Guarded by {@code fileLock}.
+     */
+    private long savedChanges = 0;
+
+    /**
+     * No status is sent before this time (in milliseconds since the epoch), set by the rate limit.
+     */
+    private long nextSendAt = 0;
+
+    /**
+     * How long (in milliseconds) to wait between two statuses while the rate limit runs low, 0 otherwise.
+     */
+    private long sendInterval = 0;
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> wakeUp;
+    private boolean closed = false;
+
+    /**
+     * Creates a queue that does not send anything until {@code start()} is called. Use {@code fromEnvironment()}
+     * outside of unit-tests.
+     *
+     * @param filePath             the path to the queue file.
+     * @param sender               sends the commit statuses.
+     * @param initialBackoffMillis how long to wait before the first retry of a commit status.
+     */
+    CommitStatusQueue(String filePath, Sender sender, long initialBackoffMillis) {
+        this.filePath = filePath;
+        this.sender = sender;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * Loads the queue file and starts sending the commit statuses in it, and those placed in the queue later.
+     *
+     * @param filePath the path to the queue file, created if it does not exist.
+     * @param username the username with access to the repositories, also the context of the commit statuses.
+     * @param token    the personal access token for the user.
+     * @return the queue.
+     */
+    public static CommitStatusQueue loadQueueFile(String filePath, String username, String token) {
+        CommitStatusQueue queue = new CommitStatusQueue(filePath, githubSender(username, token), INITIAL_BACKOFF_MS);
+        queue.load();
+        queue.start();
+        return queue;
+    }
+
+    /**
+     * Loads the queue file "commit_statuses.json" and sends the commit statuses with the credentials given by
+     * USERNAME and PERSONAL_ACCESS_TOKEN in the environment.
+     *
+     * @param environment the environment to read the credentials from.
+     * @return the queue.
+     */
+    public static CommitStatusQueue fromEnvironment(Environment environment) {
+        return loadQueueFile(DEFAULT_QUEUE_FILE, environment.getValue("USERNAME"),
+                environment.getValue("PERSONAL_ACCESS_TOKEN"));
+    }
+
+    // Sends the statuses with the Github commit API.
+    private static Sender githubSender(String username, String token) {
+        return update -> {
+            GithubCommitAPI api = new GithubCommitAPI(update.owner(), update.repository(), update.commitHash(), username, token);
+            GithubCommitAPIRequest request = api.setCommitStatus(update.status(), update.description(), update.targetUrl());
+            if (request == null)
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid commit " + update.commitKey()));
+            return request.sendForResponse().thenApply(response -> new Response(response.statusCode(), response.headers()));
+        };
+    }
+
+    /**
+     * Places a commit status in the queue, it is stored in the queue file before this method returns. A status of the
+     * same commit that has not been sent yet is replaced.
+     *
+     * @param owner       the owner of the repository.
+     * @param repository  the repository.
+     * @param commitHash  the commit.
+     * @param status      the new commit status.
+     * @param description the description of the commit status. For example "all tests passed".
+     * @param targetUrl   the URL shown together with the commit status.
+     */
+    public void setCommitStatus(String owner, String repository, String commitHash,
+                                GithubCommitAPI.CommitStatus status, String description, String targetUrl) {
+        synchronized (this) {
+            StatusUpdate update = new StatusUpdate(nextID++, owner, repository, commitHash, status, description,
+                    targetUrl, 0, 0);
+            StatusUpdate replaced = waiting.remove(update.commitKey());
+            waiting.put(update.commitKey(), update);
+            if (replaced != null)
+                System.out.println("Commit status " + replaced.status() + " for commit " + commitHash
+                        + " was replaced by " + status + " before it was sent");
+            changes++;
+            scheduleSend(0);
+        }
+
+        save();
+    }
+
+    /**
+     * @return the number of commit statuses that have not been delivered yet, including those being sent.
+     */
+    public synchronized int size() {
+        return waiting.size() + inFlight.size();
+    }
+
+    /**
+     * @return the commit statuses that have not been delivered yet, in the order they were placed in the queue.
+     */
+    public synchronized List<StatusUpdate> getUpdates() {
+        List<StatusUpdate> updates = new ArrayList<>(waiting.values());
+        updates.addAll(inFlight.values());
+        updates.sort(Comparator.comparingLong(StatusUpdate::id));
+        return updates;
+    }
+
+    /**
+     * Starts the thread that sends the commit statuses.
+     */
+    public synchronized void start() {
+        if (executor != null)
+            return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "commit-status-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleSend(0);
+    }
+
+    /**
+     * Stops sending commit statuses. The statuses that have not been delivered stay in the queue file.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    // Sends every status that may be sent now, and schedules the next time something can be sent.
+    private synchronized void sendDue() {
+        // This is the scheduled wake-up, the next one is scheduled below.
+        wakeUp = null;
+        if (closed)
+            return;
+
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Iterator<StatusUpdate> updates = waiting.values().iterator();
+        while (updates.hasNext() && inFlight.size() < MAX_IN_FLIGHT) {
+            StatusUpdate update = updates.next();
+            // The next status of a commit waits for the answer to the previous one, which calls us again.
+            if (inFlight.containsKey(update.commitKey()))
+                continue;
+            long sendAt = Math.max(update.notBefore(), nextSendAt);
+            if (sendAt > now) {
+                next = Math.min(next, sendAt);
+                continue;
+            }
+
+            updates.remove();
+            inFlight.put(update.commitKey(), update);
+            nextSendAt = now + sendInterval;
+            send(update);
+        }
+
+        if (next != Long.MAX_VALUE)
+            scheduleSend(next - now);
+    }
+
+    private void send(StatusUpdate update) {
+        CompletableFuture<Response> response;
+        try {
+            response = sender.send(update);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenCompleteAsync((result, error) -> completed(update, result, error), executor);
+    }
+
+    // Handles the answer to a status: done, retried later, or given up.
+    private void completed(StatusUpdate update, Response response, Throwable error) {
+        synchronized (this) {
+            updateCompleted(update, response, error);
+            changes++;
+            scheduleSend(0);
+        }
+
+        save();
+    }
+
+    // Called with the lock held.
+    private void updateCompleted(StatusUpdate update, Response response, Throwable error) {
+        inFlight.remove(update.commitKey());
+        long now = System.currentTimeMillis();
+        if (response != null)
+            readRateLimit(response, now);
+
+        if (response != null && response.statusCode() == 201) {
+            System.out.println("Updated commit status to " + update.status() + " for commit: " + update.commitHash());
+        } else if (response != null && isRateLimited(response)) {
+            if (nextSendAt <= now)
+                nextSendAt = now + RATE_LIMITED_WAIT_MS;
+            System.out.println("Github's rate limit is exceeded, commit statuses are paused for "
+                    + (nextSendAt - now) / 1000 + " s");
+            retry(update.postponed(nextSendAt));
+        } else if ((response == null || isRetryable(response.statusCode())) && update.attempts() + 1 < MAX_ATTEMPTS) {
+            long delay = backoff(update.attempts() + 1);
+            System.out.println("Failed to update commit status for: " + update.commitHash()
+                    + (error != null ? " (" + error + ")" : " (HTTP " + response.statusCode() + ")")
+                    + ", retrying in " + delay + " ms");
+            retry(update.failed(now + delay));
+        } else {
+            System.err.println("Gave up updating commit status to " + update.status() + " for commit: "
+                    + update.commitHash() + (response != null ? " (HTTP " + response.statusCode() + ")" : ""));
+        }
+    }
+
+    // Places a status back in the queue, unless a newer status of the commit is already waiting.
+    private void retry(StatusUpdate update) {
+        waiting.putIfAbsent(update.commitKey(), update);
+    }
+
+    // Spreads the statuses out when the rate limit runs low and pauses them when it is (almost) used up.
+    private void readRateLimit(Response response, long now) {
+        OptionalLong remaining = response.headers().firstValueAsLong("X-RateLimit-Remaining");
+        OptionalLong reset = response.headers().firstValueAsLong("X-RateLimit-Reset");
+        if (remaining.isPresent() && reset.isPresent()) {
+            long resetAt = reset.getAsLong() * 1000;
+            if (remaining.getAsLong() <= RATE_LIMIT_RESERVE) {
+                nextSendAt = Math.max(nextSendAt, resetAt);
+                sendInterval = 0;
+            } else if (remaining.getAsLong() <= RATE_LIMIT_THROTTLE_BELOW) {
+                sendInterval = Math.max(0, (resetAt - now) / (remaining.getAsLong() - RATE_LIMIT_RESERVE));
+            } else {
+                sendInterval = 0;
+            }
+        }
+
+        // Github's secondary rate limits only say how long to wait.
+        OptionalLong retryAfter = response.headers().firstValueAsLong("Retry-After");
+        if (retryAfter.isPresent() && isRateLimited(response))
+            nextSendAt = Math.max(nextSendAt, now + retryAfter.getAsLong() * 1000);
+    }
+
+    private static boolean isRateLimited(Response response) {
+        if (response.statusCode() == 429)
+            return true;
+        return response.statusCode() == 403
+                && (response.headers().firstValueAsLong("X-RateLimit-Remaining").orElse(-1) == 0
+                || response.headers().firstValue("Retry-After").isPresent());
+    }
+
+    // Server errors and timeouts may go away, other client errors (like bad credentials) won't.
+    private static boolean isRetryable(int statusCode) {
+        return statusCode >= 500 || statusCode == 408;
+    }
+
+    // Exponential backoff with "equal jitter": between half and all of the exponential delay.
+    private long backoff(int attempts) {
+        long delay = initialBackoffMillis << Math.min(attempts - 1, 30);
+        delay = Math.min(MAX_BACKOFF_MS, Math.max(0, delay));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    // Wakes up the sender thread after a delay (in milliseconds), unless it will already wake up before that.
+    private void scheduleSend(long delayMillis) {
+        if (executor == null || closed)
+            return;
+        if (wakeUp != null && !wakeUp.isDone() && wakeUp.getDelay(TimeUnit.MILLISECONDS) <= delayMillis)
+            return;
+        if (wakeUp != null)
+            wakeUp.cancel(false);
+        wakeUp = executor.schedule(this::sendDue, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the queue file. Statuses that were being sent when the server stopped are sent again.
+     */
+    synchronized void load() {
+        try {
+            String text = Files.readString(Path.of(filePath), StandardCharsets.UTF_8);
+            JSONArray array = new JSONArray(text);
+            for (int i = 0; i < array.length(); i++) {
+                StatusUpdate update = StatusUpdate.fromJSON(array.getJSONObject(i));
+                // The file is sorted by ID, so a newer status of the same commit replaces an older one.
+                waiting.remove(update.commitKey());
+                waiting.put(update.commitKey(), update);
+                nextID = Math.max(nextID, update.id() + 1);
+            }
+            if (!waiting.isEmpty())
+                System.out.println("Loaded " + waiting.size() + " commit statuses that have not been sent from " + filePath);
+        } catch (NoSuchFileException e) {
+            // Nothing has been queued yet.
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read the commit status queue " + filePath);
+            e.printStackTrace();
+        }
+    }
+
+    // Writes the queue file through a temporary file, so that a crash never leaves half a queue behind. Only the
+    // copy of the queue is taken under the lock. A caller that waited for another write finds its change already in
+    // the file when that write copied the queue after the change.
+    private void save() {
+        synchronized (fileLock) {
+            long version;
+            JSONArray array = new JSONArray();
+            synchronized (this) {
+                version = changes;
+                if (version == savedChanges)
+                    return;
+                for (StatusUpdate update : getUpdates())
+                    array.put(update.toJSON());
+            }
+
+            try {
+                DurableFile.replace(Path.of(filePath), out -> out.write(array.toString().getBytes(StandardCharsets.UTF_8)));
+                savedChanges = version;
+            } catch (IOException e) {
+                System.err.println("Could not write the commit status queue " + filePath);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -2,15 +2,18 @@ package fundamentals.server.gitTooling;
 
 import org.json.JSONObject;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
 
 /**
  * Contains methods that can be called to work with the Github commit API.
+ * <p>
+ * Every request is sent with one {@code HttpClient} that is shared by the whole server, so the connection to Github
+ * (and its TLS session) is kept open and reused by the next build instead of being set up for every commit status.
  */
 public class GithubCommitAPI {
 
@@ -19,6 +22,17 @@ public class GithubCommitAPI {
      */
     public static final String GITHUB_API_ROOT_URL = "https://api.github.com";
 
+    /**
+     * How long to wait for a connection to Github and for the response to a request.
+     */
+    public static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    // Uses HTTP/2 when Github offers it, so several commit statuses can share one connection at the same time.
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(TIMEOUT)
+            .build();
+
     /**
      * The four different statuses that can be assigned to each Github commit.
      */
@@ -108,22 +122,28 @@ public class GithubCommitAPI {
         return setCommitStatus(CommitStatus.SUCCESS, description, targetUrl);
     }
 
-    // For how a commit status is created see: https://docs.github.com/en/rest/reference/commits
-    private GithubCommitAPIRequest setCommitStatus(CommitStatus status, String description, String targetUrl) {
+    /**
+     * Generates a request to set the commit status of a specific commit.
+     * For how a commit status is created see: https://docs.github.com/en/rest/reference/commits
+     *
+     * @param status      the new commit status.
+     * @param description a description for the commit status.
+     * @param targetUrl   a target url that will be shown together with the commit status (this is often a URL to a page that shows more build information).
+     * @return a {@code GithubCommitAPIRequest} object that can be used to send the request, or null if the owner, repository or commit can't be used in a URL.
+     */
+    public GithubCommitAPIRequest setCommitStatus(CommitStatus status, String description, String targetUrl) {
         try {
-            URL url = buildGithubURL("repos", owner, repository, "statuses", commitHash);
-            HttpURLConnection http = (HttpURLConnection) url.openConnection();
-            http.setRequestMethod("POST");
-            http.setDoOutput(true);
-            setBasicAuthorizationHeader(http);
-            setContentTypeHeader(http, "application/json; charset=UTF-8");
-            setAcceptHeader(http, "application/vnd.github.v3+json");
+            URI uri = buildGithubURI("repos", owner, repository, "statuses", commitHash);
             byte[] body = getCommitStatusJSONObject(status, description, targetUrl);
-            http.setFixedLengthStreamingMode(body.length);
-            return new GithubCommitAPIRequest(http, body);
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .header("Authorization", "Basic " + getBasicAuthorizationCredentials())
+                    .header("Content-Type", "application/json; charset=UTF-8")
+                    .header("Accept", "application/vnd.github.v3+json")
+                    .timeout(TIMEOUT)
+                    .build();
+            return new GithubCommitAPIRequest(CLIENT, request, body);
+        } catch (IllegalArgumentException e) {
             e.printStackTrace();
         }
 
@@ -140,16 +160,16 @@ public class GithubCommitAPI {
         return object.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    // Will build a URL object from Github's API root.
-    // For example the call buildGithubURL("repo", "example")
-    // returns a URL object with the path "https://api.github.com/repo/example"
-    private URL buildGithubURL(String... parts) throws MalformedURLException {
+    // Will build a URI object from Github's API root.
+    // For example the call buildGithubURI("repo", "example")
+    // returns a URI object with the path "https://api.github.com/repo/example"
+    private URI buildGithubURI(String... parts) {
         StringBuilder url = new StringBuilder(GITHUB_API_ROOT_URL);
         for (String part : parts) {
             url.append("/");
             url.append(part);
         }
-        return new URL(url.toString());
+        return URI.create(url.toString());
     }
 
     /**
@@ -158,33 +178,4 @@ public class GithubCommitAPI {
     public String getBasicAuthorizationCredentials() {
         return Base64.getEncoder().encodeToString((username + ":" + personalAccessToken).getBytes(StandardCharsets.UTF_8));
     }
-
-    /**
-     * Update the HTTP header to enable basic authorization for the CI server.
-     *
-     * @param http a http request to add auth header to
-     */
-    private void setBasicAuthorizationHeader(HttpURLConnection http) {
-        http.setRequestProperty("Authorization", "Basic " + getBasicAuthorizationCredentials());
-    }
-
-    /**
-     * Set the Content-Type HTTP header.
-     *
-     * @param http a http request to add content type header to
-     * @param contentType the content type (eg. application/json)
-     */
-    private void setContentTypeHeader(HttpURLConnection http, String contentType) {
-        http.setRequestProperty("Content-Type", contentType);
-    }
-
-    /**
-     * Set the Accept HTTP header.
-     *
-     * @param http set the acceppt http header
-     * @param accept accept value
-     */
-    private void setAcceptHeader(HttpURLConnection http, String accept) {
-        http.setRequestProperty("Accept", accept);
-    }
 }
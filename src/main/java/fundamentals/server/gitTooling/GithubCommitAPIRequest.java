@@ -2,44 +2,58 @@ package fundamentals.server.gitTooling;
 
 import org.json.JSONObject;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents an HTTP request to create a commit status for a commit on Github.
  */
 public class GithubCommitAPIRequest {
 
-    private HttpURLConnection http;
+    private HttpClient client;
+    private HttpRequest http;
     private byte[] body;
 
     /**
      * Creates a new HTTP request that can be sent to Github to create a commit status.
      *
-     * @param http an {@code HttpURLConnection} object that stores the whole request (but not the body).
-     * @param body the body with should be a JSON object encoded as a UTF-8 byte sequence.
+     * @param client the client that sends the request, shared by all requests so that connections are reused.
+     * @param http   an {@code HttpRequest} object that stores the whole request, including the body.
+     * @param body   the body with should be a JSON object encoded as a UTF-8 byte sequence.
      */
-    public GithubCommitAPIRequest(HttpURLConnection http, byte[] body) {
+    public GithubCommitAPIRequest(HttpClient client, HttpRequest http, byte[] body) {
+        this.client = client;
         this.http = http;
         this.body = body;
     }
 
     /**
-     * Will send the request to Github.
+     * Will send the request to Github without waiting for the response.
      *
-     * @return true if the commit status was created, otherwise false.
+     * @return a future that completes with true if the commit status was created, otherwise false. The future never
+     * completes exceptionally, errors are printed and give false.
      */
-    public boolean send() {
-        try {
-            http.connect();
-            http.getOutputStream().write(body);
-            // If the commit status of the commit has been updated we retrieve the HTTP response code 201 (Created).
-            return http.getResponseCode() == 201;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return false;
+    public CompletableFuture<Boolean> send() {
+        return sendForResponse()
+                // If the commit status of the commit has been updated we retrieve the HTTP response code 201 (Created).
+                .thenApply(response -> response.statusCode() == 201)
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return false;
+                });
+    }
+
+    /**
+     * Will send the request to Github without waiting for the response, and gives the whole response, for example to
+     * read the rate limit headers.
+     *
+     * @return a future that completes with the response, or exceptionally if Github could not be reached.
+     */
+    public CompletableFuture<HttpResponse<Void>> sendForResponse() {
+        return client.sendAsync(http, HttpResponse.BodyHandlers.discarding());
     }
 
     // The methods below are only used for unit-testing.
@@ -50,7 +64,7 @@ public class GithubCommitAPIRequest {
      * @return the path part of the url, or an empty string if one does not exist
      */
     public String getURLPath() {
-        return http.getURL().getPath();
+        return http.uri().getPath();
     }
 
     /**
@@ -59,7 +73,7 @@ public class GithubCommitAPIRequest {
      * @return the http request method
      */
     public String getHTTPMethod() {
-        return http.getRequestMethod();
+        return http.method();
     }
 
     /**
@@ -69,7 +83,7 @@ public class GithubCommitAPIRequest {
      * @return the value of the header, null if it doesn't exist
      */
     public String getHTTPHeaderField(String name) {
-        return http.getRequestProperty(name);
+        return http.headers().firstValue(name).orElse(null);
     }
 
     /**
@@ -1,172 +1,416 @@
-package fundamentals.server.gitTooling;
-
-import fundamentals.server.Environment;
-import org.json.JSONObject;
-
-import java.io.File;
-import java.io.IOException;
-
-/**
- * This class deals with creating, managing, and deleting the local copies of the tested repositories.
- */
-public class RepoManager {
-
-    /**
-     * The root directory of all the "working directories" as in a repository can end up here
-     */
-    public final File workDir = new File("localFiles/");
-
-    /**
-     * Parent directory to the workDir
-     */
-    public final File parentDir;
-
-    /**
-     * Path to a specific repository on disk
-     */
-    public final File repoDir;
-
-    private final String accessToken;
-
-    private final Runtime runtime = Runtime.getRuntime();
-
-    private final String branchName;
-    private final String repoUrl;
-
-    /**
-     * Create a RepoManager that manages the specified repository.
-     *
-     * @param payload The payload provided by the GitHub webhook
-     */
-    public RepoManager(String payload, Environment environment) throws IOException {
-        JSONObject obj = new JSONObject(payload);
-        String strippedUrl = obj.getJSONObject("repository")
-                .getString("clone_url")
-                .substring("https://".length());
-        accessToken = environment.getValue("ACCESS_TOKEN");
-        repoUrl = "https://" + accessToken + "@" + strippedUrl;
-        branchName = obj.getString("ref").substring("refs/heads/".length());
-        String repositoryName = obj.getJSONObject("repository").getString("name");
-
-
-        parentDir = new File(workDir, Long.toString(System.nanoTime()));
-        if (!parentDir.mkdirs()) {
-            throw new IOException("Could not create parent directory");
-        }
-
-        repoDir = new File(parentDir, repositoryName);
-    }
-
-    /**
-     * Constructor for creating an empty git repo to be used for testing ONLY!
-     */
-    RepoManager() throws IOException, InterruptedException {
-        parentDir = new File(workDir, Long.toString(System.nanoTime()));
-        repoDir = new File(parentDir, "testRepo");
-        branchName = "test-branch";
-        repoUrl = "not-applicable";
-        accessToken = "not-applicable";
-
-        if (!repoDir.mkdirs()) {
-            throw new IOException("Could not create repo dir in test constructor");
-        }
-
-        String[] gitInitCmd = new String[]{"git", "init"};
-        runtime.exec(gitInitCmd, null, repoDir).waitFor();
-
-        // We want to check for the branch names, but git does not output them when the repo is completely empty,
-        // so we need to add a dummy file first
-        String dummyFileName = "dummy";
-        File dummyFile = new File(repoDir, dummyFileName);
-        if (!dummyFile.createNewFile()) {
-            throw new IOException();
-        }
-        String[] gitAddCmd = new String[]{"git", "add", dummyFileName};
-        runtime.exec(gitAddCmd, null, repoDir).waitFor();
-        String[] gitCommitCmd = new String[]{"git", "commit", "-m", "\"dummy\""};
-        runtime.exec(gitCommitCmd, null, repoDir).waitFor();
-    }
-
-    /**
-     * Clones the repository specified by the repoUrl and checks out the correct branch.
-     */
-    public void cloneRepo() {
-        String[] cloneCmd = {"git", "clone", repoUrl};
-        System.out.println("cloning");
-        try {
-            runtime.exec(cloneCmd, null, parentDir).waitFor();
-        } catch (InterruptedException interruptedException) {
-            System.err.println("Could not wait for clone!");
-            interruptedException.printStackTrace();
-        } catch (IOException ioException) {
-            System.err.println("Error running git clone in " + parentDir.getAbsolutePath());
-            ioException.printStackTrace();
-        }
-    }
-
-    /**
-     * Checks out to the branch specified in the payload given in the constructor.
-     */
-    public void checkoutBranch() {
-        String[] checkoutCmd = {"git", "checkout", branchName};
-        System.out.println("checking out");
-        try {
-            runtime.exec(checkoutCmd, null, repoDir).waitFor();
-        } catch (InterruptedException interruptedException) {
-            System.err.println("Could not wait for checkout!");
-            interruptedException.printStackTrace();
-        } catch (IOException ioException) {
-            System.err.println("Error running git checkout in " + repoDir.getAbsolutePath());
-            ioException.printStackTrace();
-        }
-    }
-
-    /**
-     * Deletes the parent directory and all contents of the parent directory.
-     */
-    public void cleanUp() {
-        deleteDirectory(parentDir);
-    }
-
-    /**
-     * Delete a file, or recursively delete a directory
-     *
-     * @param file the file or directory to be deleted
-     */
-    static void deleteDirectory(File file) {
-        File[] contents = file.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                deleteDirectory(f);
-            }
-        }
-        file.delete();
-    }
-
-    /**
-     * Get the current workDir
-     *
-     * @return a file object
-     */
-    public File getWorkDir() {
-        return workDir;
-    }
-
-    /**
-     * Get the current parentDir
-     *
-     * @return a file object
-     */
-    public File getParentDir() {
-        return parentDir;
-    }
-
-    /**
-     * Get the repoDir
-     *
-     * @return a file object
-     */
-    public File getRepoDir() {
-        return repoDir;
-    }
-}
+package fundamentals.server.gitTooling;
+
+import fundamentals.server.Environment;
+import fundamentals.server.helpers.Bash;
+import fundamentals.server.helpers.FileHelper;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * This class deals with creating, managing, and deleting the local copies of the tested repositories.
+ * <p>
+ * Every repository has a bare mirror under "localFiles/mirrors" that is kept between builds and only receives the
+ * new objects with an incremental fetch. The working copy of each build is a local clone of that mirror, which
+ * hardlinks the objects instead of downloading the whole history again.
+ * <p>
+ * In the shallow fetch mode (the environment key "FETCH_MODE" set to "shallow") no mirror is used. Instead, only the
+ * pushed commit is fetched, with the history limited to "FETCH_DEPTH" commits (default 1). If the commit cannot be
+ * fetched on its own, deeper fetches of the branch are tried until the commit is found.
+ * <p>
+ * In both modes the exact commit that was pushed (the "after" SHA of the push event) is checked out as a detached
+ * HEAD, so a build never tests a newer head of the branch than the commit it reports the status for.
+ */
+public class RepoManager {
+
+    /**
+     * The ways the working copy of a build can be fetched.
+     */
+    public enum FetchMode {
+        /**
+         * Clone the working copy from a bare mirror that is kept between builds.
+         */
+        MIRROR,
+        /**
+         * Fetch only the pushed commit (and a limited amount of history) straight from Github.
+         */
+        SHALLOW
+    }
+
+    /**
+     * The number of commits fetched in the shallow fetch mode if nothing else is specified in the environment.
+     */
+    public static final int DEFAULT_FETCH_DEPTH = 1;
+
+    /**
+     * The shallow fetch mode multiplies the depth by this factor each time the commit could not be found.
+     */
+    private static final int DEEPEN_FACTOR = 8;
+
+    /**
+     * The shallow fetch mode gives up on limiting the history after this many tries and fetches everything.
+     */
+    private static final int MAX_DEEPEN_ATTEMPTS = 3;
+
+    /**
+     * The root directory of all the "working directories" as in a repository can end up here
+     */
+    public final File workDir = new File("localFiles/");
+
+    /**
+     * The directory where the bare mirrors of all repositories are kept between builds
+     */
+    public final File mirrorsDir = new File(workDir, "mirrors");
+
+    /**
+     * One lock per mirror. Fetching into a mirror requires the write lock, cloning from it requires the read lock,
+     * which means that several builds of the same repository can clone at the same time but never during a fetch.
+     */
+    private static final ConcurrentHashMap<String, ReadWriteLock> mirrorLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Parent directory to the workDir
+     */
+    public final File parentDir;
+
+    /**
+     * Path to a specific repository on disk
+     */
+    public final File repoDir;
+
+    /**
+     * Path to the bare mirror of the repository on disk
+     */
+    public final File mirrorDir;
+
+    private final String accessToken;
+
+    private final Runtime runtime = Runtime.getRuntime();
+
+    private final String branchName;
+    private final String commitHash;
+    private final String repoUrl;
+    private final FetchMode fetchMode;
+    private final int fetchDepth;
+
+    /**
+     * Creates the shell for each git command, so that the build can kill the command that is running.
+     */
+    private final Supplier<Bash> shells;
+
+    /**
+     * Create a RepoManager that manages the specified repository.
+     *
+     * @param payload The payload provided by the GitHub webhook
+     */
+    public RepoManager(String payload, Environment environment) throws IOException {
+        this(payload, environment, Bash::new);
+    }
+
+    /**
+     * Create a RepoManager that manages the specified repository, and runs every git command in a shell created by
+     * the caller. The caller can cancel the shell to stop a clone or fetch that is no longer needed.
+     *
+     * @param payload     The payload provided by the GitHub webhook
+     * @param environment the environment variables.
+     * @param shells      creates the shell for each git command.
+     */
+    public RepoManager(String payload, Environment environment, Supplier<Bash> shells) throws IOException {
+        this.shells = shells;
+        JSONObject obj = new JSONObject(payload);
+        String strippedUrl = obj.getJSONObject("repository")
+                .getString("clone_url")
+                .substring("https://".length());
+        accessToken = environment.getValue("ACCESS_TOKEN");
+        repoUrl = "https://" + accessToken + "@" + strippedUrl;
+        branchName = obj.getString("ref").substring("refs/heads/".length());
+        commitHash = obj.getString("after");
+        String repositoryName = obj.getJSONObject("repository").getString("name");
+        String ownerName = obj.getJSONObject("repository").getJSONObject("owner").getString("name");
+
+        mirrorDir = new File(new File(mirrorsDir, ownerName), repositoryName + ".git");
+
+        String mode = environment.getValue("FETCH_MODE");
+        fetchMode = "shallow".equalsIgnoreCase(mode) ? FetchMode.SHALLOW : FetchMode.MIRROR;
+        fetchDepth = Math.max(1, environment.getIntValueOrElse("FETCH_DEPTH", DEFAULT_FETCH_DEPTH));
+
+        parentDir = new File(workDir, Long.toString(System.nanoTime()));
+        if (!parentDir.mkdirs()) {
+            throw new IOException("Could not create parent directory");
+        }
+
+        repoDir = new File(parentDir, repositoryName);
+    }
+
+    /**
+     * Constructor for creating an empty git repo to be used for testing ONLY!
+     */
+    RepoManager() throws IOException, InterruptedException {
+        parentDir = new File(workDir, Long.toString(System.nanoTime()));
+        repoDir = new File(parentDir, "testRepo");
+        mirrorDir = new File(new File(mirrorsDir, "test-owner"), "testRepo.git");
+        branchName = "test-branch";
+        commitHash = null;
+        fetchMode = FetchMode.MIRROR;
+        fetchDepth = DEFAULT_FETCH_DEPTH;
+        repoUrl = "not-applicable";
+        accessToken = "not-applicable";
+        shells = Bash::new;
+
+        if (!repoDir.mkdirs()) {
+            throw new IOException("Could not create repo dir in test constructor");
+        }
+
+        String[] gitInitCmd = new String[]{"git", "init"};
+        runtime.exec(gitInitCmd, null, repoDir).waitFor();
+
+        // We want to check for the branch names, but git does not output them when the repo is completely empty,
+        // so we need to add a dummy file first
+        String dummyFileName = "dummy";
+        File dummyFile = new File(repoDir, dummyFileName);
+        if (!dummyFile.createNewFile()) {
+            throw new IOException();
+        }
+        String[] gitAddCmd = new String[]{"git", "add", dummyFileName};
+        runtime.exec(gitAddCmd, null, repoDir).waitFor();
+        String[] gitCommitCmd = new String[]{"git", "commit", "-m", "\"dummy\""};
+        runtime.exec(gitCommitCmd, null, repoDir).waitFor();
+    }
+
+    /**
+     * Creates the working copy of this build. In the mirror fetch mode the mirror is brought up to date and the
+     * working copy is a local clone of it, in the shallow fetch mode only the pushed commit is fetched.
+     * Call {@code checkoutCommit()} afterwards to check out the pushed commit.
+     *
+     * @throws IOException if the mirror could not be updated or the working copy could not be cloned, the build
+     *                     would otherwise test whatever happens to be on disk.
+     */
+    public void cloneRepo() throws IOException {
+        if (fetchMode == FetchMode.SHALLOW) {
+            fetchShallow();
+            return;
+        }
+
+        ReadWriteLock lock = mirrorLocks.computeIfAbsent(mirrorDir.getAbsolutePath(), path -> new ReentrantReadWriteLock());
+
+        lock.writeLock().lock();
+        try {
+            updateMirror();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        System.out.println("cloning");
+        lock.readLock().lock();
+        try {
+            // A local clone hardlinks the objects of the mirror, so no history is copied or downloaded.
+            String[] cloneCmd = {"git", "clone", "--local", "--no-checkout", mirrorDir.getAbsolutePath(), repoDir.getName()};
+            if (!runGit(cloneCmd, parentDir))
+                throw new IOException("Error running git clone in " + parentDir.getAbsolutePath());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates the mirror the first time a repository is built, later builds only fetch the new objects.
+     * Must be called while holding the write lock of the mirror.
+     *
+     * @throws IOException if the mirror could not be created or the new objects could not be fetched.
+     */
+    private void updateMirror() throws IOException {
+        if (!new File(mirrorDir, "HEAD").exists()) {
+            System.out.println("creating mirror");
+            if (!mirrorDir.exists() && !mirrorDir.mkdirs())
+                throw new IOException("Could not create mirror directory " + mirrorDir.getAbsolutePath());
+            // Only branches are mirrored, Github also advertises a ref for every pull request which we never build.
+            String[] initCmd = {"git", "init", "--bare"};
+            String[] addRemoteCmd = {"git", "remote", "add", "origin", repoUrl};
+            String[] refspecCmd = {"git", "config", "remote.origin.fetch", "+refs/heads/*:refs/heads/*"};
+            if (!runGit(initCmd, mirrorDir) || !runGit(addRemoteCmd, mirrorDir) || !runGit(refspecCmd, mirrorDir)) {
+                // Don't leave a half-created mirror behind, the next build would try to fetch into it.
+                FileHelper.deleteDirectory(mirrorDir);
+                throw new IOException("Error creating mirror in " + mirrorDir.getAbsolutePath());
+            }
+        }
+
+        System.out.println("fetching into mirror");
+        removeStaleLocks(mirrorDir);
+        // The access token may have changed since the mirror was created.
+        String[] setUrlCmd = {"git", "remote", "set-url", "origin", repoUrl};
+        String[] fetchCmd = {"git", "fetch", "--prune", "origin"};
+        // A stale mirror may not have the pushed commit, or worse, have an older commit at the head of the branch.
+        if (!runGit(setUrlCmd, mirrorDir) || !runGit(fetchCmd, mirrorDir))
+            throw new IOException("Error running git fetch in " + mirrorDir.getAbsolutePath());
+    }
+
+    /**
+     * Removes the lock files git leaves behind when it is killed, for example when the build that was fetching into
+     * the mirror was cancelled. Must be called while holding the write lock of the mirror, so no git command of this
+     * server can be using the mirror and every lock file is stale.
+     *
+     * @param directory the mirror, or one of its directories.
+     */
+    private static void removeStaleLocks(File directory) {
+        File[] contents = directory.listFiles();
+        if (contents == null)
+            return;
+        for (File file : contents) {
+            if (file.isDirectory()) {
+                // The objects are written to temporary files without locks, and there are a lot of them.
+                if (!file.getName().equals("objects"))
+                    removeStaleLocks(file);
+            } else if (file.getName().endsWith(".lock") && file.delete()) {
+                System.out.println("Removed the stale lock " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Fetches the pushed commit into a new, empty repository. The commit is fetched on its own first, which Github
+     * allows for any reachable commit. If that fails the branch is fetched instead, with deeper and deeper history
+     * until the commit is part of it.
+     *
+     * @throws IOException if the empty repository could not be created.
+     */
+    private void fetchShallow() throws IOException {
+        System.out.println("fetching " + commitHash + " at depth " + fetchDepth);
+        if (!repoDir.exists() && !repoDir.mkdirs())
+            throw new IOException("Could not create repo dir " + repoDir.getAbsolutePath());
+
+        String[] initCmd = {"git", "init"};
+        String[] addRemoteCmd = {"git", "remote", "add", "origin", repoUrl};
+        if (!runGit(initCmd, repoDir) || !runGit(addRemoteCmd, repoDir))
+            throw new IOException("Error running git init in " + repoDir.getAbsolutePath());
+
+        String[] fetchCommitCmd = {"git", "fetch", "--depth=" + fetchDepth, "origin", commitHash};
+        if (runGit(fetchCommitCmd, repoDir))
+            return;
+
+        String branchRef = "+refs/heads/" + branchName + ":refs/remotes/origin/" + branchName;
+        int depth = fetchDepth;
+        for (int attempt = 0; attempt < MAX_DEEPEN_ATTEMPTS; attempt++) {
+            System.out.println("fetching " + branchName + " at depth " + depth);
+            String[] fetchBranchCmd = {"git", "fetch", "--depth=" + depth, "origin", branchRef};
+            if (runGit(fetchBranchCmd, repoDir) && hasCommit(commitHash))
+                return;
+            depth *= DEEPEN_FACTOR;
+        }
+
+        System.out.println("fetching the whole history of " + branchName);
+        deepen();
+    }
+
+    /**
+     * Removes the history limit of a shallow working copy by fetching the rest of the history. Does nothing if the
+     * working copy already has the whole history.
+     */
+    private void deepen() {
+        if (!new File(new File(repoDir, ".git"), "shallow").exists())
+            return;
+
+        String[] unshallowCmd = {"git", "fetch", "--unshallow", "origin"};
+        if (!runGit(unshallowCmd, repoDir))
+            System.err.println("Error running git fetch --unshallow in " + repoDir.getAbsolutePath());
+    }
+
+    /**
+     * Checks out the commit that was pushed as a detached HEAD.
+     *
+     * @throws IOException if the commit is missing from the working copy, which should only happen if it was
+     *                     force-pushed away before the build started, or could not be checked out. Building the head
+     *                     of the branch instead would report the result of another commit.
+     */
+    public void checkoutCommit() throws IOException {
+        System.out.println("checking out " + commitHash);
+        if (!hasCommit(commitHash))
+            throw new IOException("Commit " + commitHash + " of " + branchName + " is missing from " + repoDir.getAbsolutePath());
+
+        String[] checkoutCmd = {"git", "checkout", "--detach", commitHash};
+        if (!runGit(checkoutCmd, repoDir))
+            throw new IOException("Error running git checkout in " + repoDir.getAbsolutePath());
+    }
+
+    /**
+     * @param commit the SHA of a commit.
+     * @return true if the commit exists in the working copy.
+     */
+    private boolean hasCommit(String commit) {
+        String[] catFileCmd = {"git", "cat-file", "-e", commit + "^{commit}"};
+        return runGit(catFileCmd, repoDir);
+    }
+
+    /**
+     * Runs a git command in a new shell and waits for it to finish. The output is never printed because it could
+     * contain the access token, and reading it is not needed to know whether the command succeeded.
+     *
+     * @param cmd the git command, each argument a separate element in the array
+     * @param dir the directory to run the command in
+     * @return true if git exited with exit code 0, false if it failed or its shell was cancelled
+     */
+    private boolean runGit(String[] cmd, File dir) {
+        Bash shell = shells.get();
+        if (shell.execute(cmd, null, dir))
+            return true;
+        if (shell.getExitCode() == -1 && !shell.isCancelled())
+            System.err.println("Error running " + cmd[0] + " " + cmd[1] + " in " + dir.getAbsolutePath());
+        return false;
+    }
+
+    /**
+     * Deletes the parent directory and all contents of the parent directory. The mirror is kept for the next build.
+     */
+    public void cleanUp() {
+        FileHelper.deleteDirectory(parentDir);
+    }
+
+    /**
+     * Get the fetch mode used for the working copy
+     *
+     * @return the fetch mode
+     */
+    public FetchMode getFetchMode() {
+        return fetchMode;
+    }
+
+    /**
+     * Get the current workDir
+     *
+     * @return a file object
+     */
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    /**
+     * Get the current parentDir
+     *
+     * @return a file object
+     */
+    public File getParentDir() {
+        return parentDir;
+    }
+
+    /**
+     * Get the repoDir
+     *
+     * @return a file object
+     */
+    public File getRepoDir() {
+        return repoDir;
+    }
+
+    /**
+     * Get the mirrorDir
+     *
+     * @return a file object
+     */
+    public File getMirrorDir() {
+        return mirrorDir;
+    }
+}
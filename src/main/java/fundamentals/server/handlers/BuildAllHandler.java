@@ -1,21 +1,41 @@
 package fundamentals.server.handlers;
 
+import fundamentals.server.Build;
 import fundamentals.server.BuildStorage;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
-import org.json.JSONArray;
+import org.json.JSONWriter;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
 
 /**
- * A handler that responds with a JSON-object with all builds performed by the
- * server.
+ * A handler that responds with a JSON array of the builds performed by the server, newest first, one page at a
+ * time. The size of the page is set with the "limit" query parameter. If there are older builds the response has
+ * a "Link" header with the URL of the next page ({@code rel="next"}), which continues after the build given by the
+ * "after" query parameter.
+ * <p>
+ * The builds are written to the response one at a time, so the response never has to be held in memory as a whole.
+ * The "X-Build-Sequence" header holds the sequence number of the builds before the page was read, changes after it
+ * can be followed on "/build/changes". The same sequence number is the ETag of the response, a request with it in
+ * "If-None-Match" is answered with "304 Not Modified" as long as no build has changed.
  */
 public class BuildAllHandler extends AbstractHandler {
 
+    /**
+     * The number of builds on a page when the request does not ask for a specific number.
+     */
+    public static final int DEFAULT_PAGE_BUILDS = 100;
+
+    /**
+     * The maximum number of builds on a page.
+     */
+    public static final int MAX_PAGE_BUILDS = 1000;
+
     private final BuildStorage storage;
 
     /**
@@ -28,7 +48,7 @@ public class BuildAllHandler extends AbstractHandler {
     }
 
     /**
-     * Responds to a request with a JSON string representing all performed builds.
+     * Responds to a request with a JSON array with a page of the performed builds.
      */
     @Override
     public void handle(String target,
@@ -36,12 +56,55 @@ public class BuildAllHandler extends AbstractHandler {
                        HttpServletRequest request,
                        HttpServletResponse response)
             throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        int limit;
+        try {
+            String value = request.getParameter("limit");
+            limit = value == null ? DEFAULT_PAGE_BUILDS : Math.min(MAX_PAGE_BUILDS, Integer.parseInt(value.strip()));
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (limit <= 0) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid limit");
+            return;
+        }
+
+        // Read before the page, so that a change made while the page is read is reported by /build/changes.
+        long sequence = storage.getSequence();
+        response.setHeader("X-Build-Sequence", Long.toString(sequence));
+        if (HttpCaching.notModified(request, response, HttpCaching.etag(sequence), HttpCaching.REVALIDATE))
+            return;
+
+        // One build more than the page holds tells whether there is a next page.
+        String after = request.getParameter("after");
+        List<Build> page = storage.getPage(after, limit + 1);
+        if (page == null) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("A build with the ID \"" + after + "\" does not exist");
+            return;
+        }
+
+        boolean hasNext = page.size() > limit;
+        if (hasNext) {
+            page = page.subList(0, limit);
+            String next = request.getContextPath() + "?limit=" + limit + "&after=" + page.get(limit - 1).getBuildID();
+            response.setHeader("Link", "<" + next + ">; rel=\"next\"");
+        }
+
         response.setContentType("application/json;charset=utf-8");
         response.setStatus(HttpServletResponse.SC_OK);
-        baseRequest.setHandled(true);
 
-        // Respond with the JSON array of all builds.
-        JSONArray builds = storage.getAllBuilds();
-        response.getWriter().println(builds.toString());
+        // Write the builds straight to the response instead of creating the whole JSON array first.
+        PrintWriter out = response.getWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.array();
+        for (Build build : page)
+            writer.value(build.toJSON());
+        writer.endArray();
+        out.println();
     }
 }
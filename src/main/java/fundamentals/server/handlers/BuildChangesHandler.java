@@ -0,0 +1,103 @@
+package fundamentals.server.handlers;
+
+import fundamentals.server.BuildChanges;
+import fundamentals.server.BuildStorage;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Responds with the builds that have changed after a sequence number on "/build/changes?since=&lt;sequence&gt;",
+ * so that a dashboard only has to fetch what is new. The response is a JSON object with the changed builds
+ * ("builds", each with the "sequence" number of its latest change), the "sequence" number to ask with next time and
+ * "more", which is true if not every change fitted in the response. Without "since" every build is returned.
+ * <p>
+ * The changes can also be followed as Server-Sent Events, see {@code BuildChangesStreamHandler}.
+ */
+public class BuildChangesHandler extends AbstractHandler {
+
+    /**
+     * The maximum number of builds in one response, and the number returned when the request does not ask for a
+     * specific number with "limit".
+     */
+    public static final int MAX_CHANGES = 1000;
+
+    private final BuildStorage storage;
+
+    /**
+     * Create a new handler for /build/changes
+     *
+     * @param storage the build storage to use for the request
+     */
+    public BuildChangesHandler(BuildStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Responds with the builds that have changed after the sequence number in the "since" query parameter.
+     */
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        long since;
+        int limit;
+        try {
+            String sinceValue = request.getParameter("since");
+            String limitValue = request.getParameter("limit");
+            since = sinceValue == null ? 0 : Long.parseLong(sinceValue.strip());
+            limit = limitValue == null ? MAX_CHANGES : Math.min(MAX_CHANGES, Integer.parseInt(limitValue.strip()));
+        } catch (NumberFormatException e) {
+            limit = -1;
+            since = 0;
+        }
+        if (limit <= 0) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid since or limit");
+            return;
+        }
+
+        BuildChanges changes = storage.getChangesSince(since, limit);
+
+        response.setContentType("application/json;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        // Write the builds straight to the response, like /build/all.
+        PrintWriter out = response.getWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("sequence").value(changes.sequence());
+        writer.key("more").value(changes.more());
+        writer.key("builds").array();
+        for (BuildChanges.Change change : changes.changes())
+            writer.value(toJSON(change));
+        writer.endArray();
+        writer.endObject();
+        out.println();
+    }
+
+    /**
+     * Returns the JSON object of a changed build: the build with the sequence number of its latest change.
+     *
+     * @param change the change.
+     * @return the JSON object.
+     */
+    static JSONObject toJSON(BuildChanges.Change change) {
+        JSONObject json = change.build().toJSON();
+        json.put("sequence", change.sequence());
+        return json;
+    }
+}
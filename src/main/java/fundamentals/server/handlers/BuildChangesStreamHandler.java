@@ -0,0 +1,99 @@
+package fundamentals.server.handlers;
+
+import fundamentals.server.BuildChanges;
+import fundamentals.server.BuildStorage;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the changes to the builds as Server-Sent Events on "/build/changes/stream". Every time a build is added or
+ * changed it is sent as a "build" event, with the JSON of the build (as in {@code BuildChangesHandler}) as data and
+ * the sequence number of the change as event ID. The stream starts after the "since" query parameter, or after the
+ * "Last-Event-ID" header when a client resumes, and without either with every build. A position that is not a number
+ * is answered with "400 Bad Request".
+ * <p>
+ * Like {@code BuildLogStreamHandler}, the response is written by an {@code EventStream} whenever a build changes.
+ */
+public class BuildChangesStreamHandler extends AbstractHandler {
+
+    /**
+     * The maximum number of builds that are written in one go.
+     */
+    private static final int CHANGES_PER_WRITE = 64;
+
+    private final BuildStorage storage;
+
+    /**
+     * Create a new handler for /build/changes/stream
+     *
+     * @param storage the build storage to use for the request
+     */
+    public BuildChangesStreamHandler(BuildStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Starts streaming the changes to the builds.
+     */
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        long since;
+        try {
+            String lastEventID = request.getHeader("Last-Event-ID");
+            String sinceValue = lastEventID != null ? lastEventID : request.getParameter("since");
+            since = sinceValue == null ? 0 : Long.parseLong(sinceValue.strip());
+        } catch (NumberFormatException e) {
+            EventStream.rejectLastEventID(response, "since");
+            return;
+        }
+
+        ChangeStream stream = new ChangeStream(since);
+        stream.start(request, response);
+        storage.addChangeListener(stream.listener);
+        // What changed before the listener was registered would otherwise wait for the next change.
+        stream.changed();
+    }
+
+    /**
+     * One client that is following the changes.
+     */
+    private class ChangeStream extends EventStream {
+        private final Runnable listener = this::changed;
+
+        private long since;
+
+        ChangeStream(long since) {
+            this.since = since;
+        }
+
+        @Override
+        protected byte[] nextEvents() {
+            BuildChanges changes = storage.getChangesSince(since, CHANGES_PER_WRITE);
+            since = changes.sequence();
+            if (changes.changes().isEmpty())
+                return null;
+
+            StringBuilder events = new StringBuilder();
+            for (BuildChanges.Change change : changes.changes())
+                appendEvent(events, change.sequence(), "build", BuildChangesHandler.toJSON(change).toString());
+            return events.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected void closed() {
+            storage.removeChangeListener(listener);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package fundamentals.server.handlers;
 
+import fundamentals.server.Build;
+import fundamentals.server.BuildChanges;
+import fundamentals.server.BuildQueue;
 import fundamentals.server.BuildStorage;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -10,17 +13,49 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 
+/**
+ * Handles "/build/{id}" and the endpoints below "/build". A build is returned with a strong ETag made from the
+ * sequence number of its latest change, so a client that sends it back in "If-None-Match" gets "304 Not Modified"
+ * until the build changes. Builds that have finished can be kept by the client for a long time, the others must be
+ * checked every time.
+ */
 public class BuildHandler extends AbstractHandler {
 
     private final BuildStorage storage;
+    private final BuildQueue queue;
+    private final boolean publicCaching;
+    private final BuildLogStreamHandler logStreamHandler;
+    private final BuildLogHandler logHandler;
+    private final BuildQueryHandler queryHandler;
+    private final BuildChangesHandler changesHandler;
+    private final BuildChangesStreamHandler changesStreamHandler;
 
     /**
      * Create a new handler for /handler/
      *
      * @param storage the build storage to use for the request
+     * @param queue the build queue, used to report the queue position of builds that have not started yet
      */
-    public BuildHandler(BuildStorage storage) {
+    public BuildHandler(BuildStorage storage, BuildQueue queue) {
+        this(storage, queue, false);
+    }
+
+    /**
+     * Create a new handler for /handler/
+     *
+     * @param storage       the build storage to use for the request
+     * @param queue         the build queue, used to report the queue position of builds that have not started yet
+     * @param publicCaching true if shared caches (like a reverse proxy) may keep finished builds
+     */
+    public BuildHandler(BuildStorage storage, BuildQueue queue, boolean publicCaching) {
         this.storage = storage;
+        this.queue = queue;
+        this.publicCaching = publicCaching;
+        this.logStreamHandler = new BuildLogStreamHandler(storage);
+        this.logHandler = new BuildLogHandler(storage);
+        this.queryHandler = new BuildQueryHandler(storage);
+        this.changesHandler = new BuildChangesHandler(storage);
+        this.changesStreamHandler = new BuildChangesStreamHandler(storage);
     }
 
     @Override
@@ -35,20 +70,43 @@ public class BuildHandler extends AbstractHandler {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             baseRequest.setHandled(true);
             response.getWriter().println("Please provide a build ID: /build/{id}");
+        } else if (target.equals("/query")) {
+            queryHandler.handle(target, baseRequest, request, response);
+        } else if (target.equals("/changes")) {
+            changesHandler.handle(target, baseRequest, request, response);
+        } else if (target.equals("/changes/stream")) {
+            changesStreamHandler.handle(target, baseRequest, request, response);
+        } else if (target.matches("/[^/]+/logs/stream")) {
+            logStreamHandler.handle(target, baseRequest, request, response);
+        } else if (target.matches("/[^/]+/logs")) {
+            logHandler.handle(target, baseRequest, request, response);
         } else {
             String buildID = target.substring(1);
             System.out.println("Build ID: " + buildID);
 
             // Find the JSON object that has information about the requested build ID and return that.
-            JSONObject build = storage.getBuild(buildID);
+            BuildChanges.Change change = storage.getChange(buildID);
+            Build build = change == null ? null : change.build();
             if (build == null) {
                 response.setContentType("text/html;charset=utf-8");
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 response.getWriter().println("A build with the ID \"" + buildID + "\" does not exist");
+            } else if (build.state() == Build.State.QUEUED) {
+                // The queue position changes all the time, so it is only added to the response.
+                JSONObject queuedBuild = build.toJSON();
+                queuedBuild.put("queue_position", queue.getQueuePosition(buildID));
+                queuedBuild.put("queue_depth", queue.getQueueDepth());
+                response.setContentType("application/json;charset=utf-8");
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setHeader("Cache-Control", "no-store");
+                response.getWriter().println(queuedBuild.toString());
+            } else if (HttpCaching.notModified(request, response, HttpCaching.etag(change.sequence()),
+                    storage.isFinal(build) ? HttpCaching.immutable(publicCaching) : HttpCaching.REVALIDATE)) {
+                // The client already has this version of the build, it is not serialized again.
             } else {
                 response.setContentType("application/json;charset=utf-8");
                 response.setStatus(HttpServletResponse.SC_OK);
-                response.getWriter().println(build.toString());
+                response.getWriter().println(build.toJSON().toString());
             }
 
             baseRequest.setHandled(true);
@@ -0,0 +1,145 @@
+package fundamentals.server.handlers;
+
+import fundamentals.server.BuildStorage;
+import fundamentals.server.logs.BuildLog;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Returns a page of the log of a build on "/build/{id}/logs", so that big logs can be loaded a piece at a time.
+ * The page is chosen with the "offset" and "limit" query parameters, or with a "Range: lines=first-last" header
+ * (line numbers start at 0 and the last line is included). A Range request is answered with "206 Partial Content"
+ * and a "Content-Range: lines first-last/total" header.
+ */
+public class BuildLogHandler extends AbstractHandler {
+
+    /**
+     * The number of lines returned when the request does not ask for a specific number.
+     */
+    public static final int DEFAULT_PAGE_LINES = 500;
+
+    /**
+     * The maximum number of lines returned in one response.
+     */
+    public static final int MAX_PAGE_LINES = 5000;
+
+    private static final Pattern RANGE = Pattern.compile("lines=(\\d*)-(\\d*)");
+
+    private final BuildStorage storage;
+
+    /**
+     * Create a new handler for /build/{id}/logs
+     *
+     * @param storage the build storage to use for the request
+     */
+    public BuildLogHandler(BuildStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Returns the requested lines of the log, the target should be "/{id}/logs".
+     */
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        String buildID = target.substring(1, target.indexOf('/', 1));
+        BuildLog log = storage.getBuildLog(buildID);
+        if (log == null) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("A build with the ID \"" + buildID + "\" does not exist");
+            return;
+        }
+
+        // Read whether the log is complete before reading the lines, a line appended in between is then reported
+        // as part of an incomplete log instead of being missed.
+        boolean complete = log.isClosed();
+        long total = log.size();
+        long offset;
+        int limit;
+        boolean partial = false;
+
+        try {
+            String range = request.getHeader("Range");
+            Matcher matcher = range == null ? null : RANGE.matcher(range.strip());
+            if (matcher != null && matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                long first;
+                long last;
+                if (matcher.group(1).isEmpty()) {
+                    // "lines=-100" asks for the last 100 lines, like a suffix byte range.
+                    first = Math.max(0, total - Long.parseLong(matcher.group(2)));
+                    last = total - 1;
+                } else {
+                    first = Long.parseLong(matcher.group(1));
+                    last = matcher.group(2).isEmpty() ? total - 1 : Long.parseLong(matcher.group(2));
+                }
+
+                if (first > last || first >= total) {
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader("Content-Range", "lines */" + total);
+                    return;
+                }
+
+                offset = first;
+                limit = (int) Math.min(MAX_PAGE_LINES, Math.min(last, total - 1) - first + 1);
+                partial = true;
+            } else {
+                offset = Math.max(0, parseLong(request.getParameter("offset"), 0));
+                limit = (int) Math.min(MAX_PAGE_LINES, Math.max(0, parseLong(request.getParameter("limit"), DEFAULT_PAGE_LINES)));
+            }
+        } catch (NumberFormatException e) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid offset, limit or range");
+            return;
+        }
+
+        List<BuildLog.Line> lines = log.read(offset, limit);
+
+        JSONArray jsonLines = new JSONArray();
+        for (BuildLog.Line line : lines) {
+            JSONObject jsonLine = new JSONObject();
+            jsonLine.put("number", line.number());
+            jsonLine.put("phase", line.phase());
+            jsonLine.put("text", line.text());
+            jsonLines.put(jsonLine);
+        }
+
+        JSONObject page = new JSONObject();
+        page.put("build_id", buildID);
+        page.put("total", total);
+        page.put("offset", offset);
+        page.put("complete", complete);
+        page.put("lines", jsonLines);
+
+        response.setContentType("application/json;charset=utf-8");
+        response.setHeader("Accept-Ranges", "lines");
+        if (partial) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            long last = lines.isEmpty() ? offset : offset + lines.size() - 1;
+            response.setHeader("Content-Range", "lines " + offset + "-" + last + "/" + total);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        response.getWriter().println(page);
+    }
+
+    private static long parseLong(String value, long orElse) {
+        return value == null ? orElse : Long.parseLong(value.strip());
+    }
+}
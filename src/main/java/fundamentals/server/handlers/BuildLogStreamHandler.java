@@ -0,0 +1,126 @@
+package fundamentals.server.handlers;
+
+import fundamentals.server.BuildStorage;
+import fundamentals.server.logs.BuildLog;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Streams the log of a build as Server-Sent Events on "/build/{id}/logs/stream". Every line of the log is sent as an
+ * event with the line number as event ID and the build step ("compile" or "test") as event type. When the build has
+ * finished an "end" event is sent and the response is completed.
+ * <p>
+ * A client can resume a stream with the "Last-Event-ID" header (or the "offset" query parameter), in which case only
+ * the lines after that position are sent, a position that is not a number is answered with "400 Bad Request". The
+ * response is written by an {@code EventStream} whenever new lines are appended to the log.
+ */
+public class BuildLogStreamHandler extends AbstractHandler {
+
+    /**
+     * The maximum number of lines that are written in one go.
+     */
+    private static final int LINES_PER_WRITE = 256;
+
+    private final BuildStorage storage;
+
+    /**
+     * Create a new handler for /build/{id}/logs/stream
+     *
+     * @param storage the build storage to use for the request
+     */
+    public BuildLogStreamHandler(BuildStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Starts streaming the log of the build, the target should be "/{id}/logs/stream".
+     */
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        String buildID = target.substring(1, target.indexOf('/', 1));
+        BuildLog log = storage.getBuildLog(buildID);
+        if (log == null) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("A build with the ID \"" + buildID + "\" does not exist");
+            return;
+        }
+
+        long startLine;
+        try {
+            startLine = getStartLine(request);
+        } catch (NumberFormatException e) {
+            EventStream.rejectLastEventID(response, "offset");
+            return;
+        }
+
+        LogStream stream = new LogStream(log, startLine);
+        stream.start(request, response);
+        log.addListener(stream.listener);
+        // What changed before the listener was registered would otherwise wait for the next change.
+        stream.changed();
+    }
+
+    // The first line to send: the line after the Last-Event-ID if the client is resuming, otherwise the offset.
+    private static long getStartLine(HttpServletRequest request) {
+        String lastEventID = request.getHeader("Last-Event-ID");
+        if (lastEventID != null)
+            return Long.parseLong(lastEventID.strip()) + 1;
+        String offset = request.getParameter("offset");
+        if (offset != null)
+            return Math.max(0, Long.parseLong(offset.strip()));
+        return 0;
+    }
+
+    /**
+     * One client that is following a log.
+     */
+    private static class LogStream extends EventStream {
+        private final BuildLog log;
+        private final Runnable listener = this::changed;
+
+        private long nextLine;
+
+        LogStream(BuildLog log, long nextLine) {
+            this.log = log;
+            this.nextLine = nextLine;
+        }
+
+        @Override
+        protected byte[] nextEvents() {
+            // Check if the log is closed before reading, otherwise lines appended in between could be missed.
+            boolean closed = log.isClosed();
+            List<BuildLog.Line> lines = log.read(nextLine, LINES_PER_WRITE);
+            StringBuilder events = new StringBuilder();
+            if (!lines.isEmpty()) {
+                for (BuildLog.Line line : lines)
+                    appendEvent(events, line.number(), line.phase(), line.text());
+                nextLine = lines.get(lines.size() - 1).number() + 1;
+            } else if (closed) {
+                appendEvent(events, "end", "");
+                end();
+            } else {
+                return null;
+            }
+            return events.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected void closed() {
+            log.removeListener(listener);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package fundamentals.server.handlers;
+
+import fundamentals.server.Build;
+import fundamentals.server.BuildQuery;
+import fundamentals.server.BuildStorage;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.json.JSONArray;
+
+import java.io.IOException;
+
+/**
+ * Responds with the builds that match the query parameters on "/build/query", newest first, as a JSON array. All
+ * parameters are optional:
+ * <ul>
+ *     <li>repo: the repository, "owner/name" or only the name.</li>
+ *     <li>branch: the branch.</li>
+ *     <li>commit: the full commit SHA.</li>
+ *     <li>status: pending, success, failure, error or cancelled.</li>
+ *     <li>since: only builds started at or after this time, in milliseconds since the epoch, as
+ *     "yyyy-MM-dd HH:mm:ss" or as an ISO-8601 instant.</li>
+ *     <li>limit: the maximum number of builds, {@code DEFAULT_LIMIT} by default. The latest build of a branch is
+ *     "/build/query?repo=owner/name&amp;branch=main&amp;limit=1".</li>
+ * </ul>
+ */
+public class BuildQueryHandler extends AbstractHandler {
+
+    /**
+     * The number of builds returned when the request does not ask for a specific number.
+     */
+    public static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * The maximum number of builds returned in one response.
+     */
+    public static final int MAX_LIMIT = 1000;
+
+    private final BuildStorage storage;
+
+    /**
+     * Create a new handler for /build/query
+     *
+     * @param storage the build storage to use for the request
+     */
+    public BuildQueryHandler(BuildStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Responds with the builds that match the query parameters.
+     */
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        BuildQuery query;
+        try {
+            query = parseQuery(request);
+        } catch (IllegalArgumentException e) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(e.getMessage());
+            return;
+        }
+
+        JSONArray builds = new JSONArray();
+        for (Build build : storage.query(query))
+            builds.put(build.toJSON());
+
+        response.setContentType("application/json;charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(builds.toString());
+    }
+
+    private static BuildQuery parseQuery(HttpServletRequest request) {
+        String owner = null;
+        String repository = request.getParameter("repo");
+        if (repository != null && repository.contains("/")) {
+            owner = repository.substring(0, repository.indexOf('/'));
+            repository = repository.substring(repository.indexOf('/') + 1);
+        }
+
+        return new BuildQuery(owner, repository, request.getParameter("branch"), request.getParameter("commit"),
+                parseStatus(request.getParameter("status")), parseSince(request.getParameter("since")),
+                parseLimit(request.getParameter("limit")));
+    }
+
+    private static Build.Status parseStatus(String value) {
+        if (value == null)
+            return null;
+        for (Build.Status status : Build.Status.values()) {
+            if (status.toString().equals(value))
+                return status;
+        }
+        throw new IllegalArgumentException("Invalid status \"" + value + "\"");
+    }
+
+    private static long parseSince(String value) {
+        if (value == null)
+            return 0;
+        if (value.matches("\\d+"))
+            return Long.parseLong(value);
+        try {
+            return Build.parseTime(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid time \"" + value + "\"");
+        }
+    }
+
+    private static int parseLimit(String value) {
+        if (value == null)
+            return DEFAULT_LIMIT;
+        try {
+            int limit = Integer.parseInt(value.strip());
+            if (limit <= 0)
+                throw new IllegalArgumentException("The limit must be positive");
+            return Math.min(limit, MAX_LIMIT);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit \"" + value + "\"");
+        }
+    }
+}
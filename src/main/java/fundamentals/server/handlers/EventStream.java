@@ -0,0 +1,197 @@
+package fundamentals.server.handlers;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One client that follows a stream of Server-Sent Events, the part that {@code BuildLogStreamHandler} and
+ * {@code BuildChangesStreamHandler} have in common. A subclass only decides which events come next, this class
+ * writes them with Jetty's async I/O, so waiting clients don't hold a thread, and sends a heartbeat to idle streams.
+ * <p>
+ * Everything that writes to the response is synchronized on the stream because writes are triggered both by Jetty
+ * (when the connection can take more data) and by the thread that has something new for the stream, through
+ * {@code changed()}.
+ */
+public abstract class EventStream implements WriteListener {
+
+    /**
+     * How often a comment is sent to idle streams, which keeps proxies from closing them and detects closed clients.
+     */
+    private static final long HEARTBEAT_INTERVAL_SECONDS = 15;
+
+    // Every open stream, of every handler, gets its heartbeat from the same thread.
+    private static final Set<EventStream> STREAMS = ConcurrentHashMap.newKeySet();
+
+    static {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-stream-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(() -> STREAMS.forEach(EventStream::heartbeat),
+                HEARTBEAT_INTERVAL_SECONDS, HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private AsyncContext async;
+    private ServletOutputStream out;
+
+    private boolean heartbeatDue = false;
+    private boolean ended = false;
+    private boolean completed = false;
+
+    /**
+     * Answers a request whose "Last-Event-ID" header, or the query parameter that does the same for a new stream, is
+     * not a number. Both stream handlers answer such a request the same way.
+     *
+     * @param response  the response to the request.
+     * @param parameter the name of the query parameter that can hold the event ID.
+     */
+    public static void rejectLastEventID(HttpServletResponse response, String parameter) throws IOException {
+        response.setContentType("text/html;charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.getWriter().println("Invalid " + parameter + " or Last-Event-ID");
+    }
+
+    /**
+     * Turns the request into an open stream of events, the events are written as soon as the connection takes them.
+     * The subclass should start listening for changes after this call, and then call {@code changed()} once for the
+     * changes that came before its listener.
+     *
+     * @param request  the request that opens the stream.
+     * @param response the response the events are written to.
+     */
+    public void start(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/event-stream;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        async = request.startAsync();
+        // The stream stays open until it ends or the client goes away.
+        async.setTimeout(0);
+
+        // The write listener must be in place before anything else can trigger a write.
+        out = response.getOutputStream();
+        out.setWriteListener(this);
+        STREAMS.add(this);
+    }
+
+    /**
+     * Returns the events to write next, as many as should be written in one go.
+     *
+     * @return the events, created with {@code appendEvent()}, or null if there is nothing to write until
+     * {@code changed()} is called.
+     */
+    protected abstract byte[] nextEvents();
+
+    /**
+     * Called once when the stream is completed, to stop listening for changes.
+     */
+    protected abstract void closed();
+
+    /**
+     * Marks the events that were returned last as the end of the stream, the response is completed after they have
+     * been written.
+     */
+    protected void end() {
+        ended = true;
+    }
+
+    /**
+     * Called when there may be new events, writes them if the connection can take them.
+     */
+    public void changed() {
+        try {
+            onWritePossible();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        // Write as long as the connection takes data without blocking, Jetty calls us again when it can take more.
+        while (!completed && out.isReady()) {
+            if (heartbeatDue) {
+                heartbeatDue = false;
+                out.write(": heartbeat\n\n".getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            if (ended) {
+                complete();
+                return;
+            }
+
+            byte[] events = nextEvents();
+            if (events == null) {
+                // Nothing to write until something changes.
+                out.flush();
+                return;
+            }
+            out.write(events);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            complete();
+        }
+    }
+
+    /**
+     * Appends one event in the Server-Sent Events format.
+     *
+     * @param events the events that are written in one go.
+     * @param id     the event ID, which the client sends back as "Last-Event-ID" when it resumes.
+     * @param type   the event type, for example "build".
+     * @param data   the data of the event.
+     */
+    protected static void appendEvent(StringBuilder events, long id, String type, String data) {
+        events.append("id: ").append(id).append('\n');
+        appendEvent(events, type, data);
+    }
+
+    /**
+     * Appends one event without an event ID in the Server-Sent Events format.
+     *
+     * @param events the events that are written in one go.
+     * @param type   the event type, for example "end".
+     * @param data   the data of the event.
+     */
+    protected static void appendEvent(StringBuilder events, String type, String data) {
+        events.append("event: ").append(type).append('\n');
+        // A carriage return would end the data field early, and every line needs its own data field, see the
+        // Server-Sent Events specification.
+        for (String line : data.replace('\r', ' ').split("\n", -1))
+            events.append("data: ").append(line).append('\n');
+        events.append('\n');
+    }
+
+    // Called by the heartbeat thread, sends a comment which clients ignore.
+    private void heartbeat() {
+        synchronized (this) {
+            heartbeatDue = true;
+        }
+        changed();
+    }
+
+    private void complete() {
+        if (completed)
+            return;
+        completed = true;
+        STREAMS.remove(this);
+        closed();
+        async.complete();
+    }
+}
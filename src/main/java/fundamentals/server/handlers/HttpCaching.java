@@ -0,0 +1,89 @@
+package fundamentals.server.handlers;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Helps the handlers answer conditional GET requests. Responses get a strong ETag made from the sequence number of
+ * the latest change they show (see {@code BuildStorage.getSequence()}), and a request with an "If-None-Match" header
+ * that still matches is answered with "304 Not Modified" and no body.
+ */
+public class HttpCaching {
+
+    /**
+     * How long (in seconds) browsers and proxies may keep a response that can never change, one year.
+     */
+    public static final long IMMUTABLE_MAX_AGE_SECONDS = 365L * 24 * 60 * 60;
+
+    /**
+     * The Cache-Control header for a response that may change: it can be kept, but must be checked with the server
+     * (with the ETag) every time it is used.
+     */
+    public static final String REVALIDATE = "no-cache";
+
+    private HttpCaching() {
+    }
+
+    /**
+     * Returns the strong ETag for a sequence number.
+     *
+     * @param sequence the sequence number of the latest change shown by the response.
+     * @return the ETag, including the quotes.
+     */
+    public static String etag(long sequence) {
+        return "\"" + sequence + "\"";
+    }
+
+    /**
+     * Returns true if an "If-None-Match" header matches an ETag. Like the HTTP specification says, the comparison is
+     * weak: "W/" in front of a tag in the header is ignored.
+     *
+     * @param ifNoneMatch the value of the header, or null if the request does not have it.
+     * @param etag        the current ETag of the resource.
+     * @return true if the client already has the current resource.
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.strip();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the ETag and the Cache-Control header of a response, and answers with "304 Not Modified" if the request
+     * already has the current resource. The caller must not write a body when this returns true.
+     *
+     * @param request      the request.
+     * @param response     the response.
+     * @param etag         the current ETag of the resource.
+     * @param cacheControl the value of the Cache-Control header.
+     * @return true if the response has been answered with 304.
+     */
+    public static boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag,
+                                      String cacheControl) {
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", cacheControl);
+        if (!matches(request.getHeader("If-None-Match"), etag))
+            return false;
+
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /**
+     * Returns the Cache-Control header for a response that can never change.
+     *
+     * @param publicCaching true if shared caches (like a reverse proxy) may keep the response, even though the
+     *                      request needed a password.
+     * @return the value of the header.
+     */
+    public static String immutable(boolean publicCaching) {
+        return (publicCaching ? "public, " : "private, ") + "max-age=" + IMMUTABLE_MAX_AGE_SECONDS + ", immutable";
+    }
+}
@@ -0,0 +1,112 @@
+package fundamentals.server.handlers;
+
+import fundamentals.server.helpers.FileHelper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A file of the user interface (like "public/build.html") that is read into main-memory once and compressed with
+ * gzip once, so that a request only has to write the bytes. Clients that accept gzip get the compressed bytes.
+ * <p>
+ * Both versions have a strong ETag made from a hash of the file, and a client that sends it back in
+ * "If-None-Match" gets "304 Not Modified". The file is read again when the server restarts.
+ */
+public class StaticAsset {
+
+    private final String contentType;
+    private final byte[] content;
+    private final byte[] gzipContent;
+    private final String etag;
+    private final String gzipEtag;
+
+    private StaticAsset(String contentType, byte[] content) throws IOException {
+        this.contentType = contentType;
+        this.content = content;
+        this.gzipContent = gzip(content);
+
+        String hash = hash(content);
+        this.etag = "\"" + hash + "\"";
+        // Not Jetty's "--gzip" suffix, the GzipHandler would remove that from the If-None-Match header.
+        this.gzipEtag = "\"" + hash + "-gz\"";
+    }
+
+    /**
+     * Reads a file into main-memory and compresses it.
+     *
+     * @param path        the path of the file.
+     * @param contentType the content type to send the file with, for example "text/html;charset=utf-8".
+     * @return the asset.
+     * @throws IOException if the file could not be read.
+     */
+    public static StaticAsset load(String path, String contentType) throws IOException {
+        return new StaticAsset(contentType, Files.readAllBytes(Path.of(path)));
+    }
+
+    /**
+     * Sends the file, compressed if the client accepts gzip, or "304 Not Modified" if the client already has it.
+     *
+     * @param request  the request.
+     * @param response the response.
+     * @throws IOException if the response could not be written.
+     */
+    public void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding")) && gzipContent.length < content.length;
+        response.setHeader("Vary", "Accept-Encoding");
+        if (HttpCaching.notModified(request, response, gzip ? gzipEtag : etag, HttpCaching.REVALIDATE))
+            return;
+
+        byte[] body = gzip ? gzipContent : content;
+        response.setContentType(contentType);
+        if (gzip)
+            response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength(body.length);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * Returns true if an "Accept-Encoding" header allows gzip, for example "gzip, deflate, br".
+     *
+     * @param acceptEncoding the value of the header, or null if the request does not have it.
+     * @return true if the response may be compressed with gzip.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].strip();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*"))
+                continue;
+
+            // "gzip;q=0" means that gzip is not acceptable.
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].strip().replace(" ", "");
+                if (parameter.matches("q=0(\\.0*)?"))
+                    refused = true;
+            }
+            return !refused;
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String hash(byte[] content) {
+        return HexFormat.of().formatHex(FileHelper.sha256().digest(content), 0, 16);
+    }
+}
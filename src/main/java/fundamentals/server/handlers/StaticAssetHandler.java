@@ -0,0 +1,64 @@
+package fundamentals.server.handlers;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+
+/**
+ * Sends the same file back for every request, for example build.html for "/ui/build/{id}" and build_all.html for
+ * "/ui/build/all". The file is read (and compressed) once when the handler is created, see {@code StaticAsset}.
+ */
+public class StaticAssetHandler extends AbstractHandler {
+
+    /**
+     * The page that shows one build, on "/ui/build/{id}".
+     */
+    public static final String UI_BUILD_FILE = "public/build.html";
+
+    /**
+     * The page that lists the builds, on "/ui/build/all".
+     */
+    public static final String UI_BUILD_ALL_FILE = "public/build_all.html";
+
+    private final String file;
+    private final StaticAsset asset;
+
+    /**
+     * Create a new handler and read the file into main-memory.
+     *
+     * @param file        the path of the file.
+     * @param contentType the content type of the file, for example "text/html;charset=utf-8".
+     */
+    public StaticAssetHandler(String file, String contentType) {
+        this.file = file;
+        StaticAsset loaded = null;
+        try {
+            loaded = StaticAsset.load(file, contentType);
+        } catch (IOException e) {
+            System.err.println("Could not read " + file);
+            e.printStackTrace();
+        }
+        asset = loaded;
+    }
+
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+
+        if (asset == null) {
+            response.setContentType("text/html;charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.getWriter().println("Could not read " + file);
+            return;
+        }
+        asset.serve(request, response);
+    }
+}
@@ -1,15 +1,19 @@
 package fundamentals.server.handlers;
 
 
+import fundamentals.server.Build;
+import fundamentals.server.BuildJob;
+import fundamentals.server.BuildQueue;
+import fundamentals.server.BuildResults;
 import fundamentals.server.BuildStorage;
 import fundamentals.server.Environment;
 import fundamentals.server.SecurityManager;
-import fundamentals.server.Tester;
-import fundamentals.server.gitTooling.GithubCommitAPI;
-import fundamentals.server.gitTooling.GithubCommitAPIRequest;
-import fundamentals.server.gitTooling.RepoManager;
-import fundamentals.server.helpers.Bash;
-import fundamentals.server.helpers.Compiler;
+import fundamentals.server.gitTooling.CommitStatusQueue;
+import fundamentals.server.gitTooling.GithubCommitAPI.CommitStatus;
+import fundamentals.server.helpers.BuildOutputCache;
+import fundamentals.server.helpers.MavenBuild;
+import fundamentals.server.helpers.MavenDaemonPool;
+import fundamentals.server.helpers.MavenRepositoryCache;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -21,28 +25,49 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 /**
  * The {@code WebhookHandler} will handle requests on the /webhook endpoint. These requests will come from Github
  * and indicates that an event has occurred. We are especially interested in listening to the "push" event which is when a
- * new commit has been pushed.
+ * new commit has been pushed. A push event only creates a build and places it in the {@code BuildQueue}, the request
+ * is answered with "202 Accepted" and the build ID before the build has started. If the tree of the pushed commit has
+ * already been built successfully with the same build configuration, the result of that build is reused: a finished
+ * build is recorded, the commit status is sent right away and the request is answered with "200 OK".
  */
 public class WebhookHandler extends AbstractHandler {
 
     private final BuildStorage storage;
     private final Environment environment;
+    private final BuildQueue queue;
+    private final CommitStatusQueue statuses;
+    private final MavenDaemonPool daemons;
+    private final MavenRepositoryCache repositoryCache;
+    private final BuildResults results;
+    private final BuildOutputCache outputs;
 
     /**
      * Create a new handler for /webhook/
      *
      * @param environment the environment variables
      * @param storage the build storage to use for the request
+     * @param queue the queue where accepted builds are placed
+     * @param statuses the queue that delivers the commit statuses of the builds to Github
+     * @param daemons the warm Maven daemons that the builds of some repositories run on
+     * @param repositoryCache the local Maven repository shared by the builds
+     * @param results decides when the result of an earlier build is reused
+     * @param outputs the outputs of the last successful build of each branch
      */
-    public WebhookHandler(Environment environment, BuildStorage storage) {
+    public WebhookHandler(Environment environment, BuildStorage storage, BuildQueue queue, CommitStatusQueue statuses,
+                          MavenDaemonPool daemons, MavenRepositoryCache repositoryCache, BuildResults results,
+                          BuildOutputCache outputs) {
         this.storage = storage;
         this.environment = environment;
+        this.queue = queue;
+        this.statuses = statuses;
+        this.daemons = daemons;
+        this.repositoryCache = repositoryCache;
+        this.results = results;
+        this.outputs = outputs;
     }
 
     @Override
@@ -67,7 +92,6 @@ public class WebhookHandler extends AbstractHandler {
             baseRequest.setHandled(true);
             System.out.println("Ping event");
         } else if (event.equals("push")) {
-            response.setStatus(HttpServletResponse.SC_OK);
             baseRequest.setHandled(true);
 
             // Read the body and parse it to a JSON object.
@@ -101,82 +125,81 @@ public class WebhookHandler extends AbstractHandler {
             System.out.println("Repository:" + repository);
             System.out.println("Commit:" + commitHash);
 
-            // Create a build ID, build date and set build status = pending. Store this in a JSONObject in main-memory.
-            JSONObject newBuild = storage.addNewBuild(owner, repository, branch, commitHash);
-            String buildID = newBuild.getString("build_id");
-
-            String username = environment.getValue("USERNAME");
-            String personalAccessToken = environment.getValue("PERSONAL_ACCESS_TOKEN");
-            String hostname = environment.getValue("HOSTNAME");
-
-            // The URL Github will show the user associated with the Github status.
-            String targetUrl = "http://" + hostname + "/ui/build/" + buildID;
-
-            GithubCommitAPI api = new GithubCommitAPI(owner, repository, commitHash, username, personalAccessToken);
-            GithubCommitAPIRequest apiRequest = api.setCommitStatusPending("Compiling and running tests...", targetUrl);
-
-            if (apiRequest.send()) {
-                System.out.println("Updated commit status to pending for commit: " + commitHash);
-            } else {
-                System.out.println("Failed to update commit status for: " + commitHash);
+            // The same tree built the same way gets the same result, there is no need to build it again.
+            String resultKey = getResultKey(root, owner, repository);
+            Build result = results != null && results.isEnabled() ? storage.findReusableResult(resultKey) : null;
+            if (result != null) {
+                reuseResult(response, owner, repository, branch, commitHash, result);
+                return;
             }
 
-            RepoManager manager = new RepoManager(body.toString(), environment);
-            Compiler compiler = new Compiler(manager.getRepoDir(), new Bash());
-
-            // Clone the repo and switch to the modified branch.
-            manager.cloneRepo();
-            manager.checkoutBranch();
-
-            // Check if the project compiles.
-            Boolean didCompile = compiler.compile();
-
-            // Store compile logs in the JSON object.
-            for (String log : compiler.getCompileOutput())
-                newBuild.getJSONArray("compile_logs").put(log);
+            // Create a build ID, build date and set build state = queued. The build is on disk before Github gets an
+            // answer, so that a restart can find it and report it as failed instead of leaving it pending forever.
+            Build newBuild = storage.addNewBuild(owner, repository, branch, commitHash, resultKey);
+            String buildID = newBuild.getBuildID();
+            storage.saveBuild(buildID);
 
-            if (didCompile) {
-                System.out.println("Did compile without error");
+            // The build is run by a build worker, Github does not want to wait for it.
+            BuildJob job = new BuildJob(body.toString(), buildID, owner, repository, branch, commitHash, storage,
+                    environment, statuses, daemons, repositoryCache, outputs);
 
-                newBuild.put("compile_status", "success");
+            JSONObject responseBody = new JSONObject();
+            responseBody.put("build_id", buildID);
+            response.setContentType("application/json;charset=utf-8");
 
-                // Check if all tests pass.
-                Tester tester = new Tester(manager.getRepoDir(), new Bash());
-                Boolean testsPassed = tester.run();
-
-                // Store test logs in the JSON object.
-                for (String log : tester.getTestOutput())
-                    newBuild.getJSONArray("test_logs").put(log);
-
-                if (testsPassed) {
-                    System.out.println("Testsuite executed without any failures");
-                    newBuild.put("test_status", "success");
-                    apiRequest = api.setCommitStatusSuccess("Tests passed", targetUrl);
-                } else {
-                    System.out.println("Testsuite failed");
-                    newBuild.put("test_status", "failure");
-                    apiRequest = api.setCommitStatusFailure("Tests failed", targetUrl);
-                }
+            if (queue.enqueue(job)) {
+                System.out.println("Queued build " + buildID + " (queue depth: " + queue.getQueueDepth() + ")");
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
             } else {
-                System.err.println("Compilation failed");
-                newBuild.put("compile_status", "error");
-                newBuild.put("test_status", "failure"); // No need to run the tests if the project did not compile.
-                apiRequest = api.setCommitStatusError("Compile error", targetUrl);
+                System.err.println("Build queue is full, rejected build " + buildID);
+                storage.update(buildID, build -> build
+                        .toBuilder()
+                        .state(Build.State.REJECTED)
+                        .compileStatus(Build.Status.ERROR)
+                        .testStatus(Build.Status.FAILURE)
+                        .endedAt(System.currentTimeMillis())
+                        .build());
+                storage.finishBuildLog(buildID);
+                storage.saveBuild(buildID);
+                // Github would otherwise show no status for the commit, as if it had never been pushed.
+                statuses.setCommitStatus(owner, repository, commitHash, CommitStatus.ERROR,
+                        "Rejected, the build queue is full", BuildJob.getTargetUrl(environment, buildID));
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", "60");
             }
 
-            // The build has finished, store the build ended timestamp and save the build to disk.
-            newBuild.put("build_ended", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
-            storage.saveToDisk();
+            response.getWriter().println(responseBody);
+        }
+    }
 
-            // Update the commit status for the commit on Github.
-            if (apiRequest.send()) {
-                System.out.println("Updated commit status for commit: " + commitHash);
-            } else {
-                System.out.println("Failed to update commit status for: " + commitHash);
-            }
+    // The result key of the pushed commit, null if the push event has no head commit (for example a deleted branch).
+    private String getResultKey(JSONObject root, String owner, String repository) {
+        if (results == null)
+            return null;
+        JSONObject headCommit = root.optJSONObject("head_commit");
+        String treeHash = headCommit == null ? null : headCommit.optString("tree_id", null);
+        boolean onDaemon = daemons != null && daemons.isUsedBy(owner, repository);
+        return results.key(treeHash, onDaemon ? daemons.getCommand() : MavenBuild.defaultCommand().get(0));
+    }
 
-            // Remove the cloned repo from disk (no need to store this anymore because the build has completed).
-            manager.cleanUp();
-        }
+    // Records a finished build with the result of an earlier build and sends its commit status right away.
+    private void reuseResult(HttpServletResponse response, String owner, String repository, String branch,
+                             String commitHash, Build result) throws IOException {
+        Build reused = storage.addReusedBuild(owner, repository, branch, commitHash, result);
+        String buildID = reused.getBuildID();
+        storage.saveBuild(buildID);
+        System.out.println("Reused the result of build " + reused.reusedFrom() + " for build " + buildID);
+
+        String shortCommit = result.commit().substring(0, Math.min(7, result.commit().length()));
+        String description = "Tests passed (same tree as " + shortCommit + ")";
+        statuses.setCommitStatus(owner, repository, commitHash, CommitStatus.SUCCESS, description,
+                BuildJob.getTargetUrl(environment, buildID));
+
+        JSONObject responseBody = new JSONObject();
+        responseBody.put("build_id", buildID);
+        responseBody.put("reused_from", reused.reusedFrom());
+        response.setContentType("application/json;charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(responseBody);
     }
 }
@@ -3,17 +3,103 @@ package fundamentals.server.helpers;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Helper class for running "exec()" commands and capturing their output in a more ergonomic way than using
  * Runtime.exec() directly.
+ * <p>
+ * Both stdout and stderr are drained by their own thread while the process is running, so a process that prints a
+ * lot can never block on a full pipe. The lines of both streams are passed through one bounded queue, in the order
+ * they were read, to the output listeners. The listeners see the output while the process is still running.
  */
 public class Bash {
+
+    /**
+     * The number of lines that can wait for the listeners before the drain threads (and thereby the process) are
+     * slowed down.
+     */
+    public static final int LINE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The number of lines at the end of stdout that are kept for {@code getStdout()}. The whole output only goes to
+     * the output listeners, so a process that prints a lot does not fill the memory.
+     */
+    public static final int STDOUT_TAIL_LINES = 1000;
+
+    /**
+     * How often the CPU time of the process tree is sampled while the process is running.
+     */
+    private static final long CPU_SAMPLE_INTERVAL_MS = 500;
+
+    /**
+     * The stream a line of output was read from.
+     */
+    public enum Stream {
+        STDOUT,
+        STDERR
+    }
+
+    /**
+     * A line of output from the process.
+     *
+     * @param number the position of the line in the combined output of stdout and stderr, starting at 0.
+     * @param stream the stream the line was read from.
+     * @param text   the text of the line, without the line terminator.
+     */
+    public record OutputLine(long number, Stream stream, String text) {
+    }
+
+    // What the drain threads put in the queue, the number is given to the line once it is taken out of the queue.
+    private record RawLine(Stream stream, String text) {
+    }
+
+    // Put in the queue by a drain thread once its stream has ended.
+    private static final RawLine END_OF_STREAM = new RawLine(null, null);
+
     private final Runtime runtime = Runtime.getRuntime();
+    private final List<Consumer<OutputLine>> listeners = new CopyOnWriteArrayList<>();
     private List<String> stdout;
 
+    private int exitCode = -1;
+    private Duration wallTime = Duration.ZERO;
+    private volatile Duration cpuTime = Duration.ZERO;
+
+    /**
+     * The process that is currently running, null if no process is running.
+     */
+    private volatile Process process;
+
+    /**
+     * True if {@code cancel()} has been called, any process started afterwards is killed immediately.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Registers a listener that is called with every line of output (from both stdout and stderr) while the process
+     * is running. The listeners are called one line at a time, in order, from the thread that called
+     * {@code execute()}.
+     *
+     * @param listener the listener.
+     */
+    public void addOutputListener(Consumer<OutputLine> listener) {
+        listeners.add(listener);
+    }
+
     /**
      * Spawns a process by executing a command, and blocks while the process is running.
      *
@@ -23,25 +109,97 @@ public class Bash {
      * @return true if the process exited normally with exit code 0
      */
     public boolean execute(String[] cmdArray, String[] envArr, File dir) {
-        Process process = null;
-        BufferedReader reader = null;
+        long startTime = System.nanoTime();
+        ArrayDeque<String> stdoutTail = new ArrayDeque<>();
+        stdout = Collections.emptyList();
+        exitCode = -1;
+        cpuTime = Duration.ZERO;
 
+        Process process;
         try {
             process = runtime.exec(cmdArray, envArr, dir);
-            reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            process.waitFor();
-        } catch (InterruptedException interruptedException) {
-            return false;
         } catch (IOException ioException) {
+            wallTime = Duration.ofNanos(System.nanoTime() - startTime);
+            return false;
+        }
+
+        this.process = process;
+        // cancel() may have been called before the process was published, in that case kill it here.
+        if (cancelled)
+            destroyProcessTree(process);
+
+        BlockingQueue<RawLine> lines = new ArrayBlockingQueue<>(LINE_QUEUE_CAPACITY);
+        // Set once nobody reads the queue anymore, so that the drain threads stop instead of waiting for room.
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        startDrainThread(process.getInputStream(), Stream.STDOUT, lines, stopped, process.pid());
+        startDrainThread(process.getErrorStream(), Stream.STDERR, lines, stopped, process.pid());
+
+        Map<Long, Duration> cpuTimes = new HashMap<>();
+        try {
+            long lineNumber = 0;
+            int endedStreams = 0;
+            long nextSample = 0;
+            while (endedStreams < 2) {
+                if (System.nanoTime() >= nextSample) {
+                    sampleCpuTime(process, cpuTimes);
+                    cpuTime = cpuTimes.values().stream().reduce(Duration.ZERO, Duration::plus);
+                    nextSample = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CPU_SAMPLE_INTERVAL_MS);
+                }
+
+                RawLine line = lines.poll(CPU_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (line == null)
+                    continue;
+                if (line == END_OF_STREAM) {
+                    endedStreams++;
+                    continue;
+                }
+
+                if (line.stream() == Stream.STDOUT) {
+                    if (stdoutTail.size() == STDOUT_TAIL_LINES)
+                        stdoutTail.removeFirst();
+                    stdoutTail.addLast(line.text());
+                }
+                notifyListeners(new OutputLine(lineNumber++, line.stream(), line.text()));
+            }
+
+            sampleCpuTime(process, cpuTimes);
+            exitCode = process.waitFor();
+        } catch (InterruptedException interruptedException) {
+            // Nobody is waiting for the result anymore, so don't leave the process running.
+            destroyProcessTree(process);
+            Thread.currentThread().interrupt();
             return false;
         } finally {
-            stdout = reader.lines().toList();
+            stopped.set(true);
+            this.process = null;
+            stdout = Collections.unmodifiableList(new ArrayList<>(stdoutTail));
+            wallTime = Duration.ofNanos(System.nanoTime() - startTime);
+            cpuTime = cpuTimes.values().stream().reduce(Duration.ZERO, Duration::plus);
         }
-        return process.exitValue() == 0;
+        return !cancelled && exitCode == 0;
     }
 
     /**
-     * Returns the stdout of an executed params
+     * Kills the process that is currently running together with every process it has started, for example the
+     * JVMs that are forked by Maven to run the tests. Processes started after this call are killed immediately.
+     */
+    public void cancel() {
+        cancelled = true;
+        Process process = this.process;
+        if (process != null)
+            destroyProcessTree(process);
+    }
+
+    /**
+     * @return true if {@code cancel()} has been called.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the last lines of stdout of the executed command, at most {@code STDOUT_TAIL_LINES}. Use an output
+     * listener to see every line.
      *
      * Will be null if command is not executed
      *
@@ -50,4 +208,95 @@ public class Bash {
     public List<String> getStdout() {
         return stdout;
     }
+
+    /**
+     * Returns the exit code of the last executed command.
+     *
+     * @return the exit code, or -1 if the command could not be started or did not finish.
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Returns how long the last executed command ran, measured by the wall clock.
+     *
+     * @return the wall time.
+     */
+    public Duration getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Returns the CPU time used by the last executed command and all processes it started. The CPU time of the
+     * processes is sampled while they run, so time used by a short-lived child between two samples can be missed.
+     * While the command is running this is the CPU time of the latest sample.
+     *
+     * @return the CPU time, or zero if the operating system does not report it.
+     */
+    public Duration getCpuTime() {
+        return cpuTime;
+    }
+
+    // Reads a stream line by line into the queue until the stream ends, or until execute() has stopped reading the
+    // queue (for example because its thread was interrupted), in which case the rest of the output is dropped.
+    private static void startDrainThread(InputStream stream, Stream name, BlockingQueue<RawLine> lines,
+                                         AtomicBoolean stopped, long pid) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!offer(lines, new RawLine(name, line), stopped))
+                        return;
+                }
+            } catch (IOException ignored) {
+                // The stream is closed when the process is killed, which ends the output just like EOF does.
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                offer(lines, END_OF_STREAM, stopped);
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }, "bash-" + name.toString().toLowerCase() + "-" + pid);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Waits for room in the queue, returns false without adding the line if the queue is no longer read.
+    private static boolean offer(BlockingQueue<RawLine> lines, RawLine line, AtomicBoolean stopped)
+            throws InterruptedException {
+        while (!lines.offer(line, CPU_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            if (stopped.get())
+                return false;
+        }
+        return true;
+    }
+
+    // Remembers the latest CPU time of the process and each of its descendants, the total is the sum of them.
+    private static void sampleCpuTime(Process process, Map<Long, Duration> cpuTimes) {
+        process.info().totalCpuDuration().ifPresent(duration -> cpuTimes.put(process.pid(), duration));
+        process.descendants().forEach(child ->
+                child.info().totalCpuDuration().ifPresent(duration -> cpuTimes.put(child.pid(), duration)));
+    }
+
+    private void notifyListeners(OutputLine line) {
+        for (Consumer<OutputLine> listener : listeners) {
+            try {
+                listener.accept(line);
+            } catch (RuntimeException e) {
+                // A broken listener must not stop the output from being drained.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Kill the children before the parent, otherwise they are re-parented and can no longer be found.
+    private static void destroyProcessTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
 }
@@ -0,0 +1,327 @@
+package fundamentals.server.helpers;
+
+import fundamentals.server.Environment;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the "target" directories of the last successful build of each branch, so that the next build of the branch
+ * only compiles what has changed instead of compiling the whole project in a fresh working copy.
+ * <p>
+ * Maven decides what to compile by comparing the modification times of the sources with the compiled classes. A
+ * fresh checkout gives every source the time of the checkout, so restoring the classes alone would still compile
+ * everything. The cache therefore also remembers a hash and the modification time of every source file. When the
+ * outputs are restored, the sources with the same content get their old modification time back, and only the
+ * sources that changed look newer than their classes. (With the default settings the Maven compiler plugin then
+ * compiles every module that has a changed source, and skips the others.)
+ * <p>
+ * Nothing is restored if a pom.xml, the Maven configuration or the Maven executable (see
+ * {@code MavenRepositoryCache.key()}), or the JDK has changed since the outputs were saved, since plugins and
+ * compiler settings can change the output of every source. Nothing is restored if a source has been deleted either,
+ * its classes would otherwise still be found by the tests.
+ */
+public class BuildOutputCache {
+
+    /**
+     * The directory of the cache if nothing else is specified in the environment.
+     */
+    public static final String DEFAULT_DIRECTORY = "localFiles/outputs";
+
+    /**
+     * The file in the directory of a branch that describes the saved outputs.
+     */
+    public static final String MANIFEST_FILE = "manifest.json";
+
+    private static final String TARGET = "target";
+
+    // The saved "target" directory of a module is kept in "modules/<path of the module>/target".
+    private static final String MODULES = "modules";
+
+    // The new outputs of a branch are put together in "<branch directory>~tmp", and the old ones are moved to
+    // "<branch directory>~old" while they are replaced. The branch names are URL-encoded, which turns "~" into "%7E",
+    // so no branch directory can end like this.
+    private static final String TEMP_SUFFIX = "~tmp";
+
+    private static final String OLD_SUFFIX = "~old";
+
+    // Where the Maven plugins keep what they did in the previous build.
+    private static final String MAVEN_STATUS = "maven-status";
+
+    /**
+     * The number of locks that the branches share.
+     */
+    private static final int LOCK_COUNT = 64;
+
+    /**
+     * Saving the outputs of a branch requires the write lock of the branch, restoring them the read lock. The branches
+     * share a fixed number of locks by the hash of their directory, so the locks don't grow with the number of
+     * branches. Two branches with the same lock only wait for each other.
+     */
+    private static final ReadWriteLock[] branchLocks = new ReadWriteLock[LOCK_COUNT];
+
+    static {
+        for (int i = 0; i < LOCK_COUNT; i++)
+            branchLocks[i] = new ReentrantReadWriteLock();
+    }
+
+    private final File directory;
+    private final boolean enabled;
+
+    /**
+     * Creates the cache.
+     *
+     * @param directory the directory where the outputs of every branch are kept.
+     * @param enabled   false to never save or restore outputs.
+     */
+    public BuildOutputCache(File directory, boolean enabled) {
+        this.directory = directory.getAbsoluteFile();
+        this.enabled = enabled;
+    }
+
+    /**
+     * Creates the cache from the environment key "OUTPUT_CACHE" (true by default).
+     *
+     * @param environment the environment variables.
+     * @return the cache.
+     */
+    public static BuildOutputCache fromEnvironment(Environment environment) {
+        return new BuildOutputCache(new File(DEFAULT_DIRECTORY),
+                environment.getBooleanValueOrElse("OUTPUT_CACHE", true));
+    }
+
+    /**
+     * Restores the outputs of the last successful build of a branch into a working copy, before Maven runs.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @param branch     the branch.
+     * @param repoDir    the working copy, with the commit checked out.
+     * @param configKey  the key of the pom.xml files and the Maven executable, see {@code MavenRepositoryCache.key()}.
+     * @return true if outputs were restored.
+     */
+    public boolean restore(String owner, String repository, String branch, File repoDir, String configKey) {
+        if (!enabled || configKey == null)
+            return false;
+
+        File branchDir = getBranchDirectory(owner, repository, branch);
+        Lock lock = getLock(branchDir).readLock();
+        lock.lock();
+        try {
+            File manifestFile = new File(branchDir, MANIFEST_FILE);
+            if (!manifestFile.exists())
+                return false;
+
+            JSONObject manifest = new JSONObject(Files.readString(manifestFile.toPath(), StandardCharsets.UTF_8));
+            if (!manifest.optString("config").equals(withJdk(configKey))) {
+                System.out.println("Not restoring the outputs of " + branch + ", the build configuration has changed");
+                return false;
+            }
+
+            Map<String, Path> sources = findSources(repoDir.toPath());
+            JSONObject savedSources = manifest.getJSONObject("sources");
+            for (String path : savedSources.keySet()) {
+                if (!sources.containsKey(path)) {
+                    System.out.println("Not restoring the outputs of " + branch + ", " + path + " has been deleted");
+                    return false;
+                }
+            }
+
+            JSONArray targets = manifest.getJSONArray("targets");
+            for (int i = 0; i < targets.length(); i++) {
+                String module = targets.getString(i);
+                Path target = repoDir.toPath().resolve(module).resolve(TARGET);
+                copyDirectory(branchDir.toPath().resolve(MODULES).resolve(module).resolve(TARGET), target);
+                movePluginStatus(target, manifest.getString("root"), repoDir.getAbsolutePath());
+            }
+
+            // Unchanged sources get their old time back, so that they are older than their restored classes.
+            int unchanged = 0;
+            for (Map.Entry<String, Path> source : sources.entrySet()) {
+                JSONObject saved = savedSources.optJSONObject(source.getKey());
+                if (saved != null && saved.getString("hash").equals(FileHelper.hash(source.getValue()))) {
+                    Files.setLastModifiedTime(source.getValue(), FileTime.fromMillis(saved.getLong("modified")));
+                    unchanged++;
+                }
+            }
+            System.out.println("Restored the outputs of " + branch + ", " + (sources.size() - unchanged)
+                    + " of " + sources.size() + " files have changed");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // For example a manifest that is not valid JSON, or an UncheckedIOException while walking a directory.
+            System.err.println("Could not restore the outputs of " + branch + " from " + branchDir);
+            e.printStackTrace();
+            // Half restored outputs could be newer than the sources they were not compiled from.
+            for (File target : findTargets(repoDir.toPath()))
+                FileHelper.deleteDirectory(target);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the outputs of a successful build as the outputs of its branch, replacing the outputs of the last build.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @param branch     the branch.
+     * @param repoDir    the working copy, after Maven has finished.
+     * @param configKey  the key of the pom.xml files and the Maven executable, see {@code MavenRepositoryCache.key()}.
+     */
+    public void save(String owner, String repository, String branch, File repoDir, String configKey) {
+        if (!enabled || configKey == null)
+            return;
+
+        File branchDir = getBranchDirectory(owner, repository, branch);
+        File tempDir = new File(branchDir.getPath() + TEMP_SUFFIX);
+        File oldDir = new File(branchDir.getPath() + OLD_SUFFIX);
+        Lock lock = getLock(branchDir).writeLock();
+        lock.lock();
+        try {
+            FileHelper.deleteDirectory(tempDir);
+            Files.createDirectories(tempDir.toPath());
+
+            JSONArray targets = new JSONArray();
+            for (File target : findTargets(repoDir.toPath())) {
+                String module = repoDir.toPath().relativize(target.getParentFile().toPath()).toString();
+                copyDirectory(target.toPath(), tempDir.toPath().resolve(MODULES).resolve(module).resolve(TARGET));
+                targets.put(module);
+            }
+
+            JSONObject sources = new JSONObject();
+            for (Map.Entry<String, Path> source : findSources(repoDir.toPath()).entrySet()) {
+                JSONObject saved = new JSONObject();
+                saved.put("hash", FileHelper.hash(source.getValue()));
+                saved.put("modified", Files.getLastModifiedTime(source.getValue()).toMillis());
+                sources.put(source.getKey(), saved);
+            }
+
+            JSONObject manifest = new JSONObject();
+            manifest.put("config", withJdk(configKey));
+            manifest.put("root", repoDir.getAbsolutePath());
+            manifest.put("targets", targets);
+            manifest.put("sources", sources);
+            Files.writeString(new File(tempDir, MANIFEST_FILE).toPath(), manifest.toString(), StandardCharsets.UTF_8);
+
+            // The outputs of the last build are only replaced once the new ones are complete, and only with renames:
+            // deleting the old outputs in place could be interrupted halfway. The old outputs are moved aside, the
+            // new ones are moved in, and only then are the old ones deleted. If the server stops in between, the
+            // branch directory is missing, which just means that the next build compiles everything.
+            FileHelper.deleteDirectory(oldDir);
+            if (branchDir.exists())
+                Files.move(branchDir.toPath(), oldDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempDir.toPath(), branchDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            FileHelper.deleteDirectory(oldDir);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not save the outputs of " + branch + " to " + branchDir);
+            e.printStackTrace();
+            FileHelper.deleteDirectory(tempDir);
+            // Keep the outputs of the last build if the new ones could not be moved in.
+            if (!branchDir.exists() && oldDir.exists()) {
+                try {
+                    Files.move(oldDir.toPath(), branchDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException moveException) {
+                    moveException.printStackTrace();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @param branch     the branch.
+     * @return the directory where the outputs of the branch are kept.
+     */
+    public File getBranchDirectory(String owner, String repository, String branch) {
+        // Branch names can contain "/", which would otherwise nest the branches in each other.
+        String name = URLEncoder.encode(branch, StandardCharsets.UTF_8);
+        return new File(new File(new File(directory, owner), repository), name);
+    }
+
+    private static ReadWriteLock getLock(File branchDir) {
+        return branchLocks[Math.floorMod(branchDir.getAbsolutePath().hashCode(), LOCK_COUNT)];
+    }
+
+    // The classes are compiled by the JDK that runs the build.
+    private static String withJdk(String configKey) {
+        return configKey + "-" + System.getProperty("java.version");
+    }
+
+    // The "target" directories of the modules: next to a pom.xml, and not inside another "target" directory.
+    private static List<File> findTargets(Path repoDir) {
+        List<File> targets = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(repoDir)) {
+            paths.filter(path -> path.getFileName().toString().equals(TARGET))
+                    .filter(Files::isDirectory)
+                    .filter(path -> Files.exists(path.resolveSibling("pom.xml")))
+                    .filter(path -> !FileHelper.isIgnored(repoDir.relativize(path.getParent())))
+                    .forEach(path -> targets.add(path.toFile()));
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not find the outputs in " + repoDir);
+            e.printStackTrace();
+        }
+        return targets;
+    }
+
+    // Every file of the working copy that is not an output, by path relative to the working copy.
+    private static Map<String, Path> findSources(Path repoDir) throws IOException {
+        Map<String, Path> sources = new HashMap<>();
+        try (Stream<Path> paths = Files.walk(repoDir)) {
+            for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                Path relative = repoDir.relativize(path);
+                if (!FileHelper.isIgnored(relative))
+                    sources.put(relative.toString(), path);
+            }
+        }
+        return sources;
+    }
+
+    // The Maven plugins list the sources they used with absolute paths, and every build has its own working copy.
+    // A list with the paths of the previous working copy would make the compiler plugin compile every source again.
+    private static void movePluginStatus(Path target, String from, String to) throws IOException {
+        Path status = target.resolve(MAVEN_STATUS);
+        if (!Files.isDirectory(status))
+            return;
+        try (Stream<Path> paths = Files.walk(status)) {
+            for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                String text = Files.readString(path, StandardCharsets.UTF_8);
+                if (text.contains(from))
+                    Files.writeString(path, text.replace(from, to), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    // Copies a directory with the modification times of its files, which Maven compares with the sources.
+    private static void copyDirectory(Path from, Path to) throws IOException {
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path path : paths.toList()) {
+                Path copy = to.resolve(from.relativize(path).toString());
+                if (Files.isDirectory(path))
+                    Files.createDirectories(copy);
+                else
+                    Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package fundamentals.server.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces files in a way that survives a crash: the new content is written to a temporary file next to the file,
+ * forced to disk and then renamed over the file. After a crash the file is either the old or the new file, never
+ * half of the new one.
+ */
+public class DurableFile {
+
+    /**
+     * The suffix of the temporary file, "builds.json" is written as "builds.json.tmp" first.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the content of a file to a stream.
+     */
+    public interface Content {
+        /**
+         * @param out the stream to the temporary file, it is buffered and is closed afterwards.
+         * @throws IOException if the content cannot be written.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private DurableFile() {
+    }
+
+    /**
+     * Replaces a file with new content. The method returns once the new file and its name are on disk.
+     *
+     * @param target  the file to replace, it does not have to exist yet.
+     * @param content writes the new content of the file.
+     * @throws IOException if the file could not be written, the old file is then left as it was.
+     */
+    public static void replace(Path target, Content content) throws IOException {
+        target = target.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             OutputStream out = new BufferedOutputStream(file)) {
+            content.writeTo(out);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(target.getParent());
+    }
+
+    /**
+     * Forces the entries of a directory to disk, which makes a file that was created or renamed in it durable. Not
+     * every platform can open a directory, a rename is still atomic without it.
+     *
+     * @param directory the directory.
+     */
+    public static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package fundamentals.server.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+/**
+ * File operations that the working copies, the Maven repository and the output cache have in common.
+ */
+public class FileHelper {
+
+    private FileHelper() {
+    }
+
+    /**
+     * Deletes a file, or a directory with everything in it. A failure is logged, and whatever could not be deleted is
+     * left behind.
+     *
+     * @param file the file or directory, nothing happens if it does not exist.
+     */
+    public static void deleteDirectory(File file) {
+        Path directory = file.toPath();
+        if (!Files.exists(directory))
+            return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not remove " + file);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns true for the files of a working copy that are not part of the project: build outputs and version
+     * control.
+     *
+     * @param relative the path of the file relative to the working copy.
+     * @return true if the path is in a "target" or ".git" directory.
+     */
+    public static boolean isIgnored(Path relative) {
+        for (Path part : relative) {
+            String name = part.toString();
+            if (name.equals("target") || name.equals(".git"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a new SHA-256 digest.
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param file the file.
+     * @return the SHA-256 hash of the content of the file, as hex.
+     * @throws IOException if the file cannot be read.
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,167 @@
+package fundamentals.server.helpers;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles and tests the repository with a single "mvn test", instead of "mvn compile" followed by a second, cold
+ * "mvn test" that starts Maven again and checks everything that was just compiled.
+ * <p>
+ * Whether the compilation or the tests failed is told apart by following the output of Maven while it runs. Maven
+ * prints a line like "--- maven-compiler-plugin:3.8.1:compile (default-compile) @ project ---" before every goal.
+ * Each module starts in the {@code COMPILE} stage, and moves to the {@code TEST} stage with the first goal that runs
+ * after the "compile" goal (usually "testResources"). A build that fails in the compile stage failed to compile,
+ * just like "mvn compile" would have; a build that fails in the test stage compiled, but its tests failed.
+ */
+public class MavenBuild {
+
+    /**
+     * The part of the build that Maven is working on.
+     */
+    public enum Stage {
+        COMPILE,
+        TEST
+    }
+
+    /**
+     * The arguments that are added after the Maven command, to compile and test the project.
+     */
+    public static final List<String> GOALS = List.of("-B", "test");
+
+    // The line Maven prints before a goal: "--- <plugin>:<version>:<goal> (<execution>) @ <module> ---".
+    private static final Pattern GOAL_HEADER = Pattern.compile("--- (\\S+)(?: \\([^)]*\\))? @ (\\S+) ---");
+
+    // Colors, in case Maven is configured to print them even in batch mode.
+    private static final Pattern ANSI_ESCAPE = Pattern.compile("\u001B\\[[;\\d]*m");
+
+    private final File repoDir;
+    private final Bash shell;
+    private final List<String> maven;
+
+    private volatile Stage stage = Stage.COMPILE;
+    private String module;
+    private boolean compileGoalStarted = false;
+
+    private long startedAt;
+    private Duration compileWallTime;
+    private Duration compileCpuTime;
+    private boolean succeeded = false;
+
+    /**
+     * Create a new Maven build that starts a new Maven ("mvn"). The build follows the output of the shell, so the
+     * shell should not be used for anything else.
+     *
+     * @param repoDir the directory where source code will exist
+     * @param shell   a shell that will execute Maven
+     */
+    public MavenBuild(File repoDir, Bash shell) {
+        this(repoDir, shell, defaultCommand());
+    }
+
+    /**
+     * Create a new Maven build that runs Maven with a specific command, for example on a daemon of the
+     * {@code MavenDaemonPool}.
+     *
+     * @param repoDir the directory where source code will exist
+     * @param shell   a shell that will execute Maven
+     * @param maven   the command that runs Maven, the goals are added after it
+     */
+    public MavenBuild(File repoDir, Bash shell, List<String> maven) {
+        this.repoDir = repoDir;
+        this.shell = shell;
+        this.maven = maven;
+        // Added before any other listener, so they see the stage of the line they are given.
+        shell.addOutputListener(line -> onOutput(line.text()));
+    }
+
+    /**
+     * @return the command that starts a new Maven, "mvn" (or "mvn.cmd" on Windows).
+     */
+    public static List<String> defaultCommand() {
+        return List.of(System.getProperty("os.name").startsWith("Windows") ? "mvn.cmd" : "mvn");
+    }
+
+    /**
+     * Compiles the repository and runs the tests with "mvn test", and blocks until Maven has finished.
+     *
+     * @return true if the project compiled and all tests passed, as determined by the exit code of "mvn test"
+     */
+    public boolean run() {
+        List<String> mavenCmd = new ArrayList<>(maven);
+        mavenCmd.addAll(GOALS);
+
+        startedAt = System.nanoTime();
+        succeeded = shell.execute(mavenCmd.toArray(String[]::new), null, repoDir);
+        if (compileWallTime == null) {
+            // The tests were never reached, all of the time was spent compiling.
+            compileWallTime = shell.getWallTime();
+            compileCpuTime = shell.getCpuTime();
+        }
+        return succeeded;
+    }
+
+    /**
+     * Returns the stage Maven is working on. While Maven runs this is the stage of the latest line of output, after
+     * it has finished it is the stage where the build ended.
+     *
+     * @return the stage.
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * @return true if the project compiled, either because the whole build succeeded or because it failed while
+     * running the tests.
+     */
+    public boolean didCompile() {
+        return succeeded || stage == Stage.TEST;
+    }
+
+    /**
+     * @return how long Maven worked before it reached the tests for the first time, or the whole time if it never did.
+     */
+    public Duration getCompileWallTime() {
+        return compileWallTime == null ? Duration.ZERO : compileWallTime;
+    }
+
+    /**
+     * @return the CPU time used before Maven reached the tests for the first time, or all of it if it never did.
+     * The CPU time is sampled, see {@code Bash.getCpuTime()}.
+     */
+    public Duration getCompileCpuTime() {
+        return compileCpuTime == null ? Duration.ZERO : compileCpuTime;
+    }
+
+    // Moves between the stages when Maven starts a goal.
+    private void onOutput(String text) {
+        Matcher header = GOAL_HEADER.matcher(ANSI_ESCAPE.matcher(text).replaceAll(""));
+        if (!header.find())
+            return;
+
+        String mojo = header.group(1);
+        String goal = mojo.substring(mojo.lastIndexOf(':') + 1);
+        String goalModule = header.group(2);
+
+        // Every module of a multi-module project is compiled before its own tests run.
+        if (!goalModule.equals(module)) {
+            module = goalModule;
+            compileGoalStarted = false;
+            stage = Stage.COMPILE;
+        }
+
+        if (goal.equals("compile")) {
+            compileGoalStarted = true;
+        } else if (compileGoalStarted && stage == Stage.COMPILE) {
+            stage = Stage.TEST;
+            if (compileWallTime == null) {
+                compileWallTime = Duration.ofNanos(System.nanoTime() - startedAt);
+                compileCpuTime = shell.getCpuTime();
+            }
+        }
+    }
+}
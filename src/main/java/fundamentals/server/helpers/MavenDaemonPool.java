@@ -0,0 +1,319 @@
+package fundamentals.server.helpers;
+
+import fundamentals.server.Environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A small pool of long-lived Maven daemons (mvnd), so that a build doesn't have to start a cold Maven JVM, load its
+ * classes and warm up the JIT before any project code is compiled.
+ * <p>
+ * Every daemon of the pool has its own mvnd storage directory, which gives it its own mvnd registry. Since a daemon
+ * only runs one build at a time, mvnd never starts a second daemon in the same directory, and the pool knows which
+ * JVM belongs to which build. Daemons are started (by building a tiny project) before the first build needs them,
+ * and are replaced by a fresh daemon after a number of builds, when they use too much memory or when a build was
+ * cancelled, so that a long-running daemon can't slowly leak memory or state into later builds.
+ * <p>
+ * Only the repositories listed in the environment key "MAVEN_DAEMON_REPOSITORIES" are built with the pool, the
+ * others are built with a fresh "mvn" like before.
+ */
+public class MavenDaemonPool {
+
+    /**
+     * The command that runs the mvnd client if nothing else is specified in the environment.
+     */
+    public static final String DEFAULT_COMMAND = "mvnd";
+
+    /**
+     * The number of daemons in the pool if nothing else is specified in the environment.
+     */
+    public static final int DEFAULT_DAEMONS = 2;
+
+    /**
+     * The number of builds a daemon runs before it is replaced, if nothing else is specified in the environment.
+     */
+    public static final int DEFAULT_MAX_BUILDS = 50;
+
+    /**
+     * The resident memory (in megabytes) above which a daemon is replaced after its build, if nothing else is
+     * specified in the environment.
+     */
+    public static final int DEFAULT_MAX_MEMORY_MB = 2048;
+
+    /**
+     * The directory where the storage directories of the daemons are created.
+     */
+    public static final String DAEMONS_DIRECTORY = "daemons";
+
+    // Built to start a daemon. A "pom" project has nothing bound to "validate", so no plugin has to be downloaded.
+    private static final String WARM_UP_POM = """
+            <project xmlns="http://maven.apache.org/POM/4.0.0">
+                <modelVersion>4.0.0</modelVersion>
+                <groupId>fundamentals.server</groupId>
+                <artifactId>daemon-warm-up</artifactId>
+                <version>1</version>
+                <packaging>pom</packaging>
+            </project>
+            """;
+
+    /**
+     * One daemon of the pool. A daemon is used by one build at a time, between {@code acquire()} and
+     * {@code release()}.
+     */
+    public class Daemon {
+        private final int number;
+        private final File storage;
+        private int builds = 0;
+
+        private Daemon(int number, File storage) {
+            this.number = number;
+            this.storage = storage;
+        }
+
+        /**
+         * Returns the command that runs Maven on this daemon, the goals are added after it.
+         *
+         * @return the command, each argument a separate element.
+         */
+        public List<String> command() {
+            List<String> cmd = new ArrayList<>(List.of(command, "-Dmvnd.daemonStorage=" + storage.getAbsolutePath()));
+            // One thread, mvnd builds modules in parallel by default which would mix their output.
+            cmd.addAll(List.of("-T", "1"));
+            cmd.addAll(arguments);
+            return cmd;
+        }
+
+        /**
+         * @return the number of builds that have been run on this daemon since it was started.
+         */
+        public int getBuilds() {
+            return builds;
+        }
+
+        @Override
+        public String toString() {
+            return "Maven daemon " + number;
+        }
+    }
+
+    private final String command;
+    private final List<String> arguments;
+    private final int maxBuilds;
+    private final long maxMemoryBytes;
+    private final Set<String> repositories;
+    private final boolean allRepositories;
+    private final File directory;
+    private final File warmUpProject;
+
+    private final BlockingQueue<Daemon> idle = new LinkedBlockingQueue<>();
+
+    /**
+     * Stops and starts daemons in the background, so that a build never waits for that.
+     */
+    private final ExecutorService recycler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "maven-daemon-recycler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new pool and starts its daemons in the background.
+     *
+     * @param command       the command that runs the mvnd client.
+     * @param arguments     the arguments of every Maven run on the daemons. mvnd only reuses a daemon for a build
+     *                      with the same options (like the local repository), so they are used for the warm-up too.
+     * @param daemons       the number of daemons, and thereby the number of builds that can use the pool at once.
+     * @param maxBuilds     the number of builds a daemon runs before it is replaced.
+     * @param maxMemoryMB   the resident memory (in megabytes) above which a daemon is replaced.
+     * @param repositories  the repositories ("owner/repository") that are built with the pool, "*" for all.
+     * @param directory     the directory where the storage directories of the daemons are created.
+     */
+    public MavenDaemonPool(String command, List<String> arguments, int daemons, int maxBuilds, int maxMemoryMB,
+                           List<String> repositories, File directory) {
+        this.command = command;
+        this.arguments = arguments;
+        this.maxBuilds = maxBuilds;
+        this.maxMemoryBytes = maxMemoryMB * 1024L * 1024L;
+        this.repositories = new HashSet<>(repositories);
+        this.allRepositories = this.repositories.contains("*");
+        this.directory = directory;
+        this.warmUpProject = new File(directory, "warm-up");
+
+        if (this.repositories.isEmpty())
+            return;
+
+        try {
+            Files.createDirectories(warmUpProject.toPath());
+            Files.writeString(new File(warmUpProject, "pom.xml").toPath(), WARM_UP_POM, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Could not create the warm-up project of the Maven daemons");
+            e.printStackTrace();
+        }
+
+        for (int i = 0; i < daemons; i++) {
+            Daemon daemon = new Daemon(i, new File(directory, "daemon-" + i));
+            recycler.execute(() -> {
+                // A daemon can be left over from before the server was restarted.
+                stop(daemon);
+                start(daemon);
+                idle.add(daemon);
+            });
+        }
+    }
+
+    /**
+     * Creates a pool from the environment keys "MAVEN_DAEMON_REPOSITORIES" (a comma-separated list of
+     * "owner/repository", or "*" for every repository), "MAVEN_DAEMON_COMMAND", "MAVEN_DAEMONS",
+     * "MAVEN_DAEMON_MAX_BUILDS" and "MAVEN_DAEMON_MAX_MEMORY_MB". No daemon is started if no repository uses the pool.
+     *
+     * @param environment the environment variables.
+     * @param arguments   the arguments of every Maven run on the daemons.
+     * @return the pool.
+     */
+    public static MavenDaemonPool fromEnvironment(Environment environment, List<String> arguments) {
+        List<String> repositories = new ArrayList<>();
+        String list = environment.getValue("MAVEN_DAEMON_REPOSITORIES");
+        if (list != null) {
+            for (String repository : list.split(","))
+                if (!repository.isBlank())
+                    repositories.add(repository.strip());
+        }
+
+        String command = environment.getValue("MAVEN_DAEMON_COMMAND");
+        int daemons = environment.getIntValueOrElse("MAVEN_DAEMONS", DEFAULT_DAEMONS);
+        int maxBuilds = environment.getIntValueOrElse("MAVEN_DAEMON_MAX_BUILDS", DEFAULT_MAX_BUILDS);
+        int maxMemory = environment.getIntValueOrElse("MAVEN_DAEMON_MAX_MEMORY_MB", DEFAULT_MAX_MEMORY_MB);
+        return new MavenDaemonPool(command == null || command.isBlank() ? DEFAULT_COMMAND : command.strip(), arguments,
+                Math.max(1, daemons), Math.max(1, maxBuilds), Math.max(1, maxMemory), repositories,
+                new File(DAEMONS_DIRECTORY));
+    }
+
+    /**
+     * Returns true if a repository is built with the pool.
+     *
+     * @param owner      the owner of the repository.
+     * @param repository the repository.
+     * @return true if the builds of the repository should acquire a daemon.
+     */
+    public boolean isUsedBy(String owner, String repository) {
+        return allRepositories || repositories.contains(owner + "/" + repository);
+    }
+
+    /**
+     * @return the command that runs the mvnd client.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Takes a daemon from the pool, and waits until one is idle if all of them are busy.
+     *
+     * @return the daemon, or null if the thread was interrupted while it was waiting.
+     */
+    public Daemon acquire() {
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Gives a daemon back to the pool after a build. The daemon is replaced by a fresh one if it has run too many
+     * builds, uses too much memory or if the build was cancelled (the daemon may still be working on it).
+     *
+     * @param daemon    the daemon.
+     * @param cancelled true if the build was cancelled.
+     */
+    public void release(Daemon daemon, boolean cancelled) {
+        daemon.builds++;
+
+        String reason = null;
+        if (cancelled)
+            reason = "the build was cancelled";
+        else if (daemon.builds >= maxBuilds)
+            reason = "it has run " + daemon.builds + " builds";
+        else {
+            long memory = residentMemory(daemon);
+            if (memory > maxMemoryBytes)
+                reason = "it uses " + memory / (1024 * 1024) + " MB";
+        }
+
+        if (reason == null) {
+            idle.add(daemon);
+            return;
+        }
+
+        System.out.println("Replacing " + daemon + " because " + reason);
+        recycler.execute(() -> {
+            stop(daemon);
+            daemon.builds = 0;
+            start(daemon);
+            idle.add(daemon);
+        });
+    }
+
+    // Starts the daemon by building the warm-up project on it.
+    private void start(Daemon daemon) {
+        List<String> cmd = new ArrayList<>(daemon.command());
+        cmd.addAll(List.of("-B", "-q", "validate"));
+        if (!new Bash().execute(cmd.toArray(String[]::new), null, warmUpProject))
+            System.err.println("Could not start " + daemon + " with " + command);
+    }
+
+    // Stops the daemon, and kills it if mvnd could not stop it.
+    private void stop(Daemon daemon) {
+        new Bash().execute(new String[] {command, "--stop", "-Dmvnd.daemonStorage=" + daemon.storage.getAbsolutePath()},
+                null, directory.getAbsoluteFile());
+        for (ProcessHandle process : processes(daemon))
+            process.destroyForcibly();
+    }
+
+    // The sum of the resident memory of the processes of the daemon, 0 if the platform does not report it.
+    private long residentMemory(Daemon daemon) {
+        long total = 0;
+        for (ProcessHandle process : processes(daemon))
+            total += residentMemory(process).orElse(0);
+        return total;
+    }
+
+    // The JVMs that were started with the storage directory of the daemon.
+    private static List<ProcessHandle> processes(Daemon daemon) {
+        String storage = daemon.storage.getAbsolutePath();
+        return ProcessHandle.allProcesses()
+                .filter(process -> process.info().arguments()
+                        .map(arguments -> List.of(arguments).contains("-Dmvnd.daemonStorage=" + storage))
+                        .orElse(false))
+                .filter(process -> process.info().command().map(path -> path.endsWith("java")).orElse(false))
+                .toList();
+    }
+
+    // Reads VmRSS from /proc, which only exists on Linux.
+    private static OptionalLong residentMemory(ProcessHandle process) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(process.pid()), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    String kilobytes = line.substring("VmRSS:".length()).replace("kB", "").strip();
+                    return OptionalLong.of(Long.parseLong(kilobytes) * 1024);
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return OptionalLong.empty();
+    }
+}
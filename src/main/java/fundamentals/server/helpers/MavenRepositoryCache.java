@@ -0,0 +1,223 @@
+package fundamentals.server.helpers;
+
+import fundamentals.server.Environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * The local Maven repository that is shared by all builds, so that the dependencies of a project are downloaded
+ * once instead of by every build, and so that builds don't depend on the "~/.m2" of the user running the server.
+ * <p>
+ * The repository uses the split layout of Maven 3.9: downloaded artifacts are kept in "cached/", where they are
+ * written once and then only read, while the artifacts a build installs go to "installed/&lt;build ID&gt;/" and are
+ * removed after the build, so a build never sees what another build installed. Maven locks every artifact with a
+ * file lock while it downloads or installs it, so builds running in parallel (and on different Maven daemons) can
+ * share the repository safely.
+ * <p>
+ * When a build with the same pom.xml files has succeeded before, every dependency and plugin it needs is already in
+ * the repository, and Maven runs offline without checking the remote repositories for updates.
+ */
+public class MavenRepositoryCache {
+
+    /**
+     * The directory of the shared repository if nothing else is specified in the environment.
+     */
+    public static final String DEFAULT_DIRECTORY = "maven-repository";
+
+    /**
+     * The file (in the repository directory) listing the pom.xml hashes whose dependencies are all downloaded.
+     */
+    public static final String RESOLVED_FILE = "resolved-poms.txt";
+
+    // Printed by Maven when an offline build needs an artifact that is not in the repository.
+    private static final String OFFLINE_MISS = "in offline mode and the artifact";
+
+    private final File directory;
+    private final boolean offline;
+    private final File resolvedFile;
+    private final Set<String> resolved = new HashSet<>();
+
+    /**
+     * Creates the cache and loads the pom.xml hashes that can be built offline.
+     *
+     * @param directory the directory of the shared repository.
+     * @param offline   true to build offline when every dependency of the pom.xml files has been downloaded.
+     */
+    public MavenRepositoryCache(File directory, boolean offline) {
+        this.directory = directory.getAbsoluteFile();
+        this.offline = offline;
+        this.resolvedFile = new File(this.directory, RESOLVED_FILE);
+
+        try {
+            Files.createDirectories(this.directory.toPath());
+            if (resolvedFile.exists()) {
+                for (String line : Files.readAllLines(resolvedFile.toPath(), StandardCharsets.UTF_8))
+                    if (!line.isBlank())
+                        resolved.add(line.strip());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the Maven repository cache in " + this.directory);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates the cache from the environment keys "MAVEN_REPOSITORY" (the directory of the shared repository) and
+     * "MAVEN_OFFLINE" (true to build offline when possible, the default).
+     *
+     * @param environment the environment variables.
+     * @return the cache.
+     */
+    public static MavenRepositoryCache fromEnvironment(Environment environment) {
+        String directory = environment.getValue("MAVEN_REPOSITORY");
+        return new MavenRepositoryCache(
+                new File(directory == null || directory.isBlank() ? DEFAULT_DIRECTORY : directory.strip()),
+                environment.getBooleanValueOrElse("MAVEN_OFFLINE", true));
+    }
+
+    /**
+     * Returns the arguments that make Maven use the shared repository. These are the same for every build, so a
+     * Maven daemon started with them can be reused by every build.
+     *
+     * @return the arguments, each a separate element.
+     */
+    public List<String> sharedArguments() {
+        return List.of(
+                "-Dmaven.repo.local=" + directory,
+                "-Daether.enhancedLocalRepository.split=true",
+                // Locks that work across processes, Maven only locks within its own JVM by default.
+                "-Daether.syncContext.named.factory=file-lock",
+                "-Daether.syncContext.named.nameMapper=file-gav");
+    }
+
+    /**
+     * Returns the arguments that make a build use the shared repository, with its own directory for installed
+     * artifacts, and offline if the pom.xml files have been built before.
+     *
+     * @param key     the key of the pom.xml files of the build, see {@code key()}.
+     * @param buildID the ID of the build.
+     * @return the arguments, each a separate element.
+     */
+    public List<String> arguments(String key, String buildID) {
+        List<String> arguments = new ArrayList<>(sharedArguments());
+        arguments.add("-Daether.enhancedLocalRepository.localPrefix=installed/" + buildID);
+        if (offline && isResolved(key))
+            arguments.add("-o");
+        return arguments;
+    }
+
+    /**
+     * Calculates the key of the pom.xml files of a repository: a hash of every pom.xml, the Maven extensions and
+     * configuration in ".mvn/", and the Maven executable (which decides the default plugin versions).
+     *
+     * @param repoDir the directory of the repository.
+     * @param maven   the command that runs Maven.
+     * @return the key, or null if the files could not be read.
+     */
+    public String key(File repoDir, List<String> maven) {
+        try (Stream<Path> files = Files.walk(repoDir.toPath())) {
+            List<Path> poms = files
+                    .filter(path -> !FileHelper.isIgnored(repoDir.toPath().relativize(path)))
+                    .filter(path -> path.getFileName().toString().equals("pom.xml")
+                            || path.getParent() != null && path.getParent().getFileName().toString().equals(".mvn"))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .toList();
+
+            MessageDigest digest = FileHelper.sha256();
+            digest.update(new File(maven.get(0)).getName().getBytes(StandardCharsets.UTF_8));
+            for (Path pom : poms) {
+                digest.update((byte) 0);
+                digest.update(repoDir.toPath().relativize(pom).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(pom));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            System.err.println("Could not hash the pom.xml files in " + repoDir);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param key the key of the pom.xml files.
+     * @return true if every dependency of the pom.xml files has been downloaded.
+     */
+    public synchronized boolean isResolved(String key) {
+        return key != null && resolved.contains(key);
+    }
+
+    /**
+     * Remembers that every dependency of the pom.xml files has been downloaded, after a build that succeeded.
+     *
+     * @param key the key of the pom.xml files.
+     */
+    public synchronized void setResolved(String key) {
+        if (key == null || !resolved.add(key))
+            return;
+        try {
+            Files.writeString(resolvedFile.toPath(), key + System.lineSeparator(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Could not write " + resolvedFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forgets the pom.xml files, after an offline build that missed an artifact, so the next build goes online.
+     *
+     * @param key the key of the pom.xml files.
+     */
+    public synchronized void forget(String key) {
+        if (key == null || !resolved.remove(key))
+            return;
+        try {
+            Path temp = new File(directory, RESOLVED_FILE + ".tmp").toPath();
+            Files.write(temp, resolved, StandardCharsets.UTF_8);
+            Files.move(temp, resolvedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write " + resolvedFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param line a line of output from Maven.
+     * @return true if the line tells that an offline build needed an artifact that has not been downloaded.
+     */
+    public static boolean isOfflineMiss(String line) {
+        return line.contains(OFFLINE_MISS);
+    }
+
+    /**
+     * Removes the artifacts that a build installed.
+     *
+     * @param buildID the ID of the build.
+     */
+    public void cleanUp(String buildID) {
+        File installed = new File(new File(directory, "installed"), buildID);
+        FileHelper.deleteDirectory(installed);
+    }
+
+    /**
+     * @return the directory of the shared repository.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,357 @@
+package fundamentals.server.logs;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The log of a single build. The lines of every step of the build (for example "compile" and "test") are kept in one
+ * sequence, numbered from 0 in the order they were appended. Readers can ask for the lines from any position and can
+ * register a listener to be told when new lines are appended or when the log is closed.
+ * <p>
+ * Logs are stored on disk as gzip compressed segment files in a directory of their own, "segment-000000.log.gz"
+ * holds lines 0 to {@code SEGMENT_LINES - 1} and so on. Segments are written once, when they are full or when the
+ * log is closed, and are never changed afterwards. Only the lines of the segment that is being filled are kept in
+ * main-memory, which means that reading a page of a big log only decompresses the segments that the page overlaps.
+ */
+public class BuildLog {
+
+    /**
+     * The number of lines stored in each segment file.
+     */
+    public static final int SEGMENT_LINES = 1000;
+
+    /**
+     * A line of the log.
+     *
+     * @param number the position of the line in the log, starting at 0.
+     * @param phase  the step of the build that produced the line, for example "compile" or "test".
+     * @param text   the text of the line.
+     */
+    public record Line(long number, String phase, String text) {
+    }
+
+    /**
+     * Describes where the log of a finished build is stored and how many lines it has. The pointer is stored in the
+     * build instead of the log itself, and can be given to {@code open()} to read the log again.
+     *
+     * @param path       the path of the log directory, as it is shown in the build.
+     * @param lines      the number of lines in the log.
+     * @param phaseLines the number of lines per build step, for example "compile" -> 120.
+     */
+    public record Pointer(String path, long lines, Map<String, Long> phaseLines) {
+
+        /**
+         * @return the pointer as JSON, as it is stored in the build.
+         */
+        public JSONObject toJSON() {
+            JSONObject pointer = new JSONObject();
+            pointer.put("path", path);
+            pointer.put("format", "gzip-segments");
+            pointer.put("segment_lines", SEGMENT_LINES);
+            pointer.put("lines", lines);
+            pointer.put("phase_lines", new JSONObject(phaseLines));
+            return pointer;
+        }
+
+        /**
+         * @param json a pointer created by {@code toJSON()}.
+         * @return the pointer.
+         */
+        public static Pointer fromJSON(JSONObject json) {
+            Map<String, Long> phaseLines = new LinkedHashMap<>();
+            JSONObject phases = json.optJSONObject("phase_lines");
+            if (phases != null) {
+                for (String phase : phases.keySet())
+                    phaseLines.put(phase, phases.getLong(phase));
+            }
+            return new Pointer(json.optString("path"), json.getLong("lines"), Collections.unmodifiableMap(phaseLines));
+        }
+    }
+
+    /**
+     * The directory with the segment files, null for logs that only exist in main-memory.
+     */
+    private final File directory;
+
+    /**
+     * The lines that have not been written to a segment file yet.
+     */
+    private final List<Line> buffer = new ArrayList<>();
+
+    /**
+     * The number of lines that have been written to segment files.
+     */
+    private long storedLines = 0;
+
+    /**
+     * The number of lines per build step, for example "compile" -> 120.
+     */
+    private final Map<String, Long> phaseLines = new LinkedHashMap<>();
+
+    /**
+     * The segment that was read last, reading a log from start to end decompresses each segment only once.
+     */
+    private long cachedSegment = -1;
+    private List<Line> cachedSegmentLines = Collections.emptyList();
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private boolean closed = false;
+
+    /**
+     * Creates an empty log that stores its segment files in the given directory. The directory is created when the
+     * first segment is written.
+     *
+     * @param directory the directory for the segment files, or null to keep the log in main-memory only.
+     */
+    public BuildLog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the closed log of a finished build, as described by the pointer that was returned by
+     * {@code getPointer()} when the build finished.
+     *
+     * @param directory the directory with the segment files.
+     * @param pointer   the pointer stored in the build.
+     * @return a closed log.
+     */
+    public static BuildLog open(File directory, Pointer pointer) {
+        BuildLog log = new BuildLog(directory);
+        log.storedLines = pointer.lines();
+        log.phaseLines.putAll(pointer.phaseLines());
+        log.closed = true;
+        return log;
+    }
+
+    /**
+     * Creates a closed log that contains the given compile and test logs. Used for builds that were stored before
+     * logs were moved out of the build records.
+     *
+     * @param compileLogs the lines of the compile step.
+     * @param testLogs    the lines of the test step.
+     * @return a closed log that only exists in main-memory.
+     */
+    public static BuildLog of(List<String> compileLogs, List<String> testLogs) {
+        BuildLog log = new BuildLog(null);
+        for (String text : compileLogs)
+            log.add("compile", text);
+        for (String text : testLogs)
+            log.add("test", text);
+        log.closed = true;
+        return log;
+    }
+
+    /**
+     * Appends a line to the end of the log and tells the listeners about it.
+     *
+     * @param phase the step of the build that produced the line.
+     * @param text  the text of the line.
+     */
+    public void append(String phase, String text) {
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Cannot append to a closed log");
+            add(phase, text);
+            while (buffer.size() >= SEGMENT_LINES && writeSegment()) ;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Marks the log as complete and writes the last segment to disk, no more lines will be appended.
+     * The listeners are told about it.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            while (!buffer.isEmpty() && writeSegment()) ;
+            if (directory != null && !buffer.isEmpty())
+                System.err.println("Could not store the last " + buffer.size() + " lines of the log in "
+                        + directory.getAbsolutePath() + ", they are left out of the stored log");
+            closed = true;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * @return true if no more lines will be appended to the log.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of lines in the log.
+     */
+    public synchronized long size() {
+        return storedLines + buffer.size();
+    }
+
+    /**
+     * Returns a pointer that describes where the log is stored and how many lines it has. For a log with a
+     * directory, only the lines that have been written to segment files are counted, the lines that could not be
+     * written are only readable from this log.
+     *
+     * @param path the path of the log directory, as it should be shown in the build.
+     * @return the pointer.
+     */
+    public synchronized Pointer getPointer(String path) {
+        Map<String, Long> storedPhaseLines = new LinkedHashMap<>(phaseLines);
+        if (directory == null)
+            return new Pointer(path, size(), Collections.unmodifiableMap(storedPhaseLines));
+
+        for (Line line : buffer) {
+            if (storedPhaseLines.merge(line.phase(), -1L, Long::sum) == 0)
+                storedPhaseLines.remove(line.phase());
+        }
+        return new Pointer(path, storedLines, Collections.unmodifiableMap(storedPhaseLines));
+    }
+
+    /**
+     * Returns the lines of the log starting at a given position.
+     *
+     * @param from     the number of the first line to return.
+     * @param maxLines the maximum number of lines to return.
+     * @return the lines, an empty list if there are no lines at that position (yet).
+     */
+    public synchronized List<Line> read(long from, int maxLines) {
+        List<Line> lines = new ArrayList<>();
+        long position = Math.max(0, from);
+        long end = Math.min(size(), position + maxLines);
+
+        while (position < end) {
+            List<Line> source;
+            long firstLine;
+            if (position < storedLines) {
+                long segment = position / SEGMENT_LINES;
+                source = readSegment(segment);
+                firstLine = segment * SEGMENT_LINES;
+                if (source.isEmpty())
+                    break;
+            } else {
+                source = buffer;
+                firstLine = storedLines;
+            }
+
+            int fromIndex = (int) (position - firstLine);
+            int toIndex = (int) Math.min(source.size(), end - firstLine);
+            if (fromIndex >= toIndex)
+                break;
+            lines.addAll(source.subList(fromIndex, toIndex));
+            position = firstLine + toIndex;
+        }
+        return lines;
+    }
+
+    /**
+     * Registers a listener that is called (from the thread that appends) every time the log changes.
+     *
+     * @param listener the listener.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener that was registered with {@code addListener()}.
+     *
+     * @param listener the listener.
+     */
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private void add(String phase, String text) {
+        buffer.add(new Line(size(), phase, text));
+        phaseLines.merge(phase, 1L, Long::sum);
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(directory, String.format("segment-%06d.log.gz", segment));
+    }
+
+    // Writes the first (up to SEGMENT_LINES) buffered lines as the next segment, returns false if nothing was written.
+    // Logs without a directory keep all lines in the buffer.
+    private boolean writeSegment() {
+        if (directory == null)
+            return false;
+
+        long segment = storedLines / SEGMENT_LINES;
+        if (!directory.exists() && !directory.mkdirs()) {
+            System.err.println("Could not create log directory " + directory.getAbsolutePath());
+            return false;
+        }
+
+        List<Line> lines = buffer.subList(0, Math.min(buffer.size(), SEGMENT_LINES));
+
+        // Each line is stored as "<phase> TAB <text>", a phase never contains a tab and a line never contains a newline.
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(getSegmentFile(segment))), StandardCharsets.UTF_8))) {
+            for (Line line : lines) {
+                writer.write(line.phase());
+                writer.write('\t');
+                writer.write(line.text());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            // Keep the lines in main-memory, they are at least readable until the server restarts.
+            e.printStackTrace();
+            return false;
+        }
+
+        storedLines += lines.size();
+        lines.clear();
+        return true;
+    }
+
+    private List<Line> readSegment(long segment) {
+        if (segment == cachedSegment)
+            return cachedSegmentLines;
+
+        List<Line> lines = new ArrayList<>();
+        long number = segment * SEGMENT_LINES;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(getSegmentFile(segment))), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                lines.add(new Line(number++, line.substring(0, tab), line.substring(tab + 1)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+
+        cachedSegment = segment;
+        cachedSegmentLines = lines;
+        return lines;
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package fundamentals.server.logs;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the logs of the builds that are running, so that they can be read while the build is still producing them.
+ * Every log is stored in a directory of its own below the logs directory, named after the build ID. A log is
+ * removed from the store when its build has finished, from then on it is opened with the pointer stored in the
+ * build record.
+ */
+public class BuildLogStore {
+
+    private final File logsDirectory;
+
+    private final ConcurrentHashMap<String, BuildLog> liveLogs = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a store that keeps the log files below the given directory.
+     *
+     * @param logsDirectory the directory with one sub-directory per build.
+     */
+    public BuildLogStore(File logsDirectory) {
+        this.logsDirectory = logsDirectory;
+    }
+
+    /**
+     * Creates an empty log for a build that is about to start.
+     *
+     * @param buildID the ID of the build.
+     * @return the new log.
+     */
+    public BuildLog create(String buildID) {
+        BuildLog log = new BuildLog(getDirectory(buildID));
+        liveLogs.put(buildID, log);
+        return log;
+    }
+
+    /**
+     * Returns the log of a running build.
+     *
+     * @param buildID the ID of the build.
+     * @return the log, or null if the build is not running.
+     */
+    public BuildLog getLiveLog(String buildID) {
+        return liveLogs.get(buildID);
+    }
+
+    /**
+     * Opens the log of a finished build.
+     *
+     * @param buildID the ID of the build.
+     * @param pointer the pointer that is stored in the build.
+     * @return the closed log.
+     */
+    public BuildLog open(String buildID, BuildLog.Pointer pointer) {
+        return BuildLog.open(getDirectory(buildID), pointer);
+    }
+
+    /**
+     * Closes the log of a build that has finished. The log stays in the store until {@code remove()} is called, so
+     * that readers can use it until the pointer has been stored in the build.
+     *
+     * @param buildID the ID of the build.
+     * @return the pointer that should be stored in the build, or null if the build has no live log.
+     */
+    public BuildLog.Pointer close(String buildID) {
+        BuildLog log = liveLogs.get(buildID);
+        if (log == null)
+            return null;
+        log.close();
+        return log.getPointer(logsDirectory.getName() + "/" + buildID);
+    }
+
+    /**
+     * Removes the log of a finished build from the store.
+     *
+     * @param buildID the ID of the build.
+     */
+    public void remove(String buildID) {
+        liveLogs.remove(buildID);
+    }
+
+    private File getDirectory(String buildID) {
+        return new File(logsDirectory, buildID);
+    }
+}
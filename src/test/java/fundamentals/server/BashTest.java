@@ -0,0 +1,125 @@
+package fundamentals.server;
+
+import fundamentals.server.helpers.Bash;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code Bash} class. These tests start real processes through "sh" and are therefore not run on Windows.
+ */
+@DisabledOnOs(OS.WINDOWS)
+public class BashTest {
+
+    private static final File WORKING_DIRECTORY = new File(".");
+
+    /**
+     * Ensure that a process that prints much more than a pipe can hold, on both stdout and stderr, does not deadlock.
+     */
+    @Test
+    @Timeout(30)
+    @DisplayName("Large output on stdout and stderr does not deadlock test")
+    void largeOutputDoesNotDeadlockTest() {
+        String script = "i=0; while [ $i -lt 20000 ]; do echo \"out $i\"; echo \"err $i\" >&2; i=$((i+1)); done";
+        Bash shell = new Bash();
+        List<Bash.OutputLine> lines = new ArrayList<>();
+        shell.addOutputListener(lines::add);
+
+        assertTrue(shell.execute(new String[]{"sh", "-c", script}, null, WORKING_DIRECTORY));
+        assertEquals(40000, lines.size());
+        // Only the end of stdout is kept, the listeners get every line.
+        assertEquals(Bash.STDOUT_TAIL_LINES, shell.getStdout().size());
+        assertEquals("out 19999", shell.getStdout().get(Bash.STDOUT_TAIL_LINES - 1));
+
+        // Lines are numbered in the order they were received.
+        for (int i = 0; i < lines.size(); i++)
+            assertEquals(i, lines.get(i).number());
+    }
+
+    /**
+     * Ensure that the order of the lines within each stream is kept and that stderr is labelled as such.
+     */
+    @Test
+    @DisplayName("Output keeps its order test")
+    void outputOrderTest() {
+        Bash shell = new Bash();
+        List<Bash.OutputLine> lines = new ArrayList<>();
+        shell.addOutputListener(lines::add);
+
+        shell.execute(new String[]{"sh", "-c", "echo first; echo second >&2; echo third"}, null, WORKING_DIRECTORY);
+
+        List<String> stdout = lines.stream().filter(line -> line.stream() == Bash.Stream.STDOUT).map(Bash.OutputLine::text).toList();
+        List<String> stderr = lines.stream().filter(line -> line.stream() == Bash.Stream.STDERR).map(Bash.OutputLine::text).toList();
+        assertEquals(List.of("first", "third"), stdout);
+        assertEquals(List.of("second"), stderr);
+    }
+
+    /**
+     * Ensure that the exit code and the run time of the process are recorded.
+     */
+    @Test
+    @DisplayName("Exit code and wall time are recorded test")
+    void exitCodeAndWallTimeTest() {
+        Bash shell = new Bash();
+
+        assertFalse(shell.execute(new String[]{"sh", "-c", "sleep 0.2; exit 3"}, null, WORKING_DIRECTORY));
+        assertEquals(3, shell.getExitCode());
+        assertTrue(shell.getWallTime().toMillis() >= 200);
+    }
+
+    /**
+     * Ensure that cancelling kills the process together with the processes it has started.
+     */
+    @Test
+    @Timeout(30)
+    @DisplayName("Cancel kills the process tree test")
+    void cancelKillsProcessTreeTest() throws Exception {
+        Bash shell = new Bash();
+        Thread canceller = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ignored) {
+            }
+            shell.cancel();
+        });
+        canceller.start();
+
+        assertFalse(shell.execute(new String[]{"sh", "-c", "sleep 60 & sleep 60; wait"}, null, WORKING_DIRECTORY));
+        assertTrue(shell.isCancelled());
+        canceller.join();
+    }
+
+    /**
+     * Ensure that the threads that drain the output stop when the thread running the process is interrupted, even
+     * though the process printed more lines than the queue can hold.
+     */
+    @Test
+    @Timeout(30)
+    @DisplayName("Drain threads stop after an interrupt test")
+    void drainThreadsStopAfterInterruptTest() throws Exception {
+        Bash shell = new Bash();
+        shell.addOutputListener(line -> Thread.currentThread().interrupt());
+
+        String script = "i=0; while [ $i -lt 20000 ]; do echo \"out $i\"; echo \"err $i\" >&2; i=$((i+1)); done";
+        assertFalse(shell.execute(new String[]{"sh", "-c", script}, null, WORKING_DIRECTORY));
+        assertTrue(Thread.interrupted());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (drainThreadsAlive() && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertFalse(drainThreadsAlive());
+    }
+
+    private static boolean drainThreadsAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.isAlive() && thread.getName().startsWith("bash-"));
+    }
+}
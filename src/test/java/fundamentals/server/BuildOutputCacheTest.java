@@ -0,0 +1,153 @@
+package fundamentals.server;
+
+import fundamentals.server.helpers.BuildOutputCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code BuildOutputCache} class, with working copies that only look like Maven projects.
+ */
+public class BuildOutputCacheTest {
+
+    private static final File CACHE_TEST_DIRECTORY = new File("src/test/res/outputs.test");
+    private static final File FIRST_TEST_WORKING_COPY = new File("src/test/res/working-copy-1.test");
+    private static final File SECOND_TEST_WORKING_COPY = new File("src/test/res/working-copy-2.test");
+    private static final String INPUT_FILES =
+            "target/maven-status/maven-compiler-plugin/compile/default-compile/inputFiles.lst";
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (File directory : new File[] {CACHE_TEST_DIRECTORY, FIRST_TEST_WORKING_COPY, SECOND_TEST_WORKING_COPY}) {
+            if (!directory.exists())
+                continue;
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                    Files.delete(path);
+            }
+        }
+    }
+
+    // Checks out the same sources as every other working copy, with the time of the checkout.
+    private static void checkout(File workingCopy) throws IOException {
+        Files.createDirectories(new File(workingCopy, "src").toPath());
+        Files.writeString(new File(workingCopy, "pom.xml").toPath(), "<project/>");
+        Files.writeString(new File(workingCopy, "src/Main.java").toPath(), "class Main {}");
+        Files.writeString(new File(workingCopy, "src/Other.java").toPath(), "class Other {}");
+    }
+
+    // Builds the working copy: the sources are older than the classes, the compiler lists the sources it used.
+    private static void build(File workingCopy) throws IOException {
+        for (String source : new String[] {"pom.xml", "src/Main.java", "src/Other.java"})
+            Files.setLastModifiedTime(new File(workingCopy, source).toPath(), FileTime.fromMillis(1_000_000));
+        Files.createDirectories(new File(workingCopy, "target/classes").toPath());
+        Files.writeString(new File(workingCopy, "target/classes/Main.class").toPath(), "compiled");
+        Files.createDirectories(new File(workingCopy, INPUT_FILES).getParentFile().toPath());
+        Files.writeString(new File(workingCopy, INPUT_FILES).toPath(),
+                new File(workingCopy, "src/Main.java").getAbsolutePath());
+    }
+
+    /**
+     * Ensure that the outputs are restored into a new working copy, that unchanged sources get their old modification
+     * time back and changed sources do not, and that the source list of the compiler points at the new working copy.
+     */
+    @Test
+    @DisplayName("Outputs are restored into a new working copy test")
+    void restoreTest() throws IOException {
+        BuildOutputCache cache = new BuildOutputCache(CACHE_TEST_DIRECTORY, true);
+        checkout(FIRST_TEST_WORKING_COPY);
+        build(FIRST_TEST_WORKING_COPY);
+        cache.save("owner", "repo", "feature/x", FIRST_TEST_WORKING_COPY, "config");
+
+        checkout(SECOND_TEST_WORKING_COPY);
+        Files.writeString(new File(SECOND_TEST_WORKING_COPY, "src/Other.java").toPath(), "class Other { }");
+        assertTrue(cache.restore("owner", "repo", "feature/x", SECOND_TEST_WORKING_COPY, "config"));
+
+        Path workingCopy = SECOND_TEST_WORKING_COPY.toPath();
+        assertEquals("compiled", Files.readString(workingCopy.resolve("target/classes/Main.class")));
+        assertEquals(1_000_000, Files.getLastModifiedTime(workingCopy.resolve("src/Main.java")).toMillis());
+        assertNotEquals(1_000_000, Files.getLastModifiedTime(workingCopy.resolve("src/Other.java")).toMillis());
+        assertEquals(new File(SECOND_TEST_WORKING_COPY, "src/Main.java").getAbsolutePath(),
+                Files.readString(new File(SECOND_TEST_WORKING_COPY, INPUT_FILES).toPath()));
+    }
+
+    /**
+     * Ensure that nothing is restored for another branch, after the build configuration has changed or after a source
+     * has been deleted.
+     */
+    @Test
+    @DisplayName("Outputs are not restored when they can be wrong test")
+    void invalidationTest() throws IOException {
+        BuildOutputCache cache = new BuildOutputCache(CACHE_TEST_DIRECTORY, true);
+        checkout(FIRST_TEST_WORKING_COPY);
+        build(FIRST_TEST_WORKING_COPY);
+        cache.save("owner", "repo", "main", FIRST_TEST_WORKING_COPY, "config");
+
+        checkout(SECOND_TEST_WORKING_COPY);
+        assertFalse(cache.restore("owner", "repo", "other-branch", SECOND_TEST_WORKING_COPY, "config"));
+        assertFalse(cache.restore("owner", "repo", "main", SECOND_TEST_WORKING_COPY, "changed-pom"));
+        assertFalse(cache.restore("owner", "repo", "main", SECOND_TEST_WORKING_COPY, null));
+        assertFalse(new BuildOutputCache(CACHE_TEST_DIRECTORY, false)
+                .restore("owner", "repo", "main", SECOND_TEST_WORKING_COPY, "config"));
+
+        Files.delete(new File(SECOND_TEST_WORKING_COPY, "src/Other.java").toPath());
+        assertFalse(cache.restore("owner", "repo", "main", SECOND_TEST_WORKING_COPY, "config"));
+        assertFalse(new File(SECOND_TEST_WORKING_COPY, "target").exists());
+    }
+
+    /**
+     * Ensure that saving the outputs of a branch again replaces the outputs of the last build, and that nothing is
+     * left next to the branch directory afterwards.
+     */
+    @Test
+    @DisplayName("Saving again replaces the outputs of the last build test")
+    void saveReplacesTest() throws IOException {
+        BuildOutputCache cache = new BuildOutputCache(CACHE_TEST_DIRECTORY, true);
+        checkout(FIRST_TEST_WORKING_COPY);
+        build(FIRST_TEST_WORKING_COPY);
+        cache.save("owner", "repo", "main", FIRST_TEST_WORKING_COPY, "config");
+
+        Files.writeString(new File(FIRST_TEST_WORKING_COPY, "target/classes/Main.class").toPath(), "compiled again");
+        cache.save("owner", "repo", "main", FIRST_TEST_WORKING_COPY, "config");
+
+        File branchDir = cache.getBranchDirectory("owner", "repo", "main");
+        assertEquals(List.of("main"), List.of(branchDir.getParentFile().list()));
+        checkout(SECOND_TEST_WORKING_COPY);
+        assertTrue(cache.restore("owner", "repo", "main", SECOND_TEST_WORKING_COPY, "config"));
+        assertEquals("compiled again",
+                Files.readString(SECOND_TEST_WORKING_COPY.toPath().resolve("target/classes/Main.class")));
+    }
+
+    /**
+     * Ensure that saving the outputs of a branch leaves the outputs of branches whose names end like the temporary
+     * directories alone.
+     */
+    @Test
+    @DisplayName("Saving does not touch branches named like temporary directories test")
+    void stagingNamesTest() throws IOException {
+        BuildOutputCache cache = new BuildOutputCache(CACHE_TEST_DIRECTORY, true);
+        checkout(FIRST_TEST_WORKING_COPY);
+        build(FIRST_TEST_WORKING_COPY);
+        cache.save("owner", "repo", "main.tmp", FIRST_TEST_WORKING_COPY, "config");
+        cache.save("owner", "repo", "main.old", FIRST_TEST_WORKING_COPY, "config");
+        cache.save("owner", "repo", "main~tmp", FIRST_TEST_WORKING_COPY, "config");
+        cache.save("owner", "repo", "main", FIRST_TEST_WORKING_COPY, "config");
+        cache.save("owner", "repo", "main", FIRST_TEST_WORKING_COPY, "config");
+
+        for (String branch : new String[] {"main.tmp", "main.old", "main~tmp"}) {
+            checkout(SECOND_TEST_WORKING_COPY);
+            assertTrue(cache.restore("owner", "repo", branch, SECOND_TEST_WORKING_COPY, "config"), branch);
+        }
+    }
+}
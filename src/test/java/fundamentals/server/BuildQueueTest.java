@@ -0,0 +1,190 @@
+package fundamentals.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code BuildQueue} class.
+ */
+public class BuildQueueTest {
+
+    /**
+     * A build job that does not build anything, it only waits until the test releases it.
+     */
+    private static class BlockingJob extends BuildJob {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release;
+
+        private BuildJob supersededBy;
+        private BuildJob cancelledBy;
+
+        BlockingJob(String buildID, CountDownLatch release) {
+            this(buildID, "main", release);
+        }
+
+        BlockingJob(String buildID, String branch, CountDownLatch release) {
+            super("{}", buildID, "owner", "repo", branch, "hash-" + buildID, null, null, null, null, null, null);
+            this.release = release;
+        }
+
+        @Override
+        protected void onSuperseded(BuildJob newerJob) {
+            supersededBy = newerJob;
+        }
+
+        @Override
+        public boolean cancel(BuildJob newerJob) {
+            cancelledBy = newerJob;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // Go through the same state change as a real build, superseded jobs must never start.
+            if (getState() != Build.State.QUEUED)
+                fail("A job that is not queued was started");
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Ensure that cancelling a job that a build worker has picked up, but not started yet, supersedes it instead of
+     * letting it run.
+     */
+    @Test
+    @DisplayName("Cancelling a job that has not started supersedes it test")
+    void cancelBeforeStartTest() {
+        BuildJob[] supersededBy = new BuildJob[1];
+        BuildJob job = new BuildJob("{}", "old", "owner", "repo", "main", "hash-old", null, null, null, null, null,
+                null) {
+            @Override
+            protected void onSuperseded(BuildJob newerJob) {
+                supersededBy[0] = newerJob;
+            }
+        };
+        BlockingJob newer = new BlockingJob("new", new CountDownLatch(0));
+
+        assertTrue(job.cancel(newer));
+        assertEquals(Build.State.SUPERSEDED, job.getState());
+        assertEquals(newer, supersededBy[0]);
+        assertFalse(job.isCancelled());
+    }
+
+    /**
+     * Ensure that jobs that cannot be started immediately are reported with their position in the queue.
+     */
+    @Test
+    @DisplayName("Queue position and depth test")
+    void queuePositionTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 10);
+
+        BlockingJob running = new BlockingJob("running", release);
+        assertTrue(queue.enqueue(running));
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(queue.enqueue(new BlockingJob("first", "first-branch", release)));
+        assertTrue(queue.enqueue(new BlockingJob("second", "second-branch", release)));
+
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(-1, queue.getQueuePosition("running"));
+        assertEquals(1, queue.getQueuePosition("first"));
+        assertEquals(2, queue.getQueuePosition("second"));
+
+        release.countDown();
+        queue.shutdown();
+    }
+
+    /**
+     * Ensure that jobs are rejected instead of blocking the caller when the queue is full.
+     */
+    @Test
+    @DisplayName("Full queue rejects jobs test")
+    void fullQueueRejectsJobsTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 1);
+
+        BlockingJob running = new BlockingJob("running", release);
+        assertTrue(queue.enqueue(running));
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(queue.enqueue(new BlockingJob("waiting", "waiting-branch", release)));
+        assertFalse(queue.enqueue(new BlockingJob("rejected", "rejected-branch", release)));
+
+        release.countDown();
+        queue.shutdown();
+    }
+
+    /**
+     * Ensure that a newer push to the same branch replaces the job that is still waiting in the queue,
+     * while jobs for other branches are left alone.
+     */
+    @Test
+    @DisplayName("Waiting job is superseded by newer push test")
+    void waitingJobIsSupersededTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 10);
+
+        BlockingJob running = new BlockingJob("running", release);
+        assertTrue(queue.enqueue(running));
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+
+        BlockingJob first = new BlockingJob("first", release);
+        BlockingJob other = new BlockingJob("other", "other-branch", release);
+        BlockingJob second = new BlockingJob("second", release);
+        assertTrue(queue.enqueue(first));
+        assertTrue(queue.enqueue(other));
+        assertTrue(queue.enqueue(second));
+
+        // The running job is not affected, the first job is replaced by the second one.
+        assertNull(running.supersededBy);
+        assertEquals(second, first.supersededBy);
+        assertEquals(Build.State.SUPERSEDED, first.getState());
+        assertNull(other.supersededBy);
+
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(-1, queue.getQueuePosition("first"));
+        assertEquals(1, queue.getQueuePosition("other"));
+        assertEquals(2, queue.getQueuePosition("second"));
+
+        release.countDown();
+        queue.shutdown();
+    }
+
+    /**
+     * Ensure that running jobs are only cancelled by a newer push when the queue is created with that policy.
+     */
+    @Test
+    @DisplayName("Running job is cancelled by newer push test")
+    void runningJobIsCancelledTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        BuildQueue keepRunning = new BuildQueue(1, 10, false);
+        BlockingJob kept = new BlockingJob("kept", release);
+        assertTrue(keepRunning.enqueue(kept));
+        assertTrue(kept.started.await(5, TimeUnit.SECONDS));
+        assertTrue(keepRunning.enqueue(new BlockingJob("newer", release)));
+        assertNull(kept.cancelledBy);
+
+        BuildQueue cancelRunning = new BuildQueue(1, 10, true);
+        BlockingJob cancelled = new BlockingJob("cancelled", release);
+        assertTrue(cancelRunning.enqueue(cancelled));
+        assertTrue(cancelled.started.await(5, TimeUnit.SECONDS));
+        BlockingJob newer = new BlockingJob("newer", release);
+        assertTrue(cancelRunning.enqueue(newer));
+        assertEquals(newer, cancelled.cancelledBy);
+
+        release.countDown();
+        keepRunning.shutdown();
+        cancelRunning.shutdown();
+    }
+}
@@ -0,0 +1,46 @@
+package fundamentals.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code BuildResults} class.
+ */
+public class BuildResultsTest {
+
+    /**
+     * Ensure that the result key changes with the tree, the Maven executable and the build configuration version.
+     */
+    @Test
+    @DisplayName("Result key test")
+    void keyTest() {
+        BuildResults results = new BuildResults(true, "1");
+        String key = results.key("tree", "mvn");
+        assertTrue(key.startsWith("tree-"));
+        assertEquals(key, results.key("tree", "mvn"));
+        assertNotEquals(key, results.key("other-tree", "mvn"));
+        assertNotEquals(key, results.key("tree", "mvnd"));
+        assertNotEquals(key, new BuildResults(true, "2").key("tree", "mvn"));
+        assertNull(results.key(null, "mvn"));
+    }
+
+    /**
+     * Ensure that only finished builds that succeeded are reused.
+     */
+    @Test
+    @DisplayName("Only successful builds are reused test")
+    void isReusableTest() {
+        Build build = Build.create("owner", "repo", "main", "commit")
+                .toBuilder()
+                .compileStatus(Build.Status.SUCCESS)
+                .testStatus(Build.Status.SUCCESS)
+                .build();
+        assertFalse(BuildResults.isReusable(build));
+        assertTrue(BuildResults.isReusable(build.toBuilder().state(Build.State.FINISHED).build()));
+        assertFalse(BuildResults.isReusable(
+                build.toBuilder().state(Build.State.FINISHED).testStatus(Build.Status.FAILURE).build()));
+        assertFalse(BuildResults.isReusable(build.toBuilder().state(Build.State.CANCELLED).build()));
+    }
+}
@@ -1,14 +1,28 @@
 package fundamentals.server;
 
-import org.json.JSONObject;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -31,6 +45,17 @@ public class BuildStorageTest {
     private void tearDown() throws Exception {
         System.out.println("Teardown");
         Files.delete(new File(BUILDS_TEST_FILE).toPath());
+        Files.deleteIfExists(new File(BUILDS_TEST_FILE + BuildStorage.JOURNAL_SUFFIX).toPath());
+        Files.deleteIfExists(new File(BUILDS_TEST_FILE + BuildStorage.TEMP_SUFFIX).toPath());
+
+        // The logs of the builds that finished in a test.
+        File logs = new File(new File(BUILDS_TEST_FILE).getParentFile(), BuildStorage.LOGS_DIRECTORY);
+        if (logs.exists()) {
+            try (Stream<Path> paths = Files.walk(logs.toPath())) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                    Files.delete(path);
+            }
+        }
     }
 
     /**
@@ -75,20 +100,20 @@ public class BuildStorageTest {
     void retrieveCorrectBuildInformationTest() {
         BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
 
-        JSONObject build1 = storage.getBuild("9ff81d98-ee33-444c-991c-8005fd6f7b62");
-        assertEquals("example-owner", build1.getString("owner"));
-        assertEquals("example-repo", build1.getString("repository"));
-        assertEquals("example-hash", build1.getString("commit"));
+        Build build1 = storage.getBuild("9ff81d98-ee33-444c-991c-8005fd6f7b62");
+        assertEquals("example-owner", build1.owner());
+        assertEquals("example-repo", build1.repository());
+        assertEquals("example-hash", build1.commit());
 
-        JSONObject build2 = storage.getBuild("3663086f-4bea-439f-a8d4-c6721b61a28e");
-        assertEquals("example-owner-2", build2.getString("owner"));
-        assertEquals("example-repo-2", build2.getString("repository"));
-        assertEquals("example-hash-2", build2.getString("commit"));
+        Build build2 = storage.getBuild("3663086f-4bea-439f-a8d4-c6721b61a28e");
+        assertEquals("example-owner-2", build2.owner());
+        assertEquals("example-repo-2", build2.repository());
+        assertEquals("example-hash-2", build2.commit());
 
-        JSONObject build3 = storage.getBuild("c7c4fec1-a849-4a48-89fd-4d3f343f7e11");
-        assertEquals("example-owner-3", build3.getString("owner"));
-        assertEquals("example-repo-3", build3.getString("repository"));
-        assertEquals("example-hash-3", build3.getString("commit"));
+        Build build3 = storage.getBuild("c7c4fec1-a849-4a48-89fd-4d3f343f7e11");
+        assertEquals("example-owner-3", build3.owner());
+        assertEquals("example-repo-3", build3.repository());
+        assertEquals("example-hash-3", build3.commit());
     }
 
     /**
@@ -98,15 +123,463 @@ public class BuildStorageTest {
     @DisplayName("Create a new build test")
     void createNewBuildTest() {
         BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
-        JSONObject newBuild = storage.addNewBuild("new-owner", "new-repo", "new-branch", "new-commit");
+        Build newBuild = storage.addNewBuild("new-owner", "new-repo", "new-branch", "new-commit");
 
-        assertEquals("new-owner", newBuild.getString("owner"));
-        assertEquals("new-repo", newBuild.getString("repository"));
-        assertEquals("new-branch", newBuild.getString("branch"));
-        assertEquals("new-commit", newBuild.getString("commit"));
+        assertEquals("new-owner", newBuild.owner());
+        assertEquals("new-repo", newBuild.repository());
+        assertEquals("new-branch", newBuild.branch());
+        assertEquals("new-commit", newBuild.commit());
+        assertEquals(Build.State.QUEUED, newBuild.state());
+        assertEquals(Build.Status.PENDING, newBuild.compileStatus());
 
         // Ensure that it is possible to retrieve the new build from the array.
-        String buildID = newBuild.getString("build_id");
+        String buildID = newBuild.getBuildID();
         assertEquals(newBuild, storage.getBuild(buildID));
     }
+
+    /**
+     * Ensure that a saved build is appended to the journal and is there again after the storage has been reloaded.
+     */
+    @Test
+    @DisplayName("Saved builds are replayed from the journal test")
+    void journalReplayTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        Build newBuild = storage.addNewBuild("new-owner", "new-repo", "new-branch", "new-commit");
+        String buildID = newBuild.getBuildID();
+        storage.saveBuild(buildID);
+
+        // Change an existing build as well, the journal entry replaces the build from the builds file.
+        storage.update("9ff81d98-ee33-444c-991c-8005fd6f7b62",
+                build -> build.toBuilder().state(Build.State.CANCELLED).build());
+        storage.saveBuild("9ff81d98-ee33-444c-991c-8005fd6f7b62");
+
+        assertTrue(new File(BUILDS_TEST_FILE + BuildStorage.JOURNAL_SUFFIX).exists());
+
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(4, reloaded.size());
+        assertEquals("new-commit", reloaded.getBuild(buildID).commit());
+        assertEquals(Build.State.CANCELLED, reloaded.getBuild("9ff81d98-ee33-444c-991c-8005fd6f7b62").state());
+    }
+
+    /**
+     * Ensure that builds that were queued or running when the storage was last used are ended with an error and
+     * saved, while finished builds and builds stored by older versions of the server are left alone.
+     */
+    @Test
+    @DisplayName("Unfinished builds are failed after a restart test")
+    void failUnfinishedBuildsTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        String queued = storage.addNewBuild("new-owner", "new-repo", "new-branch", "queued-commit").getBuildID();
+        storage.saveBuild(queued);
+        String running = storage.addNewBuild("new-owner", "new-repo", "new-branch", "running-commit").getBuildID();
+        storage.update(running, build -> build.toBuilder().state(Build.State.RUNNING).build());
+        storage.saveBuild(running);
+
+        BuildStorage restarted = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        List<Build> failed = restarted.failUnfinishedBuilds();
+        assertEquals(List.of("queued-commit", "running-commit"), failed.stream().map(Build::commit).toList());
+        assertEquals(Build.Status.ERROR, restarted.getBuild(queued).getStatus());
+
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertTrue(reloaded.failUnfinishedBuilds().isEmpty());
+        assertEquals(Build.State.FINISHED, reloaded.getBuild(running).state());
+        assertTrue(reloaded.getBuild(running).hasEnded());
+    }
+
+    /**
+     * Ensure that writing a snapshot empties the journal and that an incomplete last line in the journal is skipped.
+     */
+    @Test
+    @DisplayName("Snapshot compacts the journal test")
+    void snapshotCompactsJournalTest() throws Exception {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        String buildID = storage.addNewBuild("new-owner", "new-repo", "new-branch", "new-commit").getBuildID();
+        storage.saveBuild(buildID);
+        storage.saveToDisk();
+
+        File journal = new File(BUILDS_TEST_FILE + BuildStorage.JOURNAL_SUFFIX);
+        assertFalse(journal.exists());
+
+        // A crash in the middle of appending leaves half a line behind.
+        Files.writeString(journal.toPath(), "{\"build_id\": \"half", StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(4, reloaded.size());
+        assertNotNull(reloaded.getBuild(buildID));
+        assertFalse(journal.exists());
+    }
+
+    /**
+     * Ensure that builds saved by several threads at the same time are committed as a group and are all on disk once
+     * {@code saveBuild()} has returned.
+     */
+    @Test
+    @DisplayName("Builds saved close together are group committed test")
+    void groupCommitTest() throws Exception {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE, 50);
+        List<String> buildIDs = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            buildIDs.add(storage.addNewBuild("owner", "repo", "branch-" + i, "commit-" + i).getBuildID());
+
+        ExecutorService workers = Executors.newFixedThreadPool(buildIDs.size());
+        List<Future<Boolean>> saved = new ArrayList<>();
+        for (String buildID : buildIDs)
+            saved.add(workers.submit(() -> storage.saveBuild(buildID)));
+        for (Future<Boolean> result : saved)
+            assertTrue(result.get(10, TimeUnit.SECONDS));
+        workers.shutdown();
+        storage.close();
+
+        // Every build is a line of the journal, there is no need to wait for the flusher.
+        assertEquals(buildIDs.size(), Files.readAllLines(new File(BUILDS_TEST_FILE + BuildStorage.JOURNAL_SUFFIX).toPath()).size());
+
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(3 + buildIDs.size(), reloaded.size());
+        for (String buildID : buildIDs)
+            assertNotNull(reloaded.getBuild(buildID));
+    }
+
+    /**
+     * Ensure that a snapshot replaces the builds file without leaving the temporary file behind.
+     */
+    @Test
+    @DisplayName("Snapshot replaces the builds file test")
+    void snapshotReplacesBuildsFileTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        storage.addNewBuild("new-owner", "new-repo", "new-branch", "new-commit");
+        assertTrue(storage.saveToDisk());
+
+        assertFalse(new File(BUILDS_TEST_FILE + BuildStorage.TEMP_SUFFIX).exists());
+        assertEquals(4, BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE).size());
+    }
+
+    /**
+     * Ensure that a build survives being written to disk and read back with all of its typed fields.
+     */
+    @Test
+    @DisplayName("Build fields survive a reload test")
+    void typedFieldsSurviveReloadTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        String buildID = storage.addNewBuild("new-owner", "new-repo", "new-branch", "new-commit").getBuildID();
+        Build changed = storage.update(buildID, build -> build
+                .toBuilder()
+                .state(Build.State.FINISHED)
+                .compileStatus(Build.Status.SUCCESS)
+                .testStatus(Build.Status.FAILURE)
+                .queueWaitMillis(42)
+                .compileResult(new Build.StepResult(0, 1000, 800))
+                .endedAt(1_700_000_000_000L)
+                .build());
+        storage.saveBuild(buildID);
+
+        assertEquals(changed, BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE).getBuild(buildID));
+        assertNull(storage.getBuild("not-a-uuid"));
+    }
+
+    /**
+     * Ensure that the logs of builds stored by older versions, inside the build, can still be read and are kept when
+     * a new snapshot is written.
+     */
+    @Test
+    @DisplayName("Logs inside old builds are kept test")
+    void inlineLogsAreKeptTest() throws Exception {
+        Files.writeString(new File(BUILDS_TEST_FILE).toPath(), "[{\"build_id\": \"9ff81d98-ee33-444c-991c-8005fd6f7b62\", "
+                + "\"owner\": \"example-owner\", \"build_started\": \"2022-02-09T06:22:16.765654200Z\", "
+                + "\"compile_status\": \"success\", \"test_status\": \"success\", "
+                + "\"compile_logs\": [\"compiling\"], \"test_logs\": [\"testing\", \"done\"]}]", StandardCharsets.UTF_8);
+
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(3, storage.getBuildLog("9ff81d98-ee33-444c-991c-8005fd6f7b62").size());
+
+        storage.update("9ff81d98-ee33-444c-991c-8005fd6f7b62",
+                build -> build.toBuilder().state(Build.State.FINISHED).build());
+        assertTrue(storage.saveToDisk());
+
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(1_644_387_736_765L, reloaded.getBuild("9ff81d98-ee33-444c-991c-8005fd6f7b62").startedAt());
+        assertEquals("done", reloaded.getBuildLog("9ff81d98-ee33-444c-991c-8005fd6f7b62").read(2, 1).get(0).text());
+    }
+
+    /**
+     * Ensure that readers always see a consistent set of builds while many threads add and change builds. Every
+     * change sets the compile and test status together, so a reader must never see them differ, and a reader must
+     * never see a build go back to an earlier state.
+     */
+    @Test
+    @DisplayName("Concurrent readers and writers test")
+    void concurrentReadersAndWritersTest() throws Exception {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        int writers = 4;
+        int readers = 8;
+        int buildsPerWriter = 600;
+
+        ExecutorService threads = Executors.newFixedThreadPool(writers + readers);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> writerResults = new ArrayList<>();
+        List<Future<Integer>> readerResults = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            writerResults.add(threads.submit(() -> {
+                for (int i = 0; i < buildsPerWriter; i++) {
+                    String buildID = storage.addNewBuild("owner", "repo", "branch-" + writer, "commit-" + i).getBuildID();
+                    storage.update(buildID, build -> build.toBuilder().state(Build.State.RUNNING).build());
+                    storage.update(buildID, build -> build
+                            .toBuilder()
+                            .compileStatus(Build.Status.SUCCESS)
+                            .testStatus(Build.Status.SUCCESS)
+                            .state(Build.State.FINISHED)
+                            .build());
+                }
+            }));
+        }
+
+        for (int r = 0; r < readers; r++) {
+            readerResults.add(threads.submit(() -> {
+                int reads = 0;
+                int lastSize = 0;
+                do {
+                    List<Build> builds = storage.getAllBuilds();
+                    int size = builds.size();
+                    assertTrue(size >= lastSize, "The number of builds went down");
+                    lastSize = size;
+
+                    for (Build build : builds) {
+                        assertNotNull(build);
+                        assertEquals(build.compileStatus(), build.testStatus());
+
+                        // A build that is looked up afterwards can only have moved on.
+                        Build latest = storage.getBuild(build.getID());
+                        assertNotNull(latest);
+                        assertTrue(latest.state().ordinal() >= build.state().ordinal());
+                    }
+                    assertEquals(size, builds.size(), "A snapshot of the builds changed while it was read");
+                    reads++;
+                } while (writing.get());
+                return reads;
+            }));
+        }
+
+        for (Future<?> result : writerResults)
+            result.get(60, TimeUnit.SECONDS);
+        writing.set(false);
+        for (Future<Integer> result : readerResults)
+            assertTrue(result.get(60, TimeUnit.SECONDS) > 0);
+        threads.shutdown();
+
+        assertEquals(3 + writers * buildsPerWriter, storage.size());
+        for (Build build : storage.getAllBuilds().subList(3, storage.size()))
+            assertEquals(Build.State.FINISHED, build.state());
+    }
+
+    /**
+     * Ensure that builds can be found by repository, branch, commit, status and start time, newest first.
+     */
+    @Test
+    @DisplayName("Query builds test")
+    void queryTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        Build first = storage.addNewBuild("owner", "repo", "main", "commit-1");
+        Build second = storage.addNewBuild("owner", "repo", "main", "commit-2");
+        Build dev = storage.addNewBuild("owner", "repo", "dev", "commit-3");
+        Build other = storage.addNewBuild("owner", "other-repo", "main", "commit-4");
+        storage.update(first.getBuildID(), build -> build
+                .toBuilder()
+                .compileStatus(Build.Status.SUCCESS)
+                .testStatus(Build.Status.SUCCESS)
+                .endedAt(System.currentTimeMillis())
+                .build());
+        storage.update(dev.getBuildID(), build -> build
+                .toBuilder()
+                .compileStatus(Build.Status.ERROR)
+                .testStatus(Build.Status.FAILURE)
+                .endedAt(System.currentTimeMillis())
+                .build());
+
+        assertEquals(second.getID(), storage.getLatestBuild("owner", "repo", "main").getID());
+        assertEquals(dev.getID(), storage.getLatestBuild("owner", "repo", "dev").getID());
+        assertNull(storage.getLatestBuild("owner", "repo", "no-such-branch"));
+        assertNull(storage.getLatestBuild("someone-else", "repo", "main"));
+
+        assertEquals(List.of(other.getID(), second.getID(), first.getID()),
+                ids(storage.query(new BuildQuery(null, null, "main", null, null, 0, 10))));
+        assertEquals(List.of(dev.getID(), second.getID()),
+                ids(storage.query(new BuildQuery("owner", "repo", null, null, null, 0, 2))));
+        assertEquals(List.of(first.getID()),
+                ids(storage.query(new BuildQuery(null, null, null, null, Build.Status.SUCCESS, 0, 10))));
+        assertEquals(List.of(dev.getID()),
+                ids(storage.query(new BuildQuery(null, null, null, "commit-3", null, 0, 10))));
+        assertEquals(List.of(other.getID(), second.getID()),
+                ids(storage.query(new BuildQuery(null, null, "main", null, Build.Status.PENDING, 0, 10))));
+
+        // The builds from the builds file started in 2022 and are still pending.
+        assertEquals(5, storage.query(new BuildQuery(null, null, null, null, Build.Status.PENDING, 0, 10)).size());
+        assertEquals(4, storage.query(new BuildQuery(null, null, null, null, null, first.startedAt(), 10)).size());
+        assertTrue(storage.query(new BuildQuery(null, null, null, null, null, Long.MAX_VALUE, 10)).isEmpty());
+
+        // A build that has finished is no longer pending, and the indexes are built again when the builds are loaded.
+        storage.update(second.getBuildID(), build -> build.toBuilder().state(Build.State.CANCELLED).build());
+        assertTrue(storage.query(new BuildQuery(null, null, "main", null, Build.Status.CANCELLED, 0, 10))
+                .stream().allMatch(build -> build.getID().equals(second.getID())));
+        assertTrue(storage.saveToDisk());
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(List.of(other.getID()),
+                ids(reloaded.query(new BuildQuery(null, null, "main", null, Build.Status.PENDING, 0, 10))));
+        assertEquals(second.getID(), reloaded.getLatestBuild("owner", "repo", "main").getID());
+
+        // A fork has the same repository and branch under another owner.
+        Build fork = reloaded.addNewBuild("someone-else", "repo", "main", "commit-5");
+        assertEquals(fork.getID(), reloaded.getLatestBuild("someone-else", "repo", "main").getID());
+        assertEquals(second.getID(), reloaded.getLatestBuild("owner", "repo", "main").getID());
+        assertEquals(List.of(fork.getID(), second.getID(), first.getID()),
+                ids(reloaded.query(new BuildQuery(null, "repo", "main", null, null, 0, 10))));
+    }
+
+    /**
+     * Ensure that going through the pages of builds returns every build once, newest first.
+     */
+    @Test
+    @DisplayName("Pages of builds test")
+    void pagesTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        for (int i = 0; i < 7; i++)
+            storage.addNewBuild("owner", "repo", "main", "commit-" + i);
+
+        List<Build> expected = new ArrayList<>(storage.getAllBuilds());
+        Collections.reverse(expected);
+
+        List<Build> seen = new ArrayList<>();
+        String after = null;
+        List<Build> page;
+        while (!(page = storage.getPage(after, 4)).isEmpty()) {
+            assertTrue(page.size() <= 4);
+            seen.addAll(page);
+            after = page.get(page.size() - 1).getBuildID();
+        }
+        assertEquals(expected, seen);
+
+        assertNull(storage.getPage("not-a-uuid", 4));
+        assertNull(storage.getPage(UUID.randomUUID().toString(), 4));
+    }
+
+    /**
+     * Ensure that the builds that changed after a sequence number are returned once each, in the order of their
+     * latest change, and that sequence numbers keep growing when the storage is loaded again.
+     */
+    @Test
+    @DisplayName("Changes since a sequence number test")
+    void changesSinceTest() throws Exception {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        AtomicInteger notified = new AtomicInteger();
+        storage.addChangeListener(notified::incrementAndGet);
+
+        BuildChanges everything = storage.getChangesSince(0, 100);
+        assertEquals(3, everything.changes().size());
+        assertEquals(storage.getSequence(), everything.sequence());
+        assertFalse(everything.more());
+
+        long sequence = storage.getSequence();
+        Build first = storage.addNewBuild("owner", "repo", "main", "commit-1");
+        Build second = storage.addNewBuild("owner", "repo", "main", "commit-2");
+        storage.update(first.getBuildID(), build -> build.toBuilder().state(Build.State.RUNNING).build());
+        assertEquals(3, notified.get());
+
+        BuildChanges changes = storage.getChangesSince(sequence, 100);
+        assertEquals(List.of(second.getID(), first.getID()),
+                changes.changes().stream().map(change -> change.build().getID()).toList());
+        assertEquals(Build.State.RUNNING, changes.changes().get(1).build().state());
+        assertTrue(changes.changes().get(0).sequence() < changes.changes().get(1).sequence());
+        assertEquals(sequence + 3, changes.sequence());
+
+        // A client that asks for less gets the rest with the sequence number it was given.
+        BuildChanges page = storage.getChangesSince(sequence, 1);
+        assertTrue(page.more());
+        assertEquals(List.of(second.getID()), page.changes().stream().map(change -> change.build().getID()).toList());
+        assertEquals(List.of(first.getID()),
+                storage.getChangesSince(page.sequence(), 1).changes().stream().map(change -> change.build().getID()).toList());
+
+        assertTrue(storage.getChangesSince(storage.getSequence(), 100).changes().isEmpty());
+
+        // After a restart every build is newer than the sequence numbers handed out before.
+        storage.saveBuild(first.getBuildID());
+        storage.saveBuild(second.getBuildID());
+        Thread.sleep(2);
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertTrue(reloaded.getSequence() > storage.getSequence());
+        assertEquals(5, reloaded.getChangesSince(storage.getSequence(), 100).changes().size());
+    }
+
+    /**
+     * Ensure that the sequence number of a build changes with the build, and that a build is only final once it has
+     * ended and its log has been stored.
+     */
+    @Test
+    @DisplayName("Sequence number of a build test")
+    void buildSequenceTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        String buildID = storage.addNewBuild("owner", "repo", "main", "commit").getBuildID();
+        long created = storage.getChange(buildID).sequence();
+        assertFalse(storage.isFinal(storage.getBuild(buildID)));
+
+        storage.update(buildID,
+                build -> build.toBuilder().endedAt(System.currentTimeMillis()).state(Build.State.FINISHED).build());
+        long ended = storage.getChange(buildID).sequence();
+        assertTrue(ended > created);
+        assertFalse(storage.isFinal(storage.getBuild(buildID)));
+
+        storage.finishBuildLog(buildID);
+        assertTrue(storage.getChange(buildID).sequence() > ended);
+        assertTrue(storage.isFinal(storage.getBuild(buildID)));
+
+        // Other builds changing does not change the sequence number of this build.
+        long finished = storage.getChange(buildID).sequence();
+        storage.addNewBuild("owner", "repo", "main", "other-commit");
+        assertEquals(finished, storage.getChange(buildID).sequence());
+        assertNull(storage.getChange("not-a-uuid"));
+    }
+
+    /**
+     * Ensure that only a successful build with the same result key is reused, and that the reused build has its
+     * result and log, also after a reload.
+     */
+    @Test
+    @DisplayName("Result of a build is reused test")
+    void reuseResultTest() {
+        BuildStorage storage = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        String failedID = storage.addNewBuild("owner", "repo", "feature", "commit-1", "tree-1").getBuildID();
+        storage.update(failedID, build -> build.toBuilder().compileStatus(Build.Status.SUCCESS)
+                .testStatus(Build.Status.FAILURE).state(Build.State.FINISHED)
+                .endedAt(System.currentTimeMillis()).build());
+        assertNull(storage.findReusableResult("tree-1"));
+
+        String buildID = storage.addNewBuild("owner", "repo", "feature", "commit-2", "tree-1").getBuildID();
+        storage.getLogs().getLiveLog(buildID).append("test", "Tests run: 3");
+        storage.update(buildID, build -> build.toBuilder().compileStatus(Build.Status.SUCCESS)
+                .testStatus(Build.Status.SUCCESS).state(Build.State.FINISHED)
+                .endedAt(System.currentTimeMillis()).build());
+        storage.finishBuildLog(buildID);
+        storage.saveBuild(buildID);
+        assertNull(storage.findReusableResult("tree-2"));
+        Build result = storage.findReusableResult("tree-1");
+        assertEquals(buildID, result.getBuildID());
+
+        Build reused = storage.addReusedBuild("owner", "repo", "main", "commit-3", result);
+        storage.saveBuild(reused.getBuildID());
+        assertEquals(buildID, reused.reusedFrom());
+        assertEquals(Build.Status.SUCCESS, reused.getStatus());
+        assertTrue(storage.isFinal(reused));
+        assertEquals("Tests run: 3", storage.getBuildLog(reused.getBuildID()).read(0, 1).get(0).text());
+
+        BuildStorage reloaded = BuildStorage.loadBuildStorageFile(BUILDS_TEST_FILE);
+        assertEquals(reused, reloaded.getBuild(reused.getBuildID()));
+        // A build that reused a result points at the build that ran, not at another reused build.
+        Build latest = reloaded.findReusableResult("tree-1");
+        assertEquals(reused.getBuildID(), latest.getBuildID());
+        Build again = reloaded.addReusedBuild("owner", "repo", "release", "commit-3", latest);
+        assertEquals(buildID, again.reusedFrom());
+    }
+
+    private static List<UUID> ids(List<Build> builds) {
+        return builds.stream().map(Build::getID).toList();
+    }
 }
@@ -0,0 +1,127 @@
+package fundamentals.server;
+
+import fundamentals.server.helpers.Bash;
+import fundamentals.server.helpers.MavenBuild;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the {@code MavenBuild} class. The shell is a mock that prints the given lines like Maven would.
+ */
+public class MavenBuildTest {
+
+    private static final String PATH_TO_WORKING_DIRECTORY = "/path/to/some/dir";
+
+    private static final String[] COMPILE_LINES = {
+            "[INFO] Building project 1.0-SNAPSHOT",
+            "[INFO] --- maven-resources-plugin:2.6:resources (default-resources) @ project ---",
+            "[INFO] --- maven-compiler-plugin:3.8.1:compile (default-compile) @ project ---",
+            "[INFO] Compiling 12 source files to /path/to/some/dir/target/classes",
+    };
+
+    private static final String[] TEST_LINES = {
+            "[INFO] --- resources:3.3.1:testResources (default-testResources) @ project ---",
+            "[INFO] --- compiler:3.11.0:testCompile (default-testCompile) @ project ---",
+            "[INFO] --- surefire:3.0.0:test (default-test) @ project ---",
+            "[INFO] Tests run: 3, Failures: 0, Errors: 0, Skipped: 0",
+    };
+
+    private static String[] mavenCommand() {
+        if (System.getProperty("os.name").startsWith("Windows"))
+            return new String[] {"mvn.cmd", "-B", "test"};
+        return new String[] {"mvn", "-B", "test"};
+    }
+
+    // Creates a Maven build whose shell prints the lines and exits with the result, the stage of every line is
+    // added to stages.
+    @SuppressWarnings("unchecked")
+    private static MavenBuild mavenBuild(List<String> lines, boolean result, List<MavenBuild.Stage> stages) {
+        File dir = new File(PATH_TO_WORKING_DIRECTORY);
+        Bash shell = mock(Bash.class);
+        MavenBuild maven = new MavenBuild(dir, shell);
+
+        ArgumentCaptor<Consumer<Bash.OutputLine>> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(shell).addOutputListener(listener.capture());
+        when(shell.execute(mavenCommand(), null, dir)).thenAnswer(invocation -> {
+            for (int i = 0; i < lines.size(); i++) {
+                listener.getValue().accept(new Bash.OutputLine(i, Bash.Stream.STDOUT, lines.get(i)));
+                stages.add(maven.getStage());
+            }
+            return result;
+        });
+        return maven;
+    }
+
+    /**
+     * Ensure that Maven is only run once, and that the output is split at the first goal after "compile".
+     */
+    @Test
+    @DisplayName("Output is split into compile and test stages test")
+    void stagesTest() {
+        List<String> lines = new ArrayList<>(List.of(COMPILE_LINES));
+        lines.addAll(List.of(TEST_LINES));
+        List<MavenBuild.Stage> stages = new ArrayList<>();
+        MavenBuild maven = mavenBuild(lines, true, stages);
+
+        assertTrue(maven.run());
+        assertTrue(maven.didCompile());
+        for (int i = 0; i < lines.size(); i++)
+            assertEquals(i < COMPILE_LINES.length ? MavenBuild.Stage.COMPILE : MavenBuild.Stage.TEST, stages.get(i));
+    }
+
+    /**
+     * Ensure that a build that fails before the tests are reached did not compile.
+     */
+    @Test
+    @DisplayName("Failure in the compile stage is a compile error test")
+    void compileErrorTest() {
+        List<String> lines = new ArrayList<>(List.of(COMPILE_LINES));
+        lines.add("[ERROR] COMPILATION ERROR :");
+        MavenBuild maven = mavenBuild(lines, false, new ArrayList<>());
+
+        assertFalse(maven.run());
+        assertFalse(maven.didCompile());
+        assertEquals(MavenBuild.Stage.COMPILE, maven.getStage());
+    }
+
+    /**
+     * Ensure that a build that fails while running the tests did compile.
+     */
+    @Test
+    @DisplayName("Failure in the test stage is a test failure test")
+    void testFailureTest() {
+        List<String> lines = new ArrayList<>(List.of(COMPILE_LINES));
+        lines.addAll(List.of(TEST_LINES));
+        lines.add("[ERROR] Tests run: 3, Failures: 1, Errors: 0, Skipped: 0");
+        MavenBuild maven = mavenBuild(lines, false, new ArrayList<>());
+
+        assertFalse(maven.run());
+        assertTrue(maven.didCompile());
+    }
+
+    /**
+     * Ensure that every module of a multi-module project is compiled before its tests, so a compile error in a later
+     * module is still a compile error.
+     */
+    @Test
+    @DisplayName("Compile error in a later module test")
+    void multiModuleTest() {
+        List<String> lines = new ArrayList<>(List.of(COMPILE_LINES));
+        lines.addAll(List.of(TEST_LINES));
+        lines.add("[INFO] --- maven-compiler-plugin:3.8.1:compile (default-compile) @ other-module ---");
+        lines.add("[ERROR] COMPILATION ERROR :");
+        MavenBuild maven = mavenBuild(lines, false, new ArrayList<>());
+
+        assertFalse(maven.run());
+        assertFalse(maven.didCompile());
+    }
+}
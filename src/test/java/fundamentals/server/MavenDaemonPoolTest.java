@@ -0,0 +1,96 @@
+package fundamentals.server;
+
+import fundamentals.server.helpers.MavenDaemonPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code MavenDaemonPool} class. The daemons are "started" and "stopped" with the "true" command
+ * instead of mvnd, so these tests are not run on Windows.
+ */
+@DisabledOnOs(OS.WINDOWS)
+public class MavenDaemonPoolTest {
+
+    private static final File DAEMONS_TEST_DIRECTORY = new File("src/test/res/daemons.test");
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (!DAEMONS_TEST_DIRECTORY.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(DAEMONS_TEST_DIRECTORY.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
+    /**
+     * Ensure that only the configured repositories are built with the pool.
+     */
+    @Test
+    @DisplayName("Pool is selected per repository test")
+    void isUsedByTest() {
+        MavenDaemonPool pool = new MavenDaemonPool("true", List.of(), 1, 10, 1024, List.of("owner/repo"), DAEMONS_TEST_DIRECTORY);
+        assertTrue(pool.isUsedBy("owner", "repo"));
+        assertFalse(pool.isUsedBy("owner", "other-repo"));
+
+        MavenDaemonPool all = new MavenDaemonPool("true", List.of(), 1, 10, 1024, List.of("*"), DAEMONS_TEST_DIRECTORY);
+        assertTrue(all.isUsedBy("anyone", "anything"));
+
+        MavenDaemonPool none = new MavenDaemonPool("true", List.of(), 1, 10, 1024, List.of(), DAEMONS_TEST_DIRECTORY);
+        assertFalse(none.isUsedBy("owner", "repo"));
+    }
+
+    /**
+     * Ensure that a daemon is reused for builds and replaced after the maximum number of builds.
+     */
+    @Test
+    @Timeout(30)
+    @DisplayName("Daemon is replaced after the maximum number of builds test")
+    void recycledAfterMaxBuildsTest() {
+        MavenDaemonPool pool = new MavenDaemonPool("true", List.of(), 1, 2, 1024, List.of("*"), DAEMONS_TEST_DIRECTORY);
+
+        MavenDaemonPool.Daemon daemon = pool.acquire();
+        assertEquals("true", daemon.command().get(0));
+        pool.release(daemon, false);
+
+        daemon = pool.acquire();
+        assertEquals(1, daemon.getBuilds());
+        pool.release(daemon, false);
+
+        daemon = pool.acquire();
+        assertEquals(0, daemon.getBuilds());
+    }
+
+    /**
+     * Ensure that a daemon is replaced after a cancelled build, because it may still be working on the build.
+     */
+    @Test
+    @Timeout(30)
+    @DisplayName("Daemon is replaced after a cancelled build test")
+    void recycledAfterCancelTest() {
+        MavenDaemonPool pool = new MavenDaemonPool("true", List.of(), 1, 10, 1024, List.of("*"), DAEMONS_TEST_DIRECTORY);
+
+        MavenDaemonPool.Daemon daemon = pool.acquire();
+        pool.release(daemon, false);
+        daemon = pool.acquire();
+        assertEquals(1, daemon.getBuilds());
+        pool.release(daemon, true);
+
+        daemon = pool.acquire();
+        assertEquals(0, daemon.getBuilds());
+    }
+}
@@ -0,0 +1,104 @@
+package fundamentals.server;
+
+import fundamentals.server.helpers.MavenRepositoryCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code MavenRepositoryCache} class.
+ */
+public class MavenRepositoryCacheTest {
+
+    private static final File REPOSITORY_TEST_DIRECTORY = new File("src/test/res/maven-repository.test");
+    private static final File PROJECT_TEST_DIRECTORY = new File("src/test/res/maven-project.test");
+    private static final List<String> MAVEN = List.of("mvn");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(new File(PROJECT_TEST_DIRECTORY, "module/src").toPath());
+        Files.writeString(new File(PROJECT_TEST_DIRECTORY, "pom.xml").toPath(), "<project>root</project>");
+        Files.writeString(new File(PROJECT_TEST_DIRECTORY, "module/pom.xml").toPath(), "<project>module</project>");
+        Files.writeString(new File(PROJECT_TEST_DIRECTORY, "module/src/Main.java").toPath(), "class Main {}");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        delete(REPOSITORY_TEST_DIRECTORY);
+        delete(PROJECT_TEST_DIRECTORY);
+    }
+
+    private static void delete(File directory) throws IOException {
+        if (!directory.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
+    /**
+     * Ensure that the key only changes when a pom.xml changes, not when the sources or the build output change.
+     */
+    @Test
+    @DisplayName("Key follows the pom.xml files test")
+    void keyTest() throws IOException {
+        MavenRepositoryCache cache = new MavenRepositoryCache(REPOSITORY_TEST_DIRECTORY, true);
+        String key = cache.key(PROJECT_TEST_DIRECTORY, MAVEN);
+        assertNotNull(key);
+
+        Files.writeString(new File(PROJECT_TEST_DIRECTORY, "module/src/Main.java").toPath(), "class Main { }");
+        Files.createDirectories(new File(PROJECT_TEST_DIRECTORY, "target").toPath());
+        Files.writeString(new File(PROJECT_TEST_DIRECTORY, "target/pom.xml").toPath(), "<project>copy</project>");
+        assertEquals(key, cache.key(PROJECT_TEST_DIRECTORY, MAVEN));
+
+        Files.writeString(new File(PROJECT_TEST_DIRECTORY, "module/pom.xml").toPath(), "<project>changed</project>");
+        assertNotEquals(key, cache.key(PROJECT_TEST_DIRECTORY, MAVEN));
+    }
+
+    /**
+     * Ensure that a build only runs offline after a build of the same pom.xml files has succeeded, also after a
+     * restart, and goes online again when the pom.xml files are forgotten.
+     */
+    @Test
+    @DisplayName("Offline after the pom.xml files have been resolved test")
+    void offlineTest() {
+        MavenRepositoryCache cache = new MavenRepositoryCache(REPOSITORY_TEST_DIRECTORY, true);
+        String key = cache.key(PROJECT_TEST_DIRECTORY, MAVEN);
+        assertFalse(cache.arguments(key, "build-1").contains("-o"));
+
+        cache.setResolved(key);
+        assertTrue(cache.arguments(key, "build-2").contains("-o"));
+
+        MavenRepositoryCache restarted = new MavenRepositoryCache(REPOSITORY_TEST_DIRECTORY, true);
+        assertTrue(restarted.arguments(key, "build-3").contains("-o"));
+        assertFalse(new MavenRepositoryCache(REPOSITORY_TEST_DIRECTORY, false).arguments(key, "build-3").contains("-o"));
+
+        restarted.forget(key);
+        assertFalse(new MavenRepositoryCache(REPOSITORY_TEST_DIRECTORY, true).arguments(key, "build-4").contains("-o"));
+    }
+
+    /**
+     * Ensure that every build uses the shared repository with its own directory for installed artifacts.
+     */
+    @Test
+    @DisplayName("Build uses the shared repository test")
+    void argumentsTest() {
+        MavenRepositoryCache cache = new MavenRepositoryCache(REPOSITORY_TEST_DIRECTORY, true);
+        List<String> arguments = cache.arguments(null, "build-1");
+        assertTrue(arguments.contains("-Dmaven.repo.local=" + REPOSITORY_TEST_DIRECTORY.getAbsolutePath()));
+        assertTrue(arguments.contains("-Daether.enhancedLocalRepository.localPrefix=installed/build-1"));
+        assertTrue(arguments.containsAll(cache.sharedArguments()));
+    }
+}
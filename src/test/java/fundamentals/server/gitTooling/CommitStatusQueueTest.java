@@ -0,0 +1,136 @@
+package fundamentals.server.gitTooling;
+
+import fundamentals.server.gitTooling.GithubCommitAPI.CommitStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.http.HttpHeaders;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code CommitStatusQueue} class, with a sender that answers like Github instead of sending anything.
+ */
+public class CommitStatusQueueTest {
+
+    private static final String QUEUE_TEST_FILE = "src/test/res/commit_statuses.test.json";
+
+    private static final HttpHeaders NO_HEADERS = HttpHeaders.of(Map.of(), (name, value) -> true);
+
+    @AfterEach
+    void tearDown() throws Exception {
+        Files.deleteIfExists(new File(QUEUE_TEST_FILE).toPath());
+        Files.deleteIfExists(new File(QUEUE_TEST_FILE + CommitStatusQueue.TEMP_SUFFIX).toPath());
+    }
+
+    /**
+     * Ensure that a status that is still waiting is replaced by a newer status of the same commit, so that only the
+     * final status is sent.
+     */
+    @Test
+    @DisplayName("Waiting status is replaced by the final status test")
+    void collapseTest() throws Exception {
+        List<CommitStatusQueue.StatusUpdate> sent = new CopyOnWriteArrayList<>();
+        CommitStatusQueue queue = new CommitStatusQueue(QUEUE_TEST_FILE, update -> {
+            sent.add(update);
+            return CompletableFuture.completedFuture(new CommitStatusQueue.Response(201, NO_HEADERS));
+        }, 10);
+
+        queue.setCommitStatus("owner", "repo", "a", CommitStatus.PENDING, "Running", "url");
+        queue.setCommitStatus("owner", "repo", "b", CommitStatus.PENDING, "Running", "url");
+        queue.setCommitStatus("owner", "repo", "a", CommitStatus.SUCCESS, "Tests passed", "url");
+        assertEquals(2, queue.size());
+
+        queue.start();
+        waitFor(() -> queue.size() == 0);
+        queue.close();
+
+        assertEquals(2, sent.size());
+        assertTrue(sent.stream().anyMatch(update -> update.commitHash().equals("a") && update.status() == CommitStatus.SUCCESS));
+        assertTrue(sent.stream().noneMatch(update -> update.commitHash().equals("a") && update.status() == CommitStatus.PENDING));
+    }
+
+    /**
+     * Ensure that the statuses that have not been sent are loaded again from the queue file.
+     */
+    @Test
+    @DisplayName("Queue survives a restart test")
+    void survivesRestartTest() {
+        CommitStatusQueue queue = new CommitStatusQueue(QUEUE_TEST_FILE, update -> new CompletableFuture<>(), 10);
+        queue.setCommitStatus("owner", "repo", "a", CommitStatus.FAILURE, "Tests failed", "url");
+        queue.setCommitStatus("owner", "repo", "b", CommitStatus.PENDING, "Running", "url");
+
+        CommitStatusQueue restarted = new CommitStatusQueue(QUEUE_TEST_FILE, update -> new CompletableFuture<>(), 10);
+        restarted.load();
+        assertEquals(queue.getUpdates(), restarted.getUpdates());
+
+        // New statuses continue after the loaded ones.
+        restarted.setCommitStatus("owner", "repo", "c", CommitStatus.PENDING, "Running", "url");
+        List<CommitStatusQueue.StatusUpdate> updates = restarted.getUpdates();
+        assertEquals("c", updates.get(updates.size() - 1).commitHash());
+    }
+
+    /**
+     * Ensure that a status is sent again after a server error, and removed from the queue once it has been created.
+     */
+    @Test
+    @DisplayName("Failed status is retried test")
+    void retryTest() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CommitStatusQueue queue = new CommitStatusQueue(QUEUE_TEST_FILE, update -> {
+            int status = attempts.incrementAndGet() < 3 ? 502 : 201;
+            return CompletableFuture.completedFuture(new CommitStatusQueue.Response(status, NO_HEADERS));
+        }, 10);
+
+        queue.start();
+        queue.setCommitStatus("owner", "repo", "a", CommitStatus.SUCCESS, "Tests passed", "url");
+        waitFor(() -> queue.size() == 0);
+        queue.close();
+
+        assertEquals(3, attempts.get());
+    }
+
+    /**
+     * Ensure that nothing more is sent when Github says that the rate limit is used up.
+     */
+    @Test
+    @DisplayName("Rate limit pauses the queue test")
+    void rateLimitTest() throws Exception {
+        long reset = System.currentTimeMillis() / 1000 + 3600;
+        HttpHeaders headers = HttpHeaders.of(Map.of(
+                "X-RateLimit-Remaining", List.of("0"),
+                "X-RateLimit-Reset", List.of(Long.toString(reset))), (name, value) -> true);
+        AtomicInteger attempts = new AtomicInteger();
+        CommitStatusQueue queue = new CommitStatusQueue(QUEUE_TEST_FILE, update -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture(new CommitStatusQueue.Response(201, headers));
+        }, 10);
+
+        queue.start();
+        queue.setCommitStatus("owner", "repo", "a", CommitStatus.SUCCESS, "Tests passed", "url");
+        waitFor(() -> queue.size() == 0);
+        queue.setCommitStatus("owner", "repo", "b", CommitStatus.SUCCESS, "Tests passed", "url");
+        Thread.sleep(200);
+        queue.close();
+
+        assertEquals(1, attempts.get());
+        assertEquals(1, queue.size());
+    }
+
+    // Waits (at most 5 seconds) until the condition is true.
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,29 @@
+package fundamentals.server.handlers;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code EventStream} class.
+ */
+public class EventStreamTest {
+
+    /**
+     * Ensure that events are framed as Server-Sent Events: an ID if there is one, the type, one data field per line
+     * with carriage returns removed, and an empty line at the end.
+     */
+    @Test
+    @DisplayName("Events are framed as Server-Sent Events test")
+    void appendEventTest() {
+        StringBuilder events = new StringBuilder();
+        EventStream.appendEvent(events, 7, "compile", "[INFO] Compiling\r");
+        EventStream.appendEvent(events, "build", "first\nsecond");
+        EventStream.appendEvent(events, "end", "");
+
+        assertEquals("id: 7\nevent: compile\ndata: [INFO] Compiling \n\n"
+                + "event: build\ndata: first\ndata: second\n\n"
+                + "event: end\ndata: \n\n", events.toString());
+    }
+}
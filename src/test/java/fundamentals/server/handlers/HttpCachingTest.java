@@ -0,0 +1,39 @@
+package fundamentals.server.handlers;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code HttpCaching} class.
+ */
+public class HttpCachingTest {
+
+    /**
+     * Ensure that an If-None-Match header matches the current ETag, also in a list, as a weak tag or as "*".
+     */
+    @Test
+    @DisplayName("If-None-Match matches the ETag test")
+    void matchesTest() {
+        String etag = HttpCaching.etag(42);
+        assertEquals("\"42\"", etag);
+
+        assertTrue(HttpCaching.matches("\"42\"", etag));
+        assertTrue(HttpCaching.matches("\"1\", \"42\"", etag));
+        assertTrue(HttpCaching.matches("W/\"42\"", etag));
+        assertTrue(HttpCaching.matches("*", etag));
+    }
+
+    /**
+     * Ensure that an old ETag, or no If-None-Match header at all, does not match.
+     */
+    @Test
+    @DisplayName("Old ETags do not match test")
+    void doesNotMatchTest() {
+        String etag = HttpCaching.etag(42);
+        assertFalse(HttpCaching.matches(null, etag));
+        assertFalse(HttpCaching.matches("\"41\"", etag));
+        assertFalse(HttpCaching.matches("42", etag));
+    }
+}
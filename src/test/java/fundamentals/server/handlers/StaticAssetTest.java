@@ -0,0 +1,30 @@
+package fundamentals.server.handlers;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code StaticAsset} class.
+ */
+public class StaticAssetTest {
+
+    /**
+     * Ensure that gzip is accepted when the Accept-Encoding header lists it or "*", and not when it is refused with
+     * a quality of 0 or missing.
+     */
+    @Test
+    @DisplayName("Accept-Encoding gzip test")
+    void acceptsGzipTest() {
+        assertTrue(StaticAsset.acceptsGzip("gzip"));
+        assertTrue(StaticAsset.acceptsGzip("gzip, deflate, br"));
+        assertTrue(StaticAsset.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(StaticAsset.acceptsGzip("*"));
+
+        assertFalse(StaticAsset.acceptsGzip(null));
+        assertFalse(StaticAsset.acceptsGzip("deflate, br"));
+        assertFalse(StaticAsset.acceptsGzip("gzip;q=0"));
+        assertFalse(StaticAsset.acceptsGzip("gzip; q=0.0, br"));
+    }
+}
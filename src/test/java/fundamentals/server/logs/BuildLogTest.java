@@ -0,0 +1,119 @@
+package fundamentals.server.logs;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the {@code BuildLog} class.
+ */
+public class BuildLogTest {
+
+    /**
+     * Ensure that lines are numbered in the order they are appended and can be read from any position.
+     */
+    @Test
+    @DisplayName("Read lines from an offset test")
+    void readFromOffsetTest() {
+        BuildLog log = new BuildLog(null);
+        log.append("compile", "a");
+        log.append("compile", "b");
+        log.append("test", "c");
+
+        List<BuildLog.Line> lines = log.read(1, 10);
+        assertEquals(2, lines.size());
+        assertEquals(new BuildLog.Line(1, "compile", "b"), lines.get(0));
+        assertEquals(new BuildLog.Line(2, "test", "c"), lines.get(1));
+
+        assertEquals(1, log.read(0, 1).size());
+        assertTrue(log.read(3, 10).isEmpty());
+    }
+
+    /**
+     * Ensure that the listeners are told about every appended line and about the log being closed.
+     */
+    @Test
+    @DisplayName("Listeners are notified test")
+    void listenersAreNotifiedTest() {
+        BuildLog log = new BuildLog(null);
+        AtomicInteger changes = new AtomicInteger();
+        log.addListener(changes::incrementAndGet);
+
+        log.append("compile", "a");
+        log.append("test", "b");
+        log.close();
+        log.close();
+
+        assertEquals(3, changes.get());
+        assertTrue(log.isClosed());
+        assertThrows(IllegalStateException.class, () -> log.append("test", "c"));
+    }
+
+    /**
+     * Ensure that a log created from stored compile and test logs keeps the compile lines first.
+     */
+    @Test
+    @DisplayName("Log of a finished build test")
+    void finishedBuildLogTest() {
+        BuildLog log = BuildLog.of(List.of("a", "b"), List.of("c"));
+
+        assertTrue(log.isClosed());
+        assertEquals(3, log.size());
+        assertEquals("compile", log.read(1, 1).get(0).phase());
+        assertEquals("test", log.read(2, 1).get(0).phase());
+    }
+
+    /**
+     * Ensure that a log with more lines than fit in one segment is written to several segment files, and that it
+     * can be read back across segment boundaries after it has been opened again from its pointer.
+     */
+    @Test
+    @DisplayName("Log is stored in segment files test")
+    void segmentFilesTest(@TempDir File directory) {
+        BuildLog log = new BuildLog(directory);
+        int lineCount = BuildLog.SEGMENT_LINES * 2 + 10;
+        for (int i = 0; i < lineCount; i++)
+            log.append(i < BuildLog.SEGMENT_LINES ? "compile" : "test", "line " + i);
+        log.close();
+
+        assertEquals(3, directory.listFiles().length);
+
+        BuildLog opened = BuildLog.open(directory, log.getPointer("logs/test"));
+        assertTrue(opened.isClosed());
+        assertEquals(lineCount, opened.size());
+
+        List<BuildLog.Line> lines = opened.read(BuildLog.SEGMENT_LINES - 1, 3);
+        assertEquals(new BuildLog.Line(BuildLog.SEGMENT_LINES - 1, "compile", "line " + (BuildLog.SEGMENT_LINES - 1)), lines.get(0));
+        assertEquals(new BuildLog.Line(BuildLog.SEGMENT_LINES, "test", "line " + BuildLog.SEGMENT_LINES), lines.get(1));
+        assertEquals("line " + (lineCount - 1), opened.read(lineCount - 1, 10).get(0).text());
+    }
+
+    /**
+     * Ensure that the pointer of a log only counts the lines that were written to segment files, when the last
+     * segment could not be written, and that the log itself still has every line.
+     */
+    @Test
+    @DisplayName("Pointer leaves out lines that were not stored test")
+    void failedSegmentTest(@TempDir File directory) throws IOException {
+        // A file where the log directory should be, so that the directory cannot be created.
+        File file = new File(directory, "file");
+        Files.writeString(file.toPath(), "");
+        BuildLog log = new BuildLog(new File(file, "log"));
+        log.append("compile", "first");
+        log.append("test", "second");
+        log.close();
+
+        BuildLog.Pointer pointer = log.getPointer("logs/test");
+        assertEquals(0, pointer.lines());
+        assertTrue(pointer.phaseLines().isEmpty());
+        assertEquals(2, log.read(0, 10).size());
+    }
+}